@@ -3,9 +3,13 @@ package com.github.leifoolsen.jerseyjpa.domain;
 import com.github.leifoolsen.jerseyjpa.constraint.Isbn;
 import com.github.leifoolsen.jerseyjpa.util.DateAdapter;
 import com.github.leifoolsen.jerseyjpa.util.DateLocalDateUtil;
+import com.github.leifoolsen.jerseyjpa.util.IdGenerator;
 import com.github.leifoolsen.jerseyjpa.util.StringUtil;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.validator.constraints.NotBlank;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -13,6 +17,8 @@ import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
@@ -21,15 +27,24 @@ import javax.validation.constraints.NotNull;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.time.LocalDate;
 import java.util.Date;
-import java.util.UUID;
+import java.util.Locale;
 
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
 @Entity
-@Table(indexes = {@Index(name = "book_title_index", columnList = "title")})
+// Versioned, read-write. Shared cache of the "cached" persistence profile, see PersistenceProperties
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(indexes = {
+        @Index(name = "book_isbn_index", columnList = "isbn"),
+        @Index(name = "book_title_index", columnList = "title"),
+        @Index(name = "book_title_search_index", columnList = "title_search"),
+        @Index(name = "book_author_search_index", columnList = "author_search")
+})
 public class Book {
     @Id
     @Column(length=36)
@@ -38,9 +53,17 @@ public class Book {
     @Version
     private Long version;
 
+    // Not unique: an ISBN is always 13 digits, so the unique key on isbn_number is also unique for isbn.
+    // The index on isbn is kept for prefix searches and ordering on ISBN
     @Isbn
-    @Column(length = 13, unique = true)
+    @Column(length = 13)
     private String isbn;
+
+    // The ISBN as a number, see isbnToLong(). The unique key of a book, used to find a book by ISBN.
+    // A BIGINT index is smaller and faster to search than a VARCHAR index
+    @XmlTransient
+    @Column(name = "isbn_number", unique = true, nullable = false)
+    private Long isbnNumber;
     
     @NotBlank
     private String title;
@@ -62,6 +85,15 @@ public class Book {
     @JoinColumn(name="publisher_id", nullable = false)
     private Publisher publisher;
 
+    // Normalized search columns, see normalizeSearchColumns(). ISBN is digits only and is searched as is
+    @XmlTransient
+    @Column(name = "title_search")
+    private String titleSearch;
+
+    @XmlTransient
+    @Column(name = "author_search")
+    private String authorSearch;
+
     protected Book() {}
 
     private Book(Builder builder) {
@@ -74,6 +106,42 @@ public class Book {
         this.translator = builder.translator;
         this.summary = builder.summary;
         this.publisher = builder.publisher;
+        normalizeSearchColumns();
+    }
+
+    @PrePersist
+    @PreUpdate
+    protected void normalizeSearchColumns() {
+        isbnNumber = isbnToLong(isbn);
+        titleSearch = normalizeSearchValue(title);
+        authorSearch = normalizeSearchValue(author);
+    }
+
+    /**
+     * @return the value as stored in the search columns: trimmed and lowercased, or null if blank
+     */
+    public static String normalizeSearchValue(final String value) {
+        final String s = StringUtil.blankToNull(value);
+        return s != null ? s.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * @return the ISBN as a number, or null if the value is not 13 digits
+     */
+    public static Long isbnToLong(final String isbn) {
+        final String s = StringUtil.blankToNull(isbn);
+        if(s == null || s.length() != 13) {
+            return null;
+        }
+        long n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if(c < '0' || c > '9') {
+                return null;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
     }
 
     public String getId() { return id; }
@@ -114,6 +182,13 @@ public class Book {
     }
 
     public String publisherCode() {
+        return publisherCodeOf(isbn);
+    }
+
+    /**
+     * @return the registration group and publisher prefix of a 13 digit ISBN, digits 4 to 8
+     */
+    public static String publisherCodeOf(final String isbn) {
         return isbn.substring(3, 8);
     }
 
@@ -164,7 +239,7 @@ public class Book {
     }
 
     public static class Builder {
-        private String id  = UUID.randomUUID().toString();
+        private String id  = IdGenerator.getInstance().newId();
         private Long version;
         private String isbn;
         private String title;
@@ -1,7 +1,11 @@
 package com.github.leifoolsen.jerseyjpa.domain;
 
+import com.github.leifoolsen.jerseyjpa.util.IdGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.validator.constraints.NotBlank;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -13,16 +17,18 @@ import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlRootElement;
-import java.util.UUID;
 
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
 @Entity
+// Read-mostly. Shared cache of the "cached" persistence profile, see PersistenceProperties
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 @Table(indexes = {@Index(name = "publisher_name_index", columnList = "name")})
 public class Publisher {
     @Id
     @Column(length=36)
-    private String id = UUID.randomUUID().toString();
+    private String id = IdGenerator.getInstance().newId();
 
     @Version
     private Long version;
@@ -42,6 +48,16 @@ public class Publisher {
         this.name = name;
     }
 
+    /**
+     * @return a detached publisher with the given id and version, e.g. to render a cached copy of a publisher
+     */
+    public static Publisher copyOf(final String id, final Long version, final String code, final String name) {
+        final Publisher publisher = new Publisher(code, name);
+        publisher.id = id;
+        publisher.version = version;
+        return publisher;
+    }
+
     public String getId() { return id; }
 
     public Long getVersion() { return version; }
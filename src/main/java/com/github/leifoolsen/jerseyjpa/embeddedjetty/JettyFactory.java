@@ -2,9 +2,11 @@ package com.github.leifoolsen.jerseyjpa.embeddedjetty;
 
 import com.github.leifoolsen.jerseyjpa.util.StringUtil;
 import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
 import org.eclipse.jetty.annotations.AnnotationConfiguration;
 import org.eclipse.jetty.plus.webapp.EnvConfiguration;
 import org.eclipse.jetty.plus.webapp.PlusConfiguration;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -18,6 +20,10 @@ import org.eclipse.jetty.webapp.WebXmlConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 public class JettyFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(JettyFactory.class);
@@ -119,11 +125,44 @@ public class JettyFactory {
      * @throws Exception
      */
     public static void start(final Server server) throws Exception {
+        start(server, uri -> {});
+    }
+
+    /**
+     * Start embedded Jetty server, and warm up the started server before it is reported started.
+     * While warming up, the server only listens on a local connector on a free port, and the connectors of the
+     * server are opened when the warm-up is done, so that no client gets a cold server.
+     * @param warmUp called with the URI of the warm-up connector, e.g. to send requests warming up the application
+     * @throws Exception
+     */
+    public static void start(final Server server, final Consumer<URI> warmUp) throws Exception {
         logger.debug("Starting Jetty ...");
 
-        server.start();
-        //server.dump(System.err);
+        final Connector[] connectors = server.getConnectors();
+        final ServerConnector warmUpConnector = new ServerConnector(server);
+        warmUpConnector.setHost("localhost");
+        warmUpConnector.setPort(0);
+        server.setConnectors(new Connector[] {warmUpConnector});
+        try {
+            server.start();
+            //server.dump(System.err);
+
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            warmUp.accept(server.getURI());
+            logger.debug("Jetty warmed up in {} ms", stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+        finally {
+            server.setConnectors(connectors);
+            warmUpConnector.stop();
+        }
 
+        if(server.isStarted()) {
+            for (Connector connector : connectors) {
+                if(!connector.isStarted()) {
+                    connector.start();
+                }
+            }
+        }
         logger.info("Jetty started at: " + server.getURI());
     }
 
@@ -2,6 +2,7 @@ package com.github.leifoolsen.jerseyjpa.main;
 
 import com.github.leifoolsen.jerseyjpa.embeddedjetty.JettyFactory;
 import com.github.leifoolsen.jerseyjpa.rest.application.JerseyJpaApp;
+import com.github.leifoolsen.jerseyjpa.rest.application.Warmup;
 import com.google.common.base.MoreObjects;
 import com.google.common.primitives.Ints;
 import org.eclipse.jetty.server.Server;
@@ -17,7 +18,7 @@ public class JettyStarter {
         int port = args.length >= 1 ? MoreObjects.firstNonNull(Ints.tryParse(args[0]), DEFAULT_PORT) : DEFAULT_PORT;
 
         Server server = new JettyFactory().port(port).build();
-        JettyFactory.start(server);
+        JettyFactory.start(server, Warmup::roundTrips);
 
         URI applicationURI = UriBuilder.fromUri(server.getURI()).path(JerseyJpaApp.APPLICATION_PATH).build();
         System.out.println(String.format("%nServer started with WADL available at "
@@ -0,0 +1,176 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.Repository;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Finds books where any field matches a search value, as a union of one query per field.</p>
+ * <p>An <code>or</code> across every field can not use an index, but each per-field query can, e.g. prefix searches
+ * on ISBN, title and author. Each query reads the ids of a page only, from the cursor and ordered by id, so a
+ * page costs the same no matter how deep it is. The ids found by each query are combined, deduplicated and ordered
+ * by id, and the page is taken from them.</p>
+ * <p>A {@link #sequential()} search runs the per-field queries one after another on the caller's EntityManager.
+ * A {@link #parallel(int)} search runs them concurrently on a bounded pool of threads, each on its own
+ * read-only EntityManager, see {@link PersistenceProperties#readOnly(EntityManager)}, so a search costs about as
+ * much as the slowest per-field query. Queries on separate EntityManagers do not see changes the caller has not
+ * committed.</p>
+ */
+public final class BookAnySearch {
+    private static final List<SearchType.Type> FIELDS = new ArrayList<>();
+    static {
+        for (SearchType.Type t : SearchType.Type.values()) {
+            if(SearchType.Type.ANY != t) {
+                FIELDS.add(t);
+            }
+        }
+    }
+
+    private static volatile BookAnySearch instance = sequential();
+
+    private final ExecutorService executor;
+
+    private BookAnySearch(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public static BookAnySearch sequential() {
+        return new BookAnySearch(null);
+    }
+
+    /**
+     * @param threads max number of per-field queries running at the same time, across all searches.
+     *                When every thread is busy and the queue is full, the searching thread runs the query itself.
+     */
+    public static BookAnySearch parallel(final int threads) {
+        Preconditions.checkArgument(threads > 0, "Number of threads must be greater than zero");
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * FIELDS.size()),
+                new ThreadFactoryBuilder().setNameFormat("book-any-search-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        executor.allowCoreThreadTimeOut(true);
+        return new BookAnySearch(executor);
+    }
+
+    /**
+     * @return the search used by {@link BookRepositoryJpa}. Sequential unless set with {@link #setInstance(BookAnySearch)}
+     */
+    public static BookAnySearch getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(final BookAnySearch search) {
+        instance = Preconditions.checkNotNull(search, "search may not be null");
+    }
+
+    public boolean isParallel() {
+        return executor != null;
+    }
+
+    /**
+     * @param em EntityManager of the caller. A parallel search creates its own EntityManagers from the same factory
+     * @param match how the search value is matched
+     * @param searchParameters the search value bound to the parameters of the {@link BookQueries#idsByType} queries
+     * @param cursor the page is read from the id of the cursor, or from the first id if null
+     * @param limit max number of ids, or null for all
+     * @return ids of the matching books, ordered by id: the first <code>limit</code> ids after the cursor,
+     *         or the last <code>limit</code> ids before it
+     */
+    List<String> findBookIds(
+            final EntityManager em, final BookQueries.Match match, final Map<String, Object> searchParameters,
+            final PageCursor cursor, final Integer limit) {
+
+        Preconditions.checkNotNull(match, "match may not be null");
+
+        final PageCursor.Direction direction = cursor != null ? cursor.direction() : null;
+        final Map<String, Object> parameters = new HashMap<>(searchParameters);
+        if(cursor != null) {
+            parameters.put("cursorId", cursor.id());
+        }
+
+        final SortedSet<String> ids = new TreeSet<>();
+        if(executor == null) {
+            final Repository repository = new RepositoryJPA(() -> em);
+            for (SearchType.Type t : FIELDS) {
+                ids.addAll(findIds(repository, t, match, direction, parameters, limit));
+            }
+            return page(ids, direction, limit);
+        }
+
+        final EntityManagerFactory emf = em.getEntityManagerFactory();
+        final List<Future<List<String>>> futures = new ArrayList<>(FIELDS.size());
+        try {
+            for (SearchType.Type t : FIELDS) {
+                futures.add(executor.submit(() -> {
+                    final EntityManager fieldEm = PersistenceProperties.readOnly(emf.createEntityManager());
+                    try {
+                        return findIds(new RepositoryJPA(() -> fieldEm), t, match, direction, parameters, limit);
+                    }
+                    finally {
+                        fieldEm.close();
+                    }
+                }));
+            }
+            for (Future<List<String>> f : futures) {
+                ids.addAll(f.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while searching books", e);
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new PersistenceException("Could not search books", e.getCause());
+        }
+        finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return page(ids, direction, limit);
+    }
+
+    // Each field gave at most limit ids, the ids nearest the cursor. So do the merged ids
+    private static List<String> page(
+            final SortedSet<String> ids, final PageCursor.Direction direction, final Integer limit) {
+
+        final List<String> result = new ArrayList<>(ids);
+        if(limit == null || result.size() <= limit) {
+            return result;
+        }
+        return direction == PageCursor.Direction.BEFORE
+                ? result.subList(result.size() - limit, result.size())
+                : result.subList(0, limit);
+    }
+
+    private static List<String> findIds(
+            final Repository repository, final SearchType.Type searchType, final BookQueries.Match match,
+            final PageCursor.Direction direction, final Map<String, Object> parameters, final Integer limit) {
+
+        return RepositoryJPA.findWithQuery(repository.createNamedQuery(
+                BookQueries.idsByType(searchType, match, direction), String.class, parameters), null, limit);
+    }
+}
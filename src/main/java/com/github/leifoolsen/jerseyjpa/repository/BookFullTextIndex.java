@@ -0,0 +1,140 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.github.leifoolsen.jerseyjpa.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.Table;
+
+/**
+ * <p>Ranked full-text search over book title, author and summary, backed by H2's Lucene full-text search
+ * (<code>org.h2.fulltext.FullTextLucene</code>).</p>
+ * <p>The index is created when the connection starts, see {@link #create(EntityManagerFactory)}, and is kept
+ * current by triggers H2 adds to the book table. For an in-memory database the Lucene index is held in memory;
+ * for a file database it is stored in a directory beside the database files.</p>
+ * <p>Full-text search is only available for H2 databases.</p>
+ */
+public final class BookFullTextIndex {
+    private static final Logger logger = LoggerFactory.getLogger(BookFullTextIndex.class);
+
+    static final String[] COLUMNS = {"TITLE", "AUTHOR", "SUMMARY"};
+
+    /**
+     * Ids of the matching books, ordered by descending Lucene score.
+     * Parameters: ?1 query, ?2 limit (0 = no limit), ?3 offset
+     */
+    static final String SEARCH_SQL = "SELECT CAST(ARRAY_GET(KEYS, 1) AS VARCHAR) FROM FTL_SEARCH_DATA(?1, ?2, ?3)";
+
+    private static final String JDBC_URL = "javax.persistence.jdbc.url";
+    private static final String SCHEMA = "PUBLIC";
+
+    // Name prefix of the trigger H2 adds to an indexed table
+    private static final String TRIGGER_PREFIX = "FTL_";
+
+    private BookFullTextIndex() {}
+
+    public static boolean isSupported(final EntityManagerFactory emf) {
+        final String url = StringUtil.blankToNull((String) emf.getProperties().get(JDBC_URL));
+        return url != null && url.startsWith("jdbc:h2:");
+    }
+
+    /**
+     * <p>Create the full-text index, indexing existing books, unless the book table is indexed already.
+     * Indexes of other tables are kept.</p>
+     * <ul>
+     *     <li>A table dropped and created again, e.g. by schema generation, loses the trigger keeping its index
+     *         current. Its index is dropped and created again; H2 reindexes the other tables when an index
+     *         is dropped.</li>
+     *     <li>If no other table is indexed, the whole Lucene index is rebuilt, so that a Lucene index held in
+     *         memory for an earlier in-memory database with the same name is not reused.</li>
+     * </ul>
+     * <p>Register with
+     * {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     * Ignored for databases other than H2.</p>
+     */
+    public static void create(final EntityManagerFactory emf) {
+        if(!isSupported(emf)) {
+            logger.info("Full-text search is only supported for H2. Full-text index not created.");
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final String table = tableName();
+        final String columns = String.join(",", COLUMNS);
+        final EntityManager em = emf.createEntityManager();
+        final EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            em.createNativeQuery("CREATE ALIAS IF NOT EXISTS FTL_INIT FOR \"org.h2.fulltext.FullTextLucene.init\"").executeUpdate();
+            em.createNativeQuery("CALL FTL_INIT()").executeUpdate();
+
+            final boolean indexed = count(em, "SELECT COUNT(*) FROM FTL.INDEXES WHERE SCHEMA = ?1 AND TABLE = ?2",
+                    SCHEMA, table) > 0;
+            final boolean triggered = count(em,
+                    "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TRIGGERS WHERE TRIGGER_SCHEMA = ?1 AND TRIGGER_NAME = ?2",
+                    SCHEMA, TRIGGER_PREFIX + table) > 0;
+
+            if(indexed && triggered) {
+                tx.commit();
+                logger.debug("Full-text index exists");
+                return;
+            }
+            if(indexed) {
+                em.createNativeQuery("CALL FTL_DROP_INDEX(?1, ?2)")
+                        .setParameter(1, SCHEMA).setParameter(2, table).executeUpdate();
+            }
+            if(count(em, "SELECT COUNT(*) FROM FTL.INDEXES") == 0) {
+                em.createNativeQuery("INSERT INTO FTL.INDEXES(SCHEMA, TABLE, COLUMNS) VALUES(?1, ?2, ?3)")
+                        .setParameter(1, SCHEMA).setParameter(2, table).setParameter(3, columns).executeUpdate();
+                em.createNativeQuery("CALL FTL_REINDEX()").executeUpdate();
+            }
+            else {
+                em.createNativeQuery("CALL FTL_CREATE_INDEX(?1, ?2, ?3)")
+                        .setParameter(1, SCHEMA).setParameter(2, table).setParameter(3, columns).executeUpdate();
+            }
+            tx.commit();
+        }
+        catch (PersistenceException e) {
+            if(tx.isActive()) {
+                tx.rollback();
+            }
+            throw new PersistenceException("Could not create full-text index", e);
+        }
+        finally {
+            em.close();
+        }
+        logger.debug("Full-text index created in {} ms", System.currentTimeMillis() - start);
+    }
+
+    private static long count(final EntityManager em, final String sql, final Object... parameters) {
+        final Query query = em.createNativeQuery(sql);
+        for (int i = 0; i < parameters.length; i++) {
+            query.setParameter(i + 1, parameters[i]);
+        }
+        return ((Number) query.getSingleResult()).longValue();
+    }
+
+    static String tableName() {
+        final Table t = Book.class.getAnnotation(Table.class);
+        final String name = t != null ? StringUtil.blankToNull(t.name()) : null;
+        return name != null ? name : RepositoryJPA.entityName(Book.class).toUpperCase();
+    }
+
+    /**
+     * @return true if the exception is caused by a full-text query Lucene could not parse
+     */
+    static boolean isQuerySyntaxError(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if(t.getClass().getName().endsWith("queryParser.ParseException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
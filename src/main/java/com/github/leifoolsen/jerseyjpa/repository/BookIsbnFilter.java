@@ -0,0 +1,179 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * <p>Bloom filter of the ISBNs of all books. A lookup of an ISBN the filter has never seen is a definite miss,
+ * and is answered without a query, see {@link BookRepositoryJpa#findBookByISBN(String)}.</p>
+ * <p>The filter is sized from the number of books and filled from the database by
+ * {@link #rebuild(EntityManagerFactory)} when the connection starts, and ISBNs of persisted and updated books are
+ * added by {@link BookIsbnFilterListener}. ISBNs are never removed, so a removed book, or a write that is rolled
+ * back, only costs a query. Until the filter is built, every ISBN might be contained.</p>
+ * <p>The filter is sized for twice the number of books at startup, with a false positive probability of
+ * {@value #FALSE_POSITIVE_PROBABILITY}. If more ISBNs are added the filter is still correct, but the probability
+ * of false positives grows until the next rebuild.</p>
+ * <p>There is one filter per JVM; it holds the ISBNs of the connection that last rebuilt it.</p>
+ * <p>Note: The filter only sees the writes of this JVM. A negative answer can be trusted only if this JVM is the
+ * single writer of the book table. If books are also written by another JVM, a batch job or a native SQL script,
+ * set the system property {@value #SINGLE_WRITER} to false. The filter is then not built, and every ISBN might
+ * be contained.</p>
+ */
+public final class BookIsbnFilter {
+    private static final Logger logger = LoggerFactory.getLogger(BookIsbnFilter.class);
+
+    static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    static final int MIN_EXPECTED_INSERTIONS = 10000;
+
+    /**
+     * System property, default true. False if books are written by others than this JVM
+     */
+    public static final String SINGLE_WRITER = "jerseyjpa.books.single-writer";
+
+    private static final BookIsbnFilter INSTANCE =
+            new BookIsbnFilter(Boolean.parseBoolean(System.getProperty(SINGLE_WRITER, "true")));
+
+    // Guava's BloomFilter is not safe for concurrent writes
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private BloomFilter<CharSequence> filter;
+    private BloomFilter<CharSequence> next;  // Filter being rebuilt, also receives ISBNs added during the rebuild
+    private long expectedInsertions;
+    private long insertions;
+    private final boolean singleWriter;
+
+    BookIsbnFilter(final boolean singleWriter) {
+        this.singleWriter = singleWriter;
+    }
+
+    public static BookIsbnFilter getInstance() { return INSTANCE; }
+
+    public boolean isReady() {
+        lock.readLock().lock();
+        try {
+            return filter != null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Build the filter from the ISBNs in the database. Register with
+     * {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     */
+    public void rebuild(final EntityManagerFactory emf) {
+        if(!singleWriter) {
+            logger.info("Books may be written by others than this JVM. ISBN filter not built.");
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final EntityManager em = emf.createEntityManager();
+        try {
+            final RepositoryJPA repository = new RepositoryJPA(() -> em);
+            final long count = repository.count(Book.class);
+            try (Stream<String> isbns = repository.stream(em.createNamedQuery(BookQueries.BOOK_ISBNS, String.class), 1000)) {
+                rebuild(isbns, count);
+            }
+        }
+        finally {
+            em.close();
+        }
+        logger.debug("ISBN filter built for {} books in {} ms", insertions, System.currentTimeMillis() - start);
+    }
+
+    void rebuild(final Stream<String> isbns, final long count) {
+        final long expected = Math.max(2 * count, MIN_EXPECTED_INSERTIONS);
+        final BloomFilter<CharSequence> f = BloomFilter.create(
+                Funnels.stringFunnel(Charsets.UTF_8), (int) Math.min(expected, Integer.MAX_VALUE), FALSE_POSITIVE_PROBABILITY);
+
+        lock.writeLock().lock();
+        try {
+            next = f;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        final long[] n = {0};
+        isbns.forEach(isbn -> {
+            lock.writeLock().lock();
+            try {
+                if(isbn != null && next == f && f.put(isbn)) {
+                    n[0]++;
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        });
+
+        lock.writeLock().lock();
+        try {
+            if(next == f) {
+                filter = f;
+                next = null;
+                expectedInsertions = expected;
+                insertions = n[0];
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the ISBN is definitely not the ISBN of a book. True if it might be,
+     *         or if the filter is not built or is being rebuilt
+     */
+    public boolean mightContain(final String isbn) {
+        lock.readLock().lock();
+        try {
+            return filter == null || next != null || filter.mightContain(isbn);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void add(final String isbn) {
+        if(isbn == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if(next != null) {
+                next.put(isbn);
+            }
+            if(filter != null && filter.put(isbn) && ++insertions == expectedInsertions) {
+                logger.warn("ISBN filter is full, the false positive rate will grow until the filter is rebuilt");
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the probability that an ISBN not added is reported as might be contained
+     */
+    public double expectedFpp() {
+        lock.readLock().lock();
+        try {
+            return filter != null ? filter.expectedFpp() : 1.0;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
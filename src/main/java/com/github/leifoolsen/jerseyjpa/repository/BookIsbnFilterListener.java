@@ -0,0 +1,19 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+
+/**
+ * Adds the ISBN of persisted and updated books to the {@link BookIsbnFilter}. Added to the connection by
+ * {@link BookRepositoryJpa#registerStartListeners}, and called when the book is flushed, so a lookup later in the
+ * same transaction finds the book. The ISBN of a book rolled back stays in the filter, as a false positive.
+ */
+public class BookIsbnFilterListener implements CommitListeners.Listener {
+
+    @Override
+    public void committed(final Object entity, final CommitListeners.Change change) {
+        if(entity instanceof Book && change == CommitListeners.Change.WRITTEN) {
+            BookIsbnFilter.getInstance().add(((Book) entity).getISBN());
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.google.common.base.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The fixed set of book and publisher queries used by {@link BookRepositoryJpa}.</p>
+ * <p>The queries are registered as named queries when the EntityManagerFactory is started, see
+ * {@link #registerNamedQueries(EntityManagerFactory)}. The JPQL is parsed once, and a request
+ * only has to bind parameters.</p>
+ */
+public final class BookQueries {
+    private static final Logger logger = LoggerFactory.getLogger(BookQueries.class);
+
+    public static final String BOOK_BY_ISBN = "Book.byIsbn";
+    public static final String BOOKS_BY_IDS = "Book.byIds";
+    public static final String BOOK_ISBNS = "Book.isbns";
+    public static final String PUBLISHER_BY_CODE = "Publisher.byCode";
+    public static final String PUBLISHERS_BY_NAME = "Publisher.byName";
+
+    private static final String BOOK_SEARCH = "Book.search.";
+    private static final String BOOK_SEEK = "Book.seek.";
+    private static final String BOOK_IDS = "Book.ids.";
+    private static final String FIRST = ".first";
+    private static final char LIKE_ESCAPE = '!';
+
+    /**
+     * <p>How a search value is matched.</p>
+     * <ul>
+     *     <li>CONTAINS: <code>like :searchType</code>, bound to a normalized <code>%value%</code> pattern. The value
+     *         is matched literally, its <code>%</code> and <code>_</code> are escaped, see {@link #likeContains(String)}</li>
+     *     <li>PREFIX: <code>&gt;= :searchFrom and &lt; :searchTo</code>, a range that can use the index
+     *         of a search column even when the value is a bind parameter</li>
+     * </ul>
+     */
+    public enum Match { CONTAINS, PREFIX }
+
+    private BookQueries() {}
+
+    /**
+     * @param match how the search value is matched, or null if there is no search value
+     * @return name of the query searching books by the given type, ordered by the search field
+     */
+    public static String searchByType(final SearchType.Type searchType, final Match match) {
+        return BOOK_SEARCH + searchType.name() + matchSuffix(match);
+    }
+
+    /**
+     * @param match how the search value is matched, or null if there is no search value
+     * @param direction direction to read from the cursor, or null to read the first page
+     * @return name of the keyset pagination query for the given type,
+     *         see {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type, String, PageCursor, int)}
+     */
+    public static String seekByType(
+            final SearchType.Type searchType, final Match match, final PageCursor.Direction direction) {
+
+        return BOOK_SEEK + searchType.name() + matchSuffix(match) +
+                (direction != null ? "." + direction.name().toLowerCase() : FIRST);
+    }
+
+    /**
+     * @param direction direction to read from the <code>cursorId</code> parameter, or null to read from the first id
+     * @return name of the query selecting the ids of books where the given field matches the search value,
+     *         ordered by id, see {@link BookAnySearch}
+     */
+    public static String idsByType(
+            final SearchType.Type searchType, final Match match, final PageCursor.Direction direction) {
+
+        return BOOK_IDS + searchType.name() + matchSuffix(match) +
+                (direction != null ? "." + direction.name().toLowerCase() : FIRST);
+    }
+
+    /**
+     * @return a <code>like</code> pattern matching strings that contain the value literally
+     */
+    public static String likeContains(final String value) {
+        final StringBuilder pattern = new StringBuilder(value.length() + 2).append('%');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if(c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                pattern.append(LIKE_ESCAPE);
+            }
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
+
+    private static String matchSuffix(final Match match) {
+        return match != null ? "." + match.name().toLowerCase() : "";
+    }
+
+    /**
+     * Register all queries as named queries on the given EntityManagerFactory.
+     * Call once, when the factory is started.
+     */
+    public static void registerNamedQueries(final EntityManagerFactory emf) {
+        final Map<String, String> queries = jpql();
+        final EntityManager em = emf.createEntityManager();
+        try {
+            final Map<String, Object> cacheHints = PersistenceProperties.queryCacheHints(em);
+            for (Map.Entry<String, String> q : queries.entrySet()) {
+                final Class<?> resultClass = q.getKey().startsWith(BOOK_IDS) || q.getKey().equals(BOOK_ISBNS)
+                        ? String.class
+                        : q.getKey().startsWith("Publisher.") ? Publisher.class : Book.class;
+                final Query query = em.createQuery(q.getValue(), resultClass);
+                if(isCacheable(q.getKey())) {
+                    cacheHints.forEach(query::setHint);
+                }
+                emf.addNamedQuery(q.getKey(), query);
+            }
+        }
+        finally {
+            em.close();
+        }
+        logger.debug("Registered {} named queries", queries.size());
+    }
+
+    /**
+     * <p>Execute every named query once, with placeholder parameters and a single result row, so that the JPA
+     * provider builds its query plans and the JDBC statements are prepared before the first request.
+     * See {@link com.github.leifoolsen.jerseyjpa.rest.application.Warmup}.</p>
+     * @return number of queries executed
+     */
+    public static int executeNamedQueries(final EntityManager em) {
+        final Set<String> names = jpql().keySet();
+        for (String name : names) {
+            final Query query = em.createNamedQuery(name);
+            for (Parameter<?> parameter : query.getParameters()) {
+                query.setParameter(parameter.getName(), placeholder(parameter.getName()));
+            }
+            query.setMaxResults(1).getResultList();
+        }
+        logger.debug("Executed {} named queries", names.size());
+        return names.size();
+    }
+
+    private static Object placeholder(final String parameterName) {
+        switch (parameterName) {
+            case "ids":        return Collections.singletonList("");
+            case "isbnNumber": return 0L;
+            default:           return "";
+        }
+    }
+
+    /**
+     * Results of the lookup and search queries are cached in the "cached" persistence profile. Books by ids are
+     * keyed on a list of ids, and the ISBNs of all books are read once at startup; neither is worth caching.
+     */
+    private static boolean isCacheable(final String queryName) {
+        return !BOOKS_BY_IDS.equals(queryName) && !BOOK_ISBNS.equals(queryName);
+    }
+
+    static Map<String, String> jpql() {
+        final String book = RepositoryJPA.entityName(Book.class);
+        final String publisher = RepositoryJPA.entityName(Publisher.class);
+        final Map<String, String> queries = new LinkedHashMap<>();
+
+        queries.put(BOOK_BY_ISBN, "select b from " + book + " b where b.isbnNumber = :isbnNumber");
+        queries.put(BOOKS_BY_IDS, "select b from " + book + " b where b.id in :ids");
+        queries.put(BOOK_ISBNS, "select b.isbn from " + book + " b");
+        queries.put(PUBLISHER_BY_CODE, "select p from " + publisher + " p where p.code = :code");
+        queries.put(PUBLISHERS_BY_NAME, "select p from " + publisher + " p where p.name like :name");
+
+        final List<Match> matches = new ArrayList<>(Arrays.asList(Match.values()));
+        matches.add(null);
+
+        for (SearchType.Type t : SearchType.Type.values()) {
+            final String order = SearchType.Type.ANY != t ? "order by " + sortPath(t) : "";
+            for (Match match : matches) {
+                if(SearchType.Type.ANY == t && match != null) {
+                    // Searching any field is a union of the per-field id queries, see BookAnySearch
+                    continue;
+                }
+                if(SearchType.Type.ANY != t && match != null) {
+                    queries.put(idsByType(t, match, null), ids(book, t, match, null));
+                    for (PageCursor.Direction d : PageCursor.Direction.values()) {
+                        queries.put(idsByType(t, match, d), ids(book, t, match, d));
+                    }
+                }
+                queries.put(searchByType(t, match), "select b from " + book + " b " +
+                        (match != null ? "where " + searchCondition(t, match) : "") + order);
+
+                if(BookRepositoryJpa.supportsCursor(t)) {
+                    queries.put(seekByType(t, match, null), seek(book, t, match, null));
+                    for (PageCursor.Direction d : PageCursor.Direction.values()) {
+                        queries.put(seekByType(t, match, d), seek(book, t, match, d));
+                    }
+                }
+            }
+        }
+        return queries;
+    }
+
+    private static String ids(
+            final String book, final SearchType.Type searchType, final Match match, final PageCursor.Direction direction) {
+
+        final boolean before = direction == PageCursor.Direction.BEFORE;
+        return "select b.id from " + book + " b where " + searchCondition(searchType, match) +
+                (direction != null ? "and b.id " + (before ? "<" : ">") + " :cursorId " : "") +
+                "order by b.id" + (before ? " desc" : " asc");
+    }
+
+    private static String seek(
+            final String book, final SearchType.Type searchType, final Match match, final PageCursor.Direction direction) {
+
+        final boolean any = SearchType.Type.ANY == searchType;
+        final String sortPath = any ? "b.id" : sortPath(searchType);
+        final List<String> conditions = new ArrayList<>();
+
+        if(match != null) {
+            conditions.add(searchCondition(searchType, match));
+        }
+        if(direction != null) {
+            final String op = direction == PageCursor.Direction.BEFORE ? "<" : ">";
+            conditions.add(any
+                    ? "b.id " + op + " :cursorId "
+                    : String.format("(%1$s %2$s :cursorValue or (%1$s = :cursorValue and b.id %2$s :cursorId)) ", sortPath, op));
+        }
+
+        String jpql = "select b from " + book + " b ";
+        if(!conditions.isEmpty()) {
+            jpql += "where " + Joiner.on("and ").join(conditions);
+        }
+        final String order = direction == PageCursor.Direction.BEFORE ? " desc" : " asc";
+        return jpql + (any
+                ? "order by b.id" + order
+                : "order by " + sortPath + order + ", b.id" + order);
+    }
+
+    private static String searchCondition(final SearchType.Type searchType, final Match match) {
+        final String path = searchPath(searchType);
+        return match == Match.PREFIX
+                ? "(" + path + " >= :searchFrom and " + path + " < :searchTo) "
+                : path + " like :searchType escape '" + LIKE_ESCAPE + "' ";
+    }
+
+    /**
+     * Title and author are searched in their normalized, indexed search columns, see {@link Book#normalizeSearchValue(String)}.
+     * ISBN holds digits only and is searched as is. Other fields are lowercased by the database.
+     */
+    private static String searchPath(final SearchType.Type searchType) {
+        switch (searchType) {
+            case ISBN:   return "b.isbn";
+            case TITLE:  return "b.titleSearch";
+            case AUTHOR: return "b.authorSearch";
+            default:     return "LOWER(b." + searchType.type() + ")";
+        }
+    }
+
+    /**
+     * Title and author are sorted by their search columns, so the order matches the search and a page cursor
+     * holds the normalized value, see {@link BookRepositoryJpa#cursorAfter(SearchType.Type, Book)}.
+     * Summary and publisher name are sorted lowercased, as they are searched, and as {@link BookSearchIndex} orders
+     * them. ISBN and publisher code hold digits only and are sorted as is.
+     */
+    private static String sortPath(final SearchType.Type searchType) {
+        switch (searchType) {
+            case TITLE:          return "b.titleSearch";
+            case AUTHOR:         return "b.authorSearch";
+            case SUMMARY:
+            case PUBLISHER_NAME: return "LOWER(b." + searchType.type() + ")";
+            default:             return "b." + searchType.type();
+        }
+    }
+}
@@ -3,11 +3,18 @@ package com.github.leifoolsen.jerseyjpa.repository;
 import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
 import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.BatchResult;
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.NativeUpsert;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
 import com.github.leifoolsen.jerseyjpa.util.QueryParameter;
 import com.github.leifoolsen.jerseyjpa.util.Repository;
 import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.github.leifoolsen.jerseyjpa.util.RoutingDatabaseConnection;
 import com.github.leifoolsen.jerseyjpa.util.StringUtil;
-import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,19 +22,93 @@ import javax.inject.Provider;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceException;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.validation.ConstraintViolationException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class BookRepositoryJpa {
     private static final Logger logger = LoggerFactory.getLogger(BookRepositoryJpa.class);
 
+    public static final String PREFIX_WILDCARD = "*";
+
+    // Connections keeping the in-memory indexes and caches current, see registerStartListeners
+    private static final Set<JpaDatabaseConnectionManager.JpaDatabaseConnection> indexedConnections =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final Provider<EntityManager> provider;
+
     private final Repository repository;
+    private final BookSearchIndex searchIndex;
+    private final BookAnySearch anySearch;
+    private final BookSearchCache searchCache;
+    private final BookSnapshotCache snapshotCache;
+    private final BookIsbnFilter isbnFilter;
+    private final PublisherCodeCache publisherCache;
 
     public BookRepositoryJpa(final Provider<EntityManager> provider) {
+        this(provider, BookSearchIndex.getInstance(), BookAnySearch.getInstance(),
+                BookSearchCache.getInstance(), BookSnapshotCache.getInstance(), BookIsbnFilter.getInstance(),
+                PublisherCodeCache.getInstance());
+    }
+
+    BookRepositoryJpa(
+            final Provider<EntityManager> provider, final BookSearchIndex searchIndex, final BookAnySearch anySearch,
+            final BookSearchCache searchCache, final BookSnapshotCache snapshotCache, final BookIsbnFilter isbnFilter,
+            final PublisherCodeCache publisherCache) {
+
+        this.provider = provider;
         this.repository = new RepositoryJPA(provider);
+        this.searchIndex = searchIndex;
+        this.anySearch = anySearch;
+        this.searchCache = searchCache;
+        this.snapshotCache = snapshotCache;
+        this.isbnFilter = isbnFilter;
+        this.publisherCache = publisherCache;
+    }
+
+    /**
+     * <p>Register the start listeners a connection used by this repository needs: the named queries, the
+     * full-text index, the commit listeners keeping the in-memory indexes current, and a reset of the in-memory
+     * indexes and caches. Listeners are named, so registering
+     * twice with the same connection is harmless.</p>
+     * <p>The in-memory indexes and caches hold the committed writes of this connection. A repository on any other
+     * connection, e.g. a read replica behind the primary, or a shard, does not use them, and queries the
+     * database. A repository routed by a {@link RoutingDatabaseConnection} uses them for the units of work routed
+     * to a registered connection.</p>
+     */
+    public static JpaDatabaseConnectionManager.JpaDatabaseConnection registerStartListeners(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection connection) {
+
+        indexedConnections.add(connection);
+        return connection
+                .onStart("book-queries", BookQueries::registerNamedQueries)
+                .onStart("book-search-index-listener",
+                        emf -> CommitListeners.add(emf, new BookSearchIndexListener(), Book.class, Publisher.class))
+                .onStart("book-search-cache-listener",
+                        emf -> CommitListeners.add(emf, new BookSearchCacheListener(), Book.class, Publisher.class))
+                .onStart("book-snapshot-cache-listener",
+                        emf -> CommitListeners.add(emf, new BookSnapshotCacheListener(), Book.class, Publisher.class))
+                .onStart("book-isbn-filter-listener",
+                        emf -> CommitListeners.addOnFlush(emf, new BookIsbnFilterListener(), Book.class))
+                .onStart("publisher-code-cache-listener",
+                        emf -> CommitListeners.add(emf, new PublisherCodeCacheListener(), Publisher.class))
+                .onStart("book-search-index", BookSearchIndex.getInstance()::rebuild)
+                .onStart("book-full-text-index", BookFullTextIndex::create)
+                .onStart("book-search-cache", BookSearchCache.getInstance()::clear)
+                .onStart("book-snapshot-cache", BookSnapshotCache.getInstance()::clear)
+                .onStart("book-isbn-filter", BookIsbnFilter.getInstance()::rebuild)
+                .onStart("publisher-code-cache", PublisherCodeCache.getInstance()::clear);
     }
 
     public Book newBook(final Book book) {
@@ -59,7 +140,36 @@ public class BookRepositoryJpa {
     }
 
     public Book createOrUpdateBook(final Book book) {
-        return repository.createOrUpdate(book);
+        return createOrUpdateBook(book, false);
+    }
+
+    /**
+     * Create or update a book keyed on ISBN.
+     *
+     * @param book the book to create or update
+     * @param nativeUpsert if true, use a single native upsert statement instead of find + persist/merge.
+     *                     The id of an existing book is kept and the version is incremented.
+     * @return the created or updated book
+     */
+    public Book createOrUpdateBook(final Book book, final boolean nativeUpsert) {
+        if(!nativeUpsert) {
+            return repository.createOrUpdate(book);
+        }
+
+        repository.upsert(NativeUpsert.of(book, "isbnNumber"));
+
+        // Native statements bypass the commit listeners. The ISBN filter must know the book before it is looked up
+        if(isIndexed()) {
+            isbnFilter.add(book.getISBN());
+        }
+        final Book b = findBookByISBN(book.getISBN());
+        repository.getEntityManager().refresh(b);
+        CommitListeners.written(repository.getEntityManager(), b);
+        return b;
+    }
+
+    public BatchResult<Book> createOrUpdateBooks(final Collection<Book> books, final int batchSize) {
+        return repository.createOrUpdate(books, batchSize);
     }
 
     public Book findBook(final String id) {
@@ -82,67 +192,318 @@ public class BookRepositoryJpa {
         return repository.find(Book.class, offset, limit);
     }
 
+    /**
+     * Stream all books through a forward-only cursor. See {@link Repository#stream(Class, int)}
+     */
+    public Stream<Book> streamBooks(final int fetchSize) {
+        return repository.stream(Book.class, fetchSize);
+    }
+
+    /**
+     * <p>ISBNs not in the {@link BookIsbnFilter} are not looked up. The filter assumes this JVM is the single writer
+     * of books, see {@link BookIsbnFilter#SINGLE_WRITER}. An ISBN found in the {@link BookSearchIndex}
+     * is looked up by the id of the book, else the book is queried on the numeric ISBN column.</p>
+     *
+     * @return the book, or null if not found
+     */
     public Book findBookByISBN(final String isbn) {
-        String s = StringUtil.blankToNull(isbn);
-        if(s != null) {
-            final String jpql = "select b from %s b where b.isbn = :isbn";
-            final QueryParameter qp = QueryParameter.with("isbn", s);
-            return RepositoryJPA.findFirstWithQuery(createQuery(jpql, Book.class, qp.parameters()));
+        final String s = StringUtil.blankToNull(isbn);
+        final Long isbnNumber = Book.isbnToLong(s);
+        final boolean indexed = isIndexed();
+        if(isbnNumber == null || (indexed && !isbnFilter.mightContain(s))) {
+            return null;
         }
-        return null;
+        final String id = indexed ? searchIndex.findBookIdByIsbn(s) : null;
+        if(id != null) {
+            final Book book = repository.find(Book.class, id);
+            if(book != null && s.equals(book.getISBN())) {
+                return book;
+            }
+        }
+        final QueryParameter qp = QueryParameter.with("isbnNumber", isbnNumber);
+        return RepositoryJPA.findFirstWithQuery(
+                repository.createNamedQuery(BookQueries.BOOK_BY_ISBN, Book.class, qp.parameters()));
     }
 
+    /**
+     * <p>Read-only lookup by ISBN, served from the {@link BookSnapshotCache} when possible.</p>
+     *
+     * @return an immutable snapshot of the book, or null if not found
+     */
+    public BookSnapshot findBookSnapshotByISBN(final String isbn) {
+        final String s = StringUtil.blankToNull(isbn);
+        if(s == null) {
+            return null;
+        }
+        if(!isIndexed()) {
+            final Book book = findBookByISBN(s);
+            return book != null ? BookSnapshot.of(book) : null;
+        }
+        BookSnapshot snapshot = snapshotCache.get(s);
+        if(snapshot == null) {
+            final Book book = findBookByISBN(s);
+            if(book == null) {
+                return null;
+            }
+            snapshot = BookSnapshot.of(book);
+            snapshotCache.put(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param searchValue value to search for. Books containing the value are found, or books starting with the value
+     *                    if it ends with {@value #PREFIX_WILDCARD}, e.g. "tolk*". Prefix searches on ISBN, title and
+     *                    author use an index. Contains searches are answered by the {@link BookSearchIndex}
+     *                    when possible. The search is case insensitive. Searching {@link SearchType.Type#ANY}
+     *                    field is done by {@link BookAnySearch} and the books are ordered by id.
+     *                    Results are cached, see {@link BookSearchCache}, unless the search runs in a transaction.
+     */
     public List<Book> findBooksBySearchType(
             final SearchType.Type searchType, final String searchValue, final Integer offset, final Integer limit) {
 
-        String jpql = "select b from %s b ";
-        QueryParameter qp = null;
+        return cached(BookSearchCache.key(searchType, searchValue, offset, limit),
+                () -> searchBooks(searchType, searchValue, offset, limit));
+    }
+
+    private List<Book> cached(final List<Object> key, final Supplier<List<Book>> search) {
+        // A search in a transaction may see the uncommitted writes of the transaction. It bypasses the cache
+        if(repository.getEntityManager().isJoinedToTransaction() || !isIndexed()) {
+            return search.get();
+        }
+        return searchCache.get(key, this::findBooksByIds, search);
+    }
+
+    /**
+     * @return true if the in-memory indexes and caches hold the writes of the connection of this repository.
+     *         A provider that is not a connection is trusted to be on the connection the indexes are kept for
+     */
+    private boolean isIndexed() {
+        final Provider<EntityManager> p = provider instanceof RoutingDatabaseConnection
+                ? ((RoutingDatabaseConnection) provider).current()
+                : provider;
+        return !(p instanceof JpaDatabaseConnectionManager.JpaDatabaseConnection) || indexedConnections.contains(p);
+    }
 
-        final String sv = StringUtil.blankToNull(searchValue);
+    private List<Book> searchBooks(
+            final SearchType.Type searchType, final String searchValue, final Integer offset, final Integer limit) {
 
-        if(SearchType.Type.ANY == searchType && sv != null) {
-            jpql += "where ";
-            List<String> any = new ArrayList<>();
-            for (SearchType.Type t : SearchType.Type.values()) {
-                if(SearchType.Type.ANY != t ) {
-                    any.add("LOWER(b." + t.type() + ") like :searchType ");
-                }
+        final Map<String, Object> parameters = new HashMap<>();
+        final BookQueries.Match match = searchParameters(searchValue, parameters);
+        if(match == BookQueries.Match.CONTAINS && isIndexed()) {
+            final List<String> ids = searchIndex.findBookIds(searchType, searchValue, offset, limit);
+            if(ids != null) {
+                return findBooksByIds(ids);
             }
-            jpql += Joiner.on("or ").join(any);
-            qp = QueryParameter.with("searchType", "%" + sv.toLowerCase() + "%");
         }
-        else if(sv != null) {
-            jpql += "where LOWER(b." + searchType.type() + ") like :searchType ";
-            qp = QueryParameter.with("searchType", "%" + sv.toLowerCase() + "%");
+        if(SearchType.Type.ANY == searchType && match != null) {
+            final int from = Math.max(MoreObjects.firstNonNull(offset, 0), 0);
+            final Integer max = MoreObjects.firstNonNull(limit, 0) > 0 ? from + limit : null;
+            final List<String> ids = anySearch.findBookIds(repository.getEntityManager(), match, parameters, null, max);
+            return findBooksByIds(ids.subList(Math.min(from, ids.size()), ids.size()));
         }
+        final TypedQuery<Book> query = repository.createNamedQuery(
+                BookQueries.searchByType(searchType, match), Book.class, parameters);
+
+        return RepositoryJPA.findWithQuery(query, offset, limit);
+    }
 
-        if(SearchType.Type.ANY != searchType) {
-            jpql += "order by b." + searchType.type();
+    /**
+     * <p>Ranked full-text search over title, author and summary, see {@link BookFullTextIndex}.</p>
+     *
+     * @param query a Lucene query, e.g. <code>hawking</code>, <code>"black holes"</code> or <code>title:infinity</code>
+     * @return books ordered by relevance
+     * @throws IllegalArgumentException if the query is not a valid Lucene query
+     * @throws UnsupportedOperationException if the database has no full-text support
+     */
+    public List<Book> findBooksByFullText(final String query, final Integer offset, final Integer limit) {
+        final String q = StringUtil.blankToNull(query);
+        Preconditions.checkArgument(q != null, "Full-text query may not be blank");
+        if(!BookFullTextIndex.isSupported(repository.getEntityManager().getEntityManagerFactory())) {
+            throw new UnsupportedOperationException("Full-text search is not supported by the database");
         }
 
-        return RepositoryJPA.findWithQuery(
-                createQuery(jpql, Book.class, (qp != null ? qp.parameters() : null)), offset, limit);
+        final List<String> ids = new ArrayList<>();
+        try {
+            final Query nativeQuery = repository.getEntityManager().createNativeQuery(BookFullTextIndex.SEARCH_SQL)
+                    .setParameter(1, q)
+                    .setParameter(2, Math.max(MoreObjects.firstNonNull(limit, 0), 0))
+                    .setParameter(3, Math.max(MoreObjects.firstNonNull(offset, 0), 0));
+
+            for (Object id : nativeQuery.getResultList()) {
+                ids.add(id.toString());
+            }
+        }
+        catch (PersistenceException e) {
+            if(BookFullTextIndex.isQuerySyntaxError(e)) {
+                throw new IllegalArgumentException("Not a valid full-text query: " + q, e);
+            }
+            throw e;
+        }
+        return findBooksByIds(ids);
+    }
+
+    /**
+     * <p>Keyset (seek) pagination. Rows are ordered by the search field, and by id as a tie-breaker
+     * (by id only for {@link SearchType.Type#ANY}). The page starts right after, or ends right before,
+     * the position given by the cursor, so the cost of a page does not depend on how deep it is.</p>
+     *
+     * @param cursor position to read from, see {@link #cursorAfter(SearchType.Type, Book)} and
+     *               {@link #cursorBefore(SearchType.Type, Book)}. Null reads the first page.
+     * @param limit max number of books to return
+     * @return books in ascending sort order
+     * @throws IllegalArgumentException if keyset pagination is not supported for the search type,
+     *                                  see {@link #supportsCursor(SearchType.Type)}
+     */
+    public List<Book> findBooksBySearchType(
+            final SearchType.Type searchType, final String searchValue, final PageCursor cursor, final int limit) {
+
+        Preconditions.checkArgument(supportsCursor(searchType),
+                "Keyset pagination is not supported for search type: %s", searchType.type());
+
+        return cached(BookSearchCache.key(searchType, searchValue, cursor, limit),
+                () -> searchBooks(searchType, searchValue, cursor, limit));
+    }
+
+    private List<Book> searchBooks(
+            final SearchType.Type searchType, final String searchValue, final PageCursor cursor, final int limit) {
+
+        final boolean before = cursor != null && cursor.direction() == PageCursor.Direction.BEFORE;
+        final Map<String, Object> parameters = new HashMap<>();
+
+        final BookQueries.Match match = searchParameters(searchValue, parameters);
+        if(match == BookQueries.Match.CONTAINS && isIndexed()) {
+            final List<String> ids = searchIndex.findBookIds(searchType, searchValue, cursor, limit);
+            if(ids != null) {
+                return findBooksByIds(ids);
+            }
+        }
+        if(SearchType.Type.ANY == searchType && match != null) {
+            return findBooksByIds(anySearch.findBookIds(repository.getEntityManager(), match, parameters, cursor, limit));
+        }
+        if(cursor != null) {
+            if(SearchType.Type.ANY != searchType) {
+                parameters.put("cursorValue", cursor.value());
+            }
+            parameters.put("cursorId", cursor.id());
+        }
+
+        final String queryName = BookQueries.seekByType(searchType, match, cursor != null ? cursor.direction() : null);
+        final List<Book> books = RepositoryJPA.findWithQuery(
+                repository.createNamedQuery(queryName, Book.class, parameters), null, limit);
+        if(before) {
+            final List<Book> reversed = new ArrayList<>(books);
+            Collections.reverse(reversed);
+            return reversed;
+        }
+        return books;
+    }
+
+    /**
+     * @return the books with the given ids, in the same order as the ids. Ids of books not found are skipped
+     */
+    private List<Book> findBooksByIds(final List<String> ids) {
+        return findBooksByIds(repository, ids);
+    }
+
+    static List<Book> findBooksByIds(final Repository repository, final List<String> ids) {
+        if(ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final QueryParameter qp = QueryParameter.with("ids", ids);
+        final Map<String, Book> books = new HashMap<>();
+        for (Book b : repository.createNamedQuery(BookQueries.BOOKS_BY_IDS, Book.class, qp.parameters()).getResultList()) {
+            books.put(b.getId(), b);
+        }
+        final List<Book> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            final Book b = books.get(id);
+            if(b != null) {
+                result.add(b);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bind the search value to the parameters of a {@link BookQueries} search query.
+     *
+     * @return how the value is to be matched, or null if there is no search value
+     */
+    static BookQueries.Match searchParameters(final String searchValue, final Map<String, Object> parameters) {
+        String sv = Book.normalizeSearchValue(searchValue);
+        if(sv != null && sv.endsWith(PREFIX_WILDCARD)) {
+            sv = Book.normalizeSearchValue(sv.substring(0, sv.length() - PREFIX_WILDCARD.length()));
+            if(sv != null) {
+                // Every string starting with sv sorts between sv and sv with its last char incremented
+                final char last = sv.charAt(sv.length() - 1);
+                parameters.put("searchFrom", sv);
+                parameters.put("searchTo", last < Character.MAX_VALUE
+                        ? sv.substring(0, sv.length() - 1) + (char) (last + 1)
+                        : sv + Character.MAX_VALUE);
+                return BookQueries.Match.PREFIX;
+            }
+        }
+        if(sv != null) {
+            parameters.put("searchType", BookQueries.likeContains(sv));
+            return BookQueries.Match.CONTAINS;
+        }
+        return null;
+    }
+
+    /**
+     * Keyset pagination requires a sort field that is never null.
+     * Search types ordered by a nullable field must use offset pagination.
+     */
+    public static boolean supportsCursor(final SearchType.Type searchType) {
+        return SearchType.Type.SUMMARY != searchType && SearchType.Type.PUBLISHER_NAME != searchType;
     }
 
+    public static PageCursor cursorAfter(final SearchType.Type searchType, final Book book) {
+        return PageCursor.after(sortValue(searchType, book), book.getId());
+    }
+
+    public static PageCursor cursorBefore(final SearchType.Type searchType, final Book book) {
+        return PageCursor.before(sortValue(searchType, book), book.getId());
+    }
+
+    private static String sortValue(final SearchType.Type searchType, final Book book) {
+        switch (searchType) {
+            case ANY:            return book.getId();
+            case ISBN:           return book.getISBN();
+            case TITLE:          return Book.normalizeSearchValue(book.getTitle());
+            case AUTHOR:         return Book.normalizeSearchValue(book.getAuthor());
+            case PUBLISHER_CODE: return book.getPublisher().getCode();
+            default: throw new IllegalArgumentException(
+                    "Keyset pagination is not supported for search type: " + searchType.type());
+        }
+    }
+
+    /**
+     * @return the publisher, or null if not found. Ids of found publishers are cached by the {@link PublisherCodeCache}
+     */
     public Publisher findPublisherByCode(final String publisherCode) {
-        final String jpql = "select p from %s p where p.code = :code";
-        final QueryParameter qp = QueryParameter.with("code", publisherCode);
-        return RepositoryJPA.findFirstWithQuery(createQuery(jpql, Publisher.class, qp.parameters()));
+        final String code = StringUtil.blankToNull(publisherCode);
+        if(code == null) {
+            return null;
+        }
+        final Function<String, Publisher> byCode = c -> {
+            final QueryParameter qp = QueryParameter.with("code", c);
+            return RepositoryJPA.findFirstWithQuery(
+                    repository.createNamedQuery(BookQueries.PUBLISHER_BY_CODE, Publisher.class, qp.parameters()));
+        };
+        return isIndexed()
+                ? publisherCache.get(code, id -> repository.find(Publisher.class, id), byCode)
+                : byCode.apply(code);
     }
 
     public List<Publisher> findPublishersByName(final String publisherName) {
-        final String jpql = "select p from %s p where p.name like :name";
         final QueryParameter qp = QueryParameter.with("name", publisherName+"%");
-        return RepositoryJPA.findWithQuery(createQuery(jpql, Publisher.class, qp.parameters()), null, null);
+        return RepositoryJPA.findWithQuery(
+                repository.createNamedQuery(BookQueries.PUBLISHERS_BY_NAME, Publisher.class, qp.parameters()), null, null);
     }
 
     public List<Publisher> findPublishers (final Integer offset, final Integer limit) {
         return repository.find(Publisher.class, offset, limit);
     }
-
-    private <T> TypedQuery<T> createQuery(final String queryString, final Class<T> entityClass, final Map<String, Object> parameters) {
-        final String entityName = RepositoryJPA.entityName(entityClass);
-        final String jpql = String.format(queryString, entityName);
-        return repository.createQuery(jpql, entityClass, parameters);
-    }
 }
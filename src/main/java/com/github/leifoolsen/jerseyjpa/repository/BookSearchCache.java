@@ -0,0 +1,124 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>Bounded cache of book search results, see
+ * {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type, String, Integer, Integer)}.</p>
+ * <p>A result is cached as the list of book ids, keyed by search type, normalized search value, offset or cursor,
+ * and limit. A cache hit loads the books by primary key. The cache is segmented, and each segment evicts its least
+ * recently used entries when the cache is full.</p>
+ * <p>Every entry is invalidated when a write of a book or publisher has committed, see
+ * {@link BookSearchCacheListener}. A search running while the write commits does not cache its result, see
+ * {@link #get(List, Function, Supplier)}, so a result read before the commit is never served after it.</p>
+ * <p>Writes by another JVM are not seen. Entries expire after {@value #EXPIRE_AFTER_WRITE_MINUTES} minutes, which
+ * bounds how long such a write may be missed by a search of this JVM.</p>
+ */
+public final class BookSearchCache {
+    private static final Logger logger = LoggerFactory.getLogger(BookSearchCache.class);
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+    private static final long EXPIRE_AFTER_WRITE_MINUTES = 10;
+
+    private static final BookSearchCache INSTANCE = new BookSearchCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final Cache<List<Object>, List<String>> cache;
+
+    /**
+     * Incremented on every invalidation. A result read while the generation changed is not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    BookSearchCache(final long maximumSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    public static BookSearchCache getInstance() {
+        return INSTANCE;
+    }
+
+    static List<Object> key(final SearchType.Type searchType, final String searchValue, final Integer offset, final Integer limit) {
+        return Arrays.asList(searchType, Book.normalizeSearchValue(searchValue), offset, limit);
+    }
+
+    static List<Object> key(final SearchType.Type searchType, final String searchValue, final PageCursor cursor, final int limit) {
+        return Arrays.asList(searchType, Book.normalizeSearchValue(searchValue), cursor != null ? cursor.encode() : null, limit);
+    }
+
+    /**
+     * The result of a search is only cached if no invalidation ran while it searched. An invalidation runs after
+     * the write has committed, so a search that may have read the rows from before the commit sees it.
+     *
+     * @param findByIds loads the books of a cached result, in the order of the ids
+     * @param search searches the database on a cache miss
+     * @return the books found
+     */
+    List<Book> get(final List<Object> key, final Function<List<String>, List<Book>> findByIds, final Supplier<List<Book>> search) {
+        final List<String> ids = cache.getIfPresent(key);
+        if(ids != null) {
+            return findByIds.apply(ids);
+        }
+
+        final long g = generation.get();
+        final List<Book> books = search.get();
+        final List<String> found = new ArrayList<>(books.size());
+        for (Book b : books) {
+            found.add(b.getId());
+        }
+        if(g == generation.get()) {
+            cache.put(key, Collections.unmodifiableList(found));
+
+            // An invalidation may have run between the check and the put
+            if(g != generation.get()) {
+                cache.invalidate(key);
+            }
+        }
+        return books;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Invalidate the cache when the connection starts, so that results from an earlier database are not served.
+     * Register with {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     */
+    public void clear(final EntityManagerFactory emf) {
+        invalidateAll();
+        logger.debug("Search cache cleared");
+    }
+
+    /**
+     * @return hit, miss and eviction counters
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
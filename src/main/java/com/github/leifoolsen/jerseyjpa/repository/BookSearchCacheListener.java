@@ -0,0 +1,15 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+
+/**
+ * Invalidates the {@link BookSearchCache} when a write of a book or publisher has committed. Added to the
+ * connection by {@link BookRepositoryJpa#registerStartListeners}.
+ */
+public class BookSearchCacheListener implements CommitListeners.Listener {
+
+    @Override
+    public void committed(final Object entity, final CommitListeners.Change change) {
+        BookSearchCache.getInstance().invalidateAll();
+    }
+}
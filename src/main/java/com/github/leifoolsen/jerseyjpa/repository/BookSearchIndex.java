@@ -0,0 +1,513 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.LongIntHashMap;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>In-memory trigram inverted index for "contains" searches on books, see
+ * {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type, String, Integer, Integer)}.</p>
+ * <p>Every searchable field of a book (ISBN, title, author, summary, publisher code and publisher name) is
+ * normalized with {@link Book#normalizeSearchValue(String)} and split into trigrams. Each trigram of each field
+ * maps to a sorted posting list of int document ids. A search intersects the posting lists of the trigrams
+ * of the search value, and verifies the candidates against the indexed text. The matching books are sorted
+ * and paged in memory, so the database is only asked for the books of the requested page. Only the normalized
+ * text of a field is kept, and the posting lists are found by their packed trigram in a {@link LongIntHashMap},
+ * so a lookup does not box the trigram.</p>
+ * <p>The index matches and orders as the queries of {@link BookQueries} do on a database that compares strings
+ * by their chars, as H2 does with its default collation: a field matches when its normalized text contains the
+ * normalized search value literally, as <code>like</code> with the wildcards of the value escaped, and matches
+ * are ordered by the normalized text of the search field with {@link String#compareTo(String)}, nulls first,
+ * then by id. On a database with another collation, e.g. a case or accent insensitive one, the database and
+ * the index may disagree on both, and the index should not be used.</p>
+ * <p>The index also maps the numeric ISBN of each book to its document id, see {@link #findBookIdByIsbn(String)}.</p>
+ * <p>The index is kept current with committed writes by {@link BookSearchIndexListener}, and is (re)built from the
+ * database by {@link #rebuild(EntityManagerFactory)} when the connection starts. Until the index is built, or for
+ * search values shorter than {@link #MIN_QUERY_LENGTH}, searches return null and the caller should query the
+ * database. Writes of a transaction are not visible to searches until the transaction has committed, and writes
+ * of a rolled back transaction are never indexed.</p>
+ * <p>There is one index per JVM; it holds the books of the connection that last rebuilt it.</p>
+ */
+public final class BookSearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(BookSearchIndex.class);
+
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    private static final BookSearchIndex INSTANCE = new BookSearchIndex();
+
+    private enum Field { ISBN, TITLE, AUTHOR, SUMMARY, PUBLISHER_CODE, PUBLISHER_NAME }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> docIdsByBookId = new HashMap<>();
+    private final List<Doc> docs = new ArrayList<>();
+    private final LongIntHashMap docIdsByIsbn = new LongIntHashMap();
+    private final Deque<Integer> freeDocIds = new ArrayDeque<>();
+    private final LongIntHashMap postingsByTrigram = new LongIntHashMap();
+    private final List<Postings> postings = new ArrayList<>();
+    private final Deque<Integer> freePostings = new ArrayDeque<>();
+    private volatile boolean ready = false;
+
+    BookSearchIndex() {}
+
+    public static BookSearchIndex getInstance() { return INSTANCE; }
+
+    public boolean isReady() { return ready; }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docIdsByBookId.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the index and read all books from the database. Register with
+     * {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     */
+    public void rebuild(final EntityManagerFactory emf) {
+        final long start = System.currentTimeMillis();
+        final EntityManager em = emf.createEntityManager();
+        try (Stream<Book> books = new RepositoryJPA(() -> em).stream(Book.class, 1000)) {
+            rebuild(books);
+        }
+        finally {
+            em.close();
+        }
+        logger.debug("Search index built with {} books in {} ms", size(), System.currentTimeMillis() - start);
+    }
+
+    void rebuild(final Stream<Book> books) {
+        lock.writeLock().lock();
+        try {
+            clear();
+            books.forEach(this::add);
+            ready = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            docIdsByBookId.clear();
+            docs.clear();
+            docIdsByIsbn.clear();
+            freeDocIds.clear();
+            postingsByTrigram.clear();
+            postings.clear();
+            freePostings.clear();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace a book in the index. Ignored until the index is built.
+     */
+    public void index(final Book book) {
+        if(ready) {
+            lock.writeLock().lock();
+            try {
+                removeDoc(book.getId());
+                add(book);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void remove(final String bookId) {
+        if(ready) {
+            lock.writeLock().lock();
+            try {
+                removeDoc(bookId);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reindex the publisher fields of all books published by the given publisher
+     */
+    public void index(final Publisher publisher) {
+        if(ready) {
+            lock.writeLock().lock();
+            try {
+                for (int docId = 0; docId < docs.size(); docId++) {
+                    final Doc doc = docs.get(docId);
+                    if(doc != null && publisher.getId().equals(doc.publisherId)) {
+                        removePostings(docId, doc);
+                        final Doc updated = new Doc(doc, publisher);
+                        docs.set(docId, updated);
+                        addPostings(docId, updated);
+                    }
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return id of the book with the given ISBN, or null if the ISBN is not indexed or the index is not built.
+     *         The id may be stale, see the class comment
+     */
+    public String findBookIdByIsbn(final String isbn) {
+        final Long isbnNumber = Book.isbnToLong(isbn);
+        if(!ready || isbnNumber == null) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            final int docId = docIdsByIsbn.get(isbnNumber, -1);
+            return docId >= 0 ? docs.get(docId).bookId : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return ids of the books matching the search, in the same order as the database query for the search type,
+     *         or null if the search can not be answered by the index
+     */
+    public List<String> findBookIds(
+            final SearchType.Type searchType, final String searchValue, final Integer offset, final Integer limit) {
+
+        final List<Doc> matches = matches(searchType, searchValue);
+        if(matches == null) {
+            return null;
+        }
+        final int from = Math.min(Math.max(MoreObjects.firstNonNull(offset, 0), 0), matches.size());
+        final int lim = MoreObjects.firstNonNull(limit, 0);
+        final int to = lim > 0 ? Math.min(from + lim, matches.size()) : matches.size();
+        return bookIds(matches.subList(from, to));
+    }
+
+    /**
+     * @return ids of the books matching the search, after or before the cursor, in ascending sort order,
+     *         or null if the search can not be answered by the index.
+     *         See {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type, String, PageCursor, int)}
+     */
+    public List<String> findBookIds(
+            final SearchType.Type searchType, final String searchValue, final PageCursor cursor, final int limit) {
+
+        final List<Doc> matches = matches(searchType, searchValue);
+        if(matches == null) {
+            return null;
+        }
+        int from = 0;
+        int to = matches.size();
+        if(cursor != null) {
+            final Comparator<Doc> order = order(searchType);
+            final Doc position = Doc.position(searchType, cursor);
+            int i = 0;
+            while (i < matches.size() && order.compare(matches.get(i), position) < 0) {
+                i++;
+            }
+            if(cursor.direction() == PageCursor.Direction.BEFORE) {
+                to = i;
+            }
+            else {
+                from = i < matches.size() && order.compare(matches.get(i), position) == 0 ? i + 1 : i;
+            }
+        }
+        if(limit > 0) {
+            if (cursor != null && cursor.direction() == PageCursor.Direction.BEFORE) {
+                from = Math.max(to - limit, 0);
+            }
+            else {
+                to = Math.min(from + limit, to);
+            }
+        }
+        return bookIds(matches.subList(from, to));
+    }
+
+    private List<Doc> matches(final SearchType.Type searchType, final String searchValue) {
+        final String q = Book.normalizeSearchValue(searchValue);
+        if(!ready || q == null || q.length() < MIN_QUERY_LENGTH) {
+            return null;
+        }
+        final Field[] fields = fields(searchType);
+        final List<Doc> matches = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            final boolean[] seen = new boolean[docs.size()];
+            for (Field field : fields) {
+                for (int docId : candidates(field, q)) {
+                    final Doc doc = docs.get(docId);
+                    if(!seen[docId] && doc != null && doc.contains(field, q)) {
+                        seen[docId] = true;
+                        matches.add(doc);
+                    }
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        matches.sort(order(searchType));
+        return matches;
+    }
+
+    private int[] candidates(final Field field, final String q) {
+        final long[] keys = trigrams(field, q);
+        final Postings[] lists = new Postings[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            final int p = postingsByTrigram.get(keys[i], -1);
+            if(p < 0) {
+                return new int[0];
+            }
+            lists[i] = postings.get(p);
+        }
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+
+        final int[] result = new int[lists[0].size];
+        int n = 0;
+        for (int i = 0; i < lists[0].size; i++) {
+            final int docId = lists[0].docIds[i];
+            boolean inAll = true;
+            for (int j = 1; j < lists.length && inAll; j++) {
+                inAll = lists[j].contains(docId);
+            }
+            if(inAll) {
+                result[n++] = docId;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private void add(final Book book) {
+        final Integer free = freeDocIds.poll();
+        final int docId = free != null ? free : docs.size();
+        final Doc doc = new Doc(book);
+        if(docId == docs.size()) {
+            docs.add(doc);
+        }
+        else {
+            docs.set(docId, doc);
+        }
+        docIdsByBookId.put(book.getId(), docId);
+        final Long isbnNumber = Book.isbnToLong(book.getISBN());
+        if(isbnNumber != null) {
+            docIdsByIsbn.put(isbnNumber, docId, -1);
+        }
+        addPostings(docId, doc);
+    }
+
+    private void removeDoc(final String bookId) {
+        final Integer docId = docIdsByBookId.remove(bookId);
+        if(docId != null) {
+            final Doc doc = docs.get(docId);
+            final Long isbnNumber = Book.isbnToLong(doc.text(Field.ISBN));
+            if(isbnNumber != null && docIdsByIsbn.get(isbnNumber, -1) == docId) {
+                docIdsByIsbn.remove(isbnNumber, -1);
+            }
+            removePostings(docId, doc);
+            docs.set(docId, null);
+            freeDocIds.push(docId);
+        }
+    }
+
+    private void addPostings(final int docId, final Doc doc) {
+        for (Field field : Field.values()) {
+            for (long key : trigrams(field, doc.text(field))) {
+                int p = postingsByTrigram.get(key, -1);
+                if(p < 0) {
+                    final Integer free = freePostings.poll();
+                    p = free != null ? free : postings.size();
+                    if(p == postings.size()) {
+                        postings.add(new Postings());
+                    }
+                    else {
+                        postings.set(p, new Postings());
+                    }
+                    postingsByTrigram.put(key, p, -1);
+                }
+                postings.get(p).add(docId);
+            }
+        }
+    }
+
+    private void removePostings(final int docId, final Doc doc) {
+        for (Field field : Field.values()) {
+            for (long key : trigrams(field, doc.text(field))) {
+                final int p = postingsByTrigram.get(key, -1);
+                if(p >= 0 && postings.get(p).remove(docId) && postings.get(p).size == 0) {
+                    postingsByTrigram.remove(key, -1);
+                    postings.set(p, null);
+                    freePostings.push(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * A trigram is packed in a long: field ordinal in the upper 16 bits, then three 16 bit chars
+     */
+    private static long[] trigrams(final Field field, final String text) {
+        if(text == null || text.length() < 3) {
+            return new long[0];
+        }
+        final long[] keys = new long[text.length() - 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) field.ordinal() << 48) |
+                    ((long) text.charAt(i) << 32) |
+                    ((long) text.charAt(i + 1) << 16) |
+                    (long) text.charAt(i + 2);
+        }
+        return Arrays.stream(keys).distinct().toArray();
+    }
+
+    private static Field[] fields(final SearchType.Type searchType) {
+        switch (searchType) {
+            case ANY:            return Field.values();
+            case ISBN:           return new Field[] {Field.ISBN};
+            case TITLE:          return new Field[] {Field.TITLE};
+            case AUTHOR:         return new Field[] {Field.AUTHOR};
+            case SUMMARY:        return new Field[] {Field.SUMMARY};
+            case PUBLISHER_CODE: return new Field[] {Field.PUBLISHER_CODE};
+            case PUBLISHER_NAME: return new Field[] {Field.PUBLISHER_NAME};
+            default: throw new IllegalArgumentException("Unknown search type: " + searchType);
+        }
+    }
+
+    /**
+     * Same order as the search queries in {@link BookQueries}: by the normalized search field, then by id.
+     * ANY is ordered by id.
+     */
+    private static Comparator<Doc> order(final SearchType.Type searchType) {
+        final Comparator<Doc> byId = Comparator.comparing(d -> d.bookId);
+        if(SearchType.Type.ANY == searchType) {
+            return byId;
+        }
+        return Comparator.comparing((Doc d) -> d.sortValue(searchType), Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(byId);
+    }
+
+    private static List<String> bookIds(final List<Doc> docs) {
+        return docs.stream().map(d -> d.bookId).collect(Collectors.toList());
+    }
+
+
+    private static class Doc {
+        private final String bookId;
+        private final String publisherId;
+        private final String[] text = new String[Field.values().length];
+
+        private Doc(final Book book) {
+            bookId = book.getId();
+            publisherId = book.getPublisher() != null ? book.getPublisher().getId() : null;
+            set(Field.ISBN, book.getISBN());
+            set(Field.TITLE, book.getTitle());
+            set(Field.AUTHOR, book.getAuthor());
+            set(Field.SUMMARY, book.getSummary());
+            if(book.getPublisher() != null) {
+                set(Field.PUBLISHER_CODE, book.getPublisher().getCode());
+                set(Field.PUBLISHER_NAME, book.getPublisher().getName());
+            }
+        }
+
+        private Doc(final Doc doc, final Publisher publisher) {
+            bookId = doc.bookId;
+            publisherId = publisher.getId();
+            System.arraycopy(doc.text, 0, text, 0, text.length);
+            set(Field.PUBLISHER_CODE, publisher.getCode());
+            set(Field.PUBLISHER_NAME, publisher.getName());
+        }
+
+        private Doc(final String bookId, final SearchType.Type searchType, final String sortValue) {
+            this.bookId = bookId;
+            this.publisherId = null;
+            if(SearchType.Type.ANY != searchType) {
+                set(fields(searchType)[0], sortValue);
+            }
+        }
+
+        static Doc position(final SearchType.Type searchType, final PageCursor cursor) {
+            return new Doc(cursor.id(), searchType, cursor.value());
+        }
+
+        private void set(final Field field, final String value) {
+            text[field.ordinal()] = Book.normalizeSearchValue(value);
+        }
+
+        String text(final Field field) { return text[field.ordinal()]; }
+
+        String sortValue(final SearchType.Type searchType) { return text(fields(searchType)[0]); }
+
+        boolean contains(final Field field, final String q) {
+            final String t = text(field);
+            return t != null && t.contains(q);
+        }
+    }
+
+
+    /**
+     * Sorted, growable array of document ids
+     */
+    private static class Postings {
+        private int[] docIds = new int[4];
+        private int size = 0;
+
+        void add(final int docId) {
+            int i = Arrays.binarySearch(docIds, 0, size, docId);
+            if(i < 0) {
+                i = -i - 1;
+                if(size == docIds.length) {
+                    docIds = Arrays.copyOf(docIds, size * 2);
+                }
+                System.arraycopy(docIds, i, docIds, i + 1, size - i);
+                docIds[i] = docId;
+                size++;
+            }
+        }
+
+        boolean remove(final int docId) {
+            final int i = Arrays.binarySearch(docIds, 0, size, docId);
+            if(i >= 0) {
+                System.arraycopy(docIds, i + 1, docIds, i, size - i - 1);
+                size--;
+                return true;
+            }
+            return false;
+        }
+
+        boolean contains(final int docId) {
+            return Arrays.binarySearch(docIds, 0, size, docId) >= 0;
+        }
+    }
+}
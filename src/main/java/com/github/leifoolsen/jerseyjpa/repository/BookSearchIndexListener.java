@@ -0,0 +1,27 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+
+/**
+ * Keeps the {@link BookSearchIndex} current with committed writes of {@link Book} and {@link Publisher}.
+ * Added to the connection by {@link BookRepositoryJpa#registerStartListeners}.
+ */
+public class BookSearchIndexListener implements CommitListeners.Listener {
+
+    @Override
+    public void committed(final Object entity, final CommitListeners.Change change) {
+        if(entity instanceof Book) {
+            if(change == CommitListeners.Change.REMOVED) {
+                BookSearchIndex.getInstance().remove(((Book) entity).getId());
+            }
+            else {
+                BookSearchIndex.getInstance().index((Book) entity);
+            }
+        }
+        else if(entity instanceof Publisher && change == CommitListeners.Change.WRITTEN) {
+            BookSearchIndex.getInstance().index((Publisher) entity);
+        }
+    }
+}
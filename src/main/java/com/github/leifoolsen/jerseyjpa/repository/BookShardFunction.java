@@ -0,0 +1,55 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Selects the shard of a book by its ISBN, see {@link ShardedBookRepository}.
+ */
+@FunctionalInterface
+public interface BookShardFunction {
+
+    /**
+     * @param isbn a 13 digit ISBN
+     * @return the shard of the book, from 0 to <code>shardCount - 1</code>
+     */
+    int shardOf(String isbn, int shardCount);
+
+    /**
+     * Spread books evenly by a consistent hash of the ISBN. Adding a shard moves about <code>1/shardCount</code>
+     * of the books, all of them to the new shard
+     */
+    static BookShardFunction hash() {
+        return (isbn, shardCount) -> Hashing.consistentHash(
+                Hashing.murmur3_32().hashString(isbn, StandardCharsets.UTF_8), shardCount);
+    }
+
+    /**
+     * <p>Keep the books of a registration group and publisher together, by ranges of the publisher prefix of the
+     * ISBN, see {@link Book#publisherCodeOf(String)}. Shard 0 holds prefixes less than the first bound, shard
+     * <code>i</code> holds prefixes from bound <code>i - 1</code>, and the last shard holds prefixes from the last
+     * bound.</p>
+     * <p>E.g. <code>prefixRanges("82")</code> puts Norwegian books, registration group 82, on shard 1.</p>
+     *
+     * @param lowerBounds first prefix of every shard but the first, in ascending order. Needs one bound
+     *                    less than the number of shards
+     */
+    static BookShardFunction prefixRanges(final String... lowerBounds) {
+        final String[] bounds = lowerBounds.clone();
+        for (int i = 1; i < bounds.length; i++) {
+            Preconditions.checkArgument(bounds[i - 1].compareTo(bounds[i]) < 0,
+                    "Prefix bounds must be in ascending order: %s", Arrays.toString(bounds));
+        }
+        return (isbn, shardCount) -> {
+            Preconditions.checkArgument(shardCount == bounds.length + 1,
+                    "%s prefix bounds need %s shards, not %s", bounds.length, bounds.length + 1, shardCount);
+
+            final int i = Arrays.binarySearch(bounds, Book.publisherCodeOf(isbn));
+            return i >= 0 ? i + 1 : -(i + 1);
+        };
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.google.common.base.Preconditions;
+
+import java.time.LocalDate;
+
+/**
+ * Immutable copy of a book and its publisher, as cached by {@link BookSnapshotCache}.
+ * A snapshot is never attached to an EntityManager.
+ */
+public final class BookSnapshot {
+    private final String id;
+    private final long version;
+    private final String isbn;
+    private final String title;
+    private final String author;
+    private final LocalDate published;
+    private final String translator;
+    private final String summary;
+    private final String publisherId;
+    private final Long publisherVersion;
+    private final String publisherCode;
+    private final String publisherName;
+
+    private BookSnapshot(final Book book) {
+        final Publisher publisher = book.getPublisher();
+        this.id = book.getId();
+        this.version = book.getVersion();
+        this.isbn = book.getISBN();
+        this.title = book.getTitle();
+        this.author = book.getAuthor();
+        this.published = book.getPublished();
+        this.translator = book.getTranslator();
+        this.summary = book.getSummary();
+        this.publisherId = publisher.getId();
+        this.publisherVersion = publisher.getVersion();
+        this.publisherCode = publisher.getCode();
+        this.publisherName = publisher.getName();
+    }
+
+    public static BookSnapshot of(final Book book) {
+        Preconditions.checkArgument(book != null && book.getVersion() != null, "Book must be persisted");
+        return new BookSnapshot(book);
+    }
+
+    public String getId() { return id; }
+    public long getVersion() { return version; }
+    public String getISBN() { return isbn; }
+
+    /**
+     * @return a new, detached book with the values of this snapshot
+     */
+    public Book toBook() {
+        return Book.with(isbn)
+                .title(title)
+                .author(author)
+                .published(published)
+                .translator(translator)
+                .summary(summary)
+                .publisher(toPublisher())
+                .build(id, version);
+    }
+
+    /**
+     * @return a new, detached publisher with the values of this snapshot
+     */
+    public Publisher toPublisher() {
+        return Publisher.copyOf(publisherId, publisherVersion, publisherCode, publisherName);
+    }
+
+    @Override
+    public String toString() {
+        return "BookSnapshot:{" +
+                "id='" + id + '\'' +
+                ", version=" + version +
+                ", isbn='" + isbn + '\'' +
+                ", title='" + title + '\'' +
+                ", publisher.code='" + publisherCode + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Read-through cache of books by ISBN, see {@link BookRepositoryJpa#findBookSnapshotByISBN(String)}.
+ * Books are cached as immutable {@link BookSnapshot}s.</p>
+ * <p>Writes are checked against the <code>@Version</code> of the book. When a book is written, see
+ * {@link BookSnapshotCacheListener}, its snapshot is replaced by a marker holding the version written. A snapshot
+ * read from the database is only cached if it is at least as new as the marker, or newer than the snapshot
+ * already cached. A snapshot read by a search running while the write is being committed is thereby not cached.
+ * A removed book is marked with a version no snapshot can reach.</p>
+ * <p>Markers of writes that were rolled back expire after {@value #EXPIRE_AFTER_WRITE_MINUTES} minutes.</p>
+ */
+public final class BookSnapshotCache {
+    private static final Logger logger = LoggerFactory.getLogger(BookSnapshotCache.class);
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final long EXPIRE_AFTER_WRITE_MINUTES = 10;
+
+    private static final BookSnapshotCache INSTANCE = new BookSnapshotCache(DEFAULT_MAXIMUM_SIZE);
+
+    /**
+     * A cached snapshot, or a marker of a write when snapshot is null
+     */
+    private static final class Entry {
+        final String id;
+        final long minVersion;
+        final BookSnapshot snapshot;
+
+        Entry(final String id, final long minVersion, final BookSnapshot snapshot) {
+            this.id = id;
+            this.minVersion = minVersion;
+            this.snapshot = snapshot;
+        }
+
+        boolean accepts(final BookSnapshot s) {
+            return snapshot != null
+                    ? s.getVersion() > snapshot.getVersion()
+                    : s.getVersion() >= minVersion;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+
+    /**
+     * ISBN last cached for a book id. Lets a write find the entry of a book whose ISBN is changed
+     */
+    private final ConcurrentMap<String, String> isbnById = new ConcurrentHashMap<>();
+
+    BookSnapshotCache(final long maximumSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                .recordStats()
+                .removalListener((RemovalListener<String, Entry>) n -> {
+                    if(n.getCause() != RemovalCause.REPLACED && n.getValue() != null) {
+                        isbnById.remove(n.getValue().id, n.getKey());
+                    }
+                })
+                .build();
+    }
+
+    public static BookSnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the cached snapshot, or null if the book is not cached
+     */
+    BookSnapshot get(final String isbn) {
+        final Entry e = cache.getIfPresent(isbn);
+        return e != null ? e.snapshot : null;
+    }
+
+    /**
+     * Cache a snapshot read from the database, unless a newer version of the book is cached or being written
+     */
+    void put(final BookSnapshot snapshot) {
+        final Entry entry = new Entry(snapshot.getId(), snapshot.getVersion(), snapshot);
+        cache.asMap().compute(snapshot.getISBN(), (isbn, e) -> e == null || e.accepts(snapshot) ? entry : e);
+        isbnById.put(snapshot.getId(), snapshot.getISBN());
+    }
+
+    /**
+     * A book is persisted or updated
+     */
+    void written(final Book book) {
+        final String previousIsbn = isbnById.put(book.getId(), book.getISBN());
+        if(previousIsbn != null && !previousIsbn.equals(book.getISBN())) {
+            cache.put(previousIsbn, new Entry(book.getId(), Long.MAX_VALUE, null));
+        }
+        cache.put(book.getISBN(), new Entry(book.getId(), book.getVersion() != null ? book.getVersion() : 0, null));
+    }
+
+    /**
+     * A book is removed
+     */
+    void removed(final Book book) {
+        final String previousIsbn = isbnById.remove(book.getId());
+        if(previousIsbn != null && !previousIsbn.equals(book.getISBN())) {
+            cache.put(previousIsbn, new Entry(book.getId(), Long.MAX_VALUE, null));
+        }
+        cache.put(book.getISBN(), new Entry(book.getId(), Long.MAX_VALUE, null));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        isbnById.clear();
+    }
+
+    /**
+     * Invalidate the cache when the connection starts, so that books from an earlier database are not served.
+     * Register with {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     */
+    public void clear(final EntityManagerFactory emf) {
+        invalidateAll();
+        logger.debug("Book snapshot cache cleared");
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+
+/**
+ * Keeps the {@link BookSnapshotCache} current with committed writes of {@link Book} and {@link Publisher}.
+ * Added to the connection by {@link BookRepositoryJpa#registerStartListeners}. Snapshots hold a copy of the
+ * publisher, so all snapshots are invalidated when a publisher is written.
+ */
+public class BookSnapshotCacheListener implements CommitListeners.Listener {
+
+    @Override
+    public void committed(final Object entity, final CommitListeners.Change change) {
+        if(entity instanceof Book) {
+            if(change == CommitListeners.Change.REMOVED) {
+                BookSnapshotCache.getInstance().removed((Book) entity);
+            }
+            else {
+                BookSnapshotCache.getInstance().written((Book) entity);
+            }
+        }
+        else if(entity instanceof Publisher) {
+            BookSnapshotCache.getInstance().invalidateAll();
+        }
+    }
+}
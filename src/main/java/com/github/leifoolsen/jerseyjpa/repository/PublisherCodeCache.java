@@ -0,0 +1,97 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>Cache of publisher ids by publisher code, see {@link BookRepositoryJpa#findPublisherByCode(String)}.</p>
+ * <p>A cache hit loads the publisher by primary key with <code>EntityManager.find</code>, which is served from
+ * the persistence context, or from the second level cache of the JPA provider when enabled, instead of running
+ * the query on the code. Creating and updating books, which looks up the publisher of every book, thereby
+ * stops doing one publisher select per book.</p>
+ * <p>Publishers are rarely written, so every entry is invalidated when a publisher is written, see
+ * {@link PublisherCodeCacheListener}. An id read while the cache is invalidated is not cached.</p>
+ */
+public final class PublisherCodeCache {
+    private static final Logger logger = LoggerFactory.getLogger(PublisherCodeCache.class);
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private static final PublisherCodeCache INSTANCE = new PublisherCodeCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final Cache<String, String> cache;
+
+    /**
+     * Incremented on every invalidation. An id read while the generation changed is not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    PublisherCodeCache(final long maximumSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    public static PublisherCodeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param findById loads the publisher of a cached id
+     * @param findByCode queries the database on a cache miss, or if the cached id is stale
+     * @return the publisher, or null if not found
+     */
+    Publisher get(final String code, final Function<String, Publisher> findById, final Function<String, Publisher> findByCode) {
+        final String id = cache.getIfPresent(code);
+        if(id != null) {
+            final Publisher publisher = findById.apply(id);
+            if(publisher != null && code.equals(publisher.getCode())) {
+                return publisher;
+            }
+            cache.invalidate(code);
+        }
+
+        final long g = generation.get();
+        final Publisher publisher = findByCode.apply(code);
+        if(publisher != null && g == generation.get()) {
+            cache.put(code, publisher.getId());
+
+            // An invalidation may have run between the check and the put
+            if(g != generation.get()) {
+                cache.invalidate(code);
+            }
+        }
+        return publisher;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Invalidate the cache when the connection starts, so that ids from an earlier database are not used.
+     * Register with {@link com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart}.
+     */
+    public void clear(final EntityManagerFactory emf) {
+        invalidateAll();
+        logger.debug("Publisher code cache cleared");
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
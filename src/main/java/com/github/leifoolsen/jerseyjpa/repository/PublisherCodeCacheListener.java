@@ -0,0 +1,16 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.CommitListeners;
+
+/**
+ * Invalidates the {@link PublisherCodeCache} when a {@link Publisher} write is committed. Added to the connection
+ * by {@link BookRepositoryJpa#registerStartListeners}.
+ */
+public class PublisherCodeCacheListener implements CommitListeners.Listener {
+
+    @Override
+    public void committed(final Object entity, final CommitListeners.Change change) {
+        PublisherCodeCache.getInstance().invalidateAll();
+    }
+}
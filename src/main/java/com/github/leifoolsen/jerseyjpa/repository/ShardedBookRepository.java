@@ -0,0 +1,349 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.QueryParameter;
+import com.github.leifoolsen.jerseyjpa.util.Repository;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import com.github.leifoolsen.jerseyjpa.util.StringUtil;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.validation.ConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Books partitioned by ISBN over several persistence units, the shards, see {@link BookShardFunction}.</p>
+ * <ul>
+ *     <li>Writes and lookups by ISBN go to the shard of the book only.</li>
+ *     <li>Searches are scattered to every shard, and the ordered books of each shard are merged, so a page holds
+ *     the same books as if they were in a single database. For a page at <code>offset</code>, every shard returns
+ *     <code>offset + limit</code> books; keyset pagination returns <code>limit</code> books from every shard,
+ *     no matter how deep the page is.</li>
+ * </ul>
+ * <p>Publishers are reference data, stored with the same id in every shard, see {@link #newPublisher(Publisher)}.</p>
+ * <p>The shards need the {@link BookQueries} named queries. The per-JVM indexes and caches of
+ * {@link BookRepositoryJpa} hold the books of a single database, and are not used.</p>
+ * <p>The merge must order strings as the shards do, or pages miss and repeat books. The default is
+ * {@link #H2_ORDER}; a database with another collation, or sorting nulls last, needs its own comparator.
+ * Ids are compared by their chars, which is the same in any collation, as ids are UUIDs.</p>
+ * <p>Without an executor, the shards are queried one after another on the caller's EntityManagers. With an
+ * executor, they are queried concurrently, each on its own EntityManager, so a search costs about as much as
+ * the slowest shard. Queries on separate EntityManagers do not see changes the caller has not committed.</p>
+ */
+public class ShardedBookRepository {
+
+    /**
+     * The order of strings in H2 with its default collation: by their chars, nulls first
+     */
+    public static final Comparator<String> H2_ORDER = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+
+    private final List<JpaDatabaseConnectionManager.JpaDatabaseConnection> shards;
+    private final List<Repository> repositories;
+    private final BookShardFunction shardFunction;
+    private final ExecutorService executor;
+    private final Comparator<String> order;
+
+    public ShardedBookRepository(
+            final List<JpaDatabaseConnectionManager.JpaDatabaseConnection> shards, final BookShardFunction shardFunction) {
+        this(shards, shardFunction, null);
+    }
+
+    /**
+     * @param shards the persistence units, in shard order
+     * @param executor runs the queries of a search, one per shard, or null to run them on the calling thread
+     */
+    public ShardedBookRepository(
+            final List<JpaDatabaseConnectionManager.JpaDatabaseConnection> shards, final BookShardFunction shardFunction,
+            final ExecutorService executor) {
+        this(shards, shardFunction, executor, H2_ORDER);
+    }
+
+    /**
+     * @param shards the persistence units, in shard order
+     * @param executor runs the queries of a search, one per shard, or null to run them on the calling thread
+     * @param order the order of strings, including nulls, in an <code>order by</code> of the shards
+     */
+    public ShardedBookRepository(
+            final List<JpaDatabaseConnectionManager.JpaDatabaseConnection> shards, final BookShardFunction shardFunction,
+            final ExecutorService executor, final Comparator<String> order) {
+
+        Preconditions.checkArgument(shards != null && !shards.isEmpty(), "At least one shard is needed");
+        this.shards = new ArrayList<>(shards);
+        this.repositories = this.shards.stream().map(RepositoryJPA::new).collect(Collectors.toList());
+        this.shardFunction = Preconditions.checkNotNull(shardFunction, "Shard function may not be null");
+        this.executor = executor;
+        this.order = Preconditions.checkNotNull(order, "Order may not be null");
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @return the shard of the book with the given ISBN
+     */
+    public int shardOf(final String isbn) {
+        final String s = Preconditions.checkNotNull(StringUtil.blankToNull(isbn), "ISBN may not be blank");
+        final int shard = shardFunction.shardOf(s, shards.size());
+        Preconditions.checkState(shard >= 0 && shard < shards.size(),
+                "Shard %s of ISBN %s is not one of %s shards", shard, s, shards.size());
+        return shard;
+    }
+
+    /**
+     * Create the publisher in every shard, with the same id. Each shard is written in its own transaction.
+     * A shard that already holds the id is updated with the code and name of the publisher, so a call that
+     * failed half-way can be repeated with the same publisher to complete the remaining shards.
+     *
+     * @return the publisher of shard 0
+     */
+    public Publisher newPublisher(final Publisher publisher) {
+        Preconditions.checkNotNull(publisher, "Publisher may not be null");
+        final List<Publisher> stored = repositories.stream()
+                .map(repository -> storePublisher(repository, publisher))
+                .collect(Collectors.toList());
+        return stored.get(0);
+    }
+
+    private static Publisher storePublisher(final Repository repository, final Publisher publisher) {
+        final Publisher existing = repository.find(Publisher.class, publisher.getId());
+        if(existing == null) {
+            return repository.persist(Publisher.copyOf(publisher.getId(), null, publisher.getCode(), publisher.getName()));
+        }
+        if(Objects.equals(existing.getCode(), publisher.getCode()) && Objects.equals(existing.getName(), publisher.getName())) {
+            return existing;
+        }
+        return repository.merge(
+                Publisher.copyOf(existing.getId(), existing.getVersion(), publisher.getCode(), publisher.getName()));
+    }
+
+    /**
+     * @return the publisher, or null if not found
+     */
+    public Publisher findPublisherByCode(final String publisherCode) {
+        final String code = StringUtil.blankToNull(publisherCode);
+        if(code == null) {
+            return null;
+        }
+        final QueryParameter qp = QueryParameter.with("code", code);
+        return RepositoryJPA.findFirstWithQuery(
+                repositories.get(0).createNamedQuery(BookQueries.PUBLISHER_BY_CODE, Publisher.class, qp.parameters()));
+    }
+
+    /**
+     * Create the book in the shard of its ISBN. The publisher may come from any shard.
+     */
+    public Book newBook(final Book book) {
+        final Repository repository = repositories.get(shardOf(book.getISBN()));
+        return repository.persist(withPublisherOf(repository, book));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ISBN of the book is changed to an ISBN of another shard.
+     *                                  Books are not moved between shards
+     */
+    public Book updateBook(final Book book) {
+        if(book.getId() == null) {
+            throw new ConstraintViolationException("Can not update book with id = null", null);
+        }
+        final int shard = shardOf(book.getISBN());
+        final Repository repository = repositories.get(shard);
+        if(repository.find(Book.class, book.getId()) == null) {
+            for (int i = 0; i < repositories.size(); i++) {
+                if(i != shard && repositories.get(i).find(Book.class, book.getId()) != null) {
+                    throw new IllegalArgumentException(String.format(
+                            "Can not move book %s from shard %s to shard %s", book.getId(), i, shard));
+                }
+            }
+        }
+        return repository.merge(withPublisherOf(repository, book));
+    }
+
+    public void deleteBook(final Book book) {
+        repositories.get(shardOf(book.getISBN())).remove(Book.class, book.getId());
+    }
+
+    /**
+     * @return the book, or null if not found
+     */
+    public Book findBookByISBN(final String isbn) {
+        final String s = StringUtil.blankToNull(isbn);
+        final Long isbnNumber = Book.isbnToLong(s);
+        if(isbnNumber == null) {
+            return null;
+        }
+        final QueryParameter qp = QueryParameter.with("isbnNumber", isbnNumber);
+        return RepositoryJPA.findFirstWithQuery(repositories.get(shardOf(s))
+                .createNamedQuery(BookQueries.BOOK_BY_ISBN, Book.class, qp.parameters()));
+    }
+
+    public Long countBooks() {
+        return scatter(r -> r.count(Book.class)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Offset pagination across the shards, see {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type,
+     * String, Integer, Integer)}. Books with the same value of the search field are ordered by id.
+     */
+    public List<Book> findBooksBySearchType(
+            final SearchType.Type searchType, final String searchValue, final Integer offset, final Integer limit) {
+
+        final int from = Math.max(MoreObjects.firstNonNull(offset, 0), 0);
+        final Integer max = MoreObjects.firstNonNull(limit, 0) > 0 ? from + limit : null;
+
+        final Map<String, Object> parameters = new HashMap<>();
+        final BookQueries.Match match = BookRepositoryJpa.searchParameters(searchValue, parameters);
+
+        final List<Book> books = merge(searchType, scatter(r -> {
+            if(SearchType.Type.ANY == searchType && match != null) {
+                return BookRepositoryJpa.findBooksByIds(r,
+                        BookAnySearch.getInstance().findBookIds(r.getEntityManager(), match, parameters, null, max));
+            }
+            final String queryName = BookRepositoryJpa.supportsCursor(searchType)
+                    ? BookQueries.seekByType(searchType, match, null)
+                    : BookQueries.searchByType(searchType, match);
+            return RepositoryJPA.findWithQuery(r.createNamedQuery(queryName, Book.class, parameters), null, max);
+        }));
+
+        return new ArrayList<>(books.subList(Math.min(from, books.size()),
+                max != null ? Math.min(max, books.size()) : books.size()));
+    }
+
+    /**
+     * Keyset pagination across the shards, see {@link BookRepositoryJpa#findBooksBySearchType(SearchType.Type,
+     * String, PageCursor, int)}
+     *
+     * @return books in ascending sort order
+     */
+    public List<Book> findBooksBySearchType(
+            final SearchType.Type searchType, final String searchValue, final PageCursor cursor, final int limit) {
+
+        Preconditions.checkArgument(BookRepositoryJpa.supportsCursor(searchType),
+                "Keyset pagination is not supported for search type: %s", searchType.type());
+
+        final boolean before = cursor != null && cursor.direction() == PageCursor.Direction.BEFORE;
+        final Map<String, Object> parameters = new HashMap<>();
+        final BookQueries.Match match = BookRepositoryJpa.searchParameters(searchValue, parameters);
+        if(cursor != null && (SearchType.Type.ANY != searchType || match == null)) {
+            if(SearchType.Type.ANY != searchType) {
+                parameters.put("cursorValue", cursor.value());
+            }
+            parameters.put("cursorId", cursor.id());
+        }
+
+        final List<Book> books = merge(searchType, scatter(r -> {
+            if(SearchType.Type.ANY == searchType && match != null) {
+                return BookRepositoryJpa.findBooksByIds(r,
+                        BookAnySearch.getInstance().findBookIds(r.getEntityManager(), match, parameters, cursor, limit));
+            }
+            final String queryName = BookQueries.seekByType(searchType, match, cursor != null ? cursor.direction() : null);
+            final List<Book> shardBooks = RepositoryJPA.findWithQuery(
+                    r.createNamedQuery(queryName, Book.class, parameters), null, limit);
+            return before ? Lists.reverse(shardBooks) : shardBooks;
+        }));
+
+        return new ArrayList<>(before
+                ? books.subList(Math.max(books.size() - limit, 0), books.size())
+                : books.subList(0, Math.min(limit, books.size())));
+    }
+
+    /**
+     * The publisher of a book is a reference to the publisher with the same id in the shard of the book
+     */
+    private static Book withPublisherOf(final Repository repository, final Book book) {
+        if(book.getPublisher() == null || book.getPublisher().getId() == null) {
+            return book;
+        }
+        return Book.with(book, true)
+                .translator(book.getTranslator())
+                .publisher(repository.getReference(Publisher.class, book.getPublisher().getId()))
+                .build(book.getId(), book.getVersion());
+    }
+
+    /**
+     * @return the result of the query on every shard, in shard order
+     */
+    private <T> List<T> scatter(final Function<Repository, T> query) {
+        if(executor == null) {
+            return repositories.stream().map(query).collect(Collectors.toList());
+        }
+
+        final List<Future<T>> futures = new ArrayList<>(shards.size());
+        try {
+            for (JpaDatabaseConnectionManager.JpaDatabaseConnection shard : shards) {
+                final EntityManagerFactory emf = shard.entityManagerFactory();
+                futures.add(executor.submit(() -> {
+                    final EntityManager em = PersistenceProperties.readOnly(emf.createEntityManager());
+                    try {
+                        return query.apply(new RepositoryJPA(() -> em));
+                    }
+                    finally {
+                        em.close();
+                    }
+                }));
+            }
+            final List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while searching books", e);
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new PersistenceException("Could not search books", e.getCause());
+        }
+        finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * @param shardBooks books of each shard, ordered by the search field and id
+     * @return the books of every shard, ordered by the search field and id
+     */
+    private List<Book> merge(final SearchType.Type searchType, final List<List<Book>> shardBooks) {
+        final Comparator<Book> byId = Comparator.comparing(Book::getId);
+        final Comparator<Book> bookOrder = SearchType.Type.ANY == searchType
+                ? byId
+                : Comparator.comparing((Book b) -> orderValue(searchType, b), order).thenComparing(byId);
+
+        return Lists.newArrayList(Iterables.mergeSorted(shardBooks, bookOrder));
+    }
+
+    private static String orderValue(final SearchType.Type searchType, final Book book) {
+        switch (searchType) {
+            case ISBN:           return book.getISBN();
+            case TITLE:          return Book.normalizeSearchValue(book.getTitle());
+            case AUTHOR:         return Book.normalizeSearchValue(book.getAuthor());
+            case SUMMARY:        return Book.normalizeSearchValue(book.getSummary());
+            case PUBLISHER_CODE: return book.getPublisher().getCode();
+            case PUBLISHER_NAME: return Book.normalizeSearchValue(book.getPublisher().getName());
+            default:             return book.getId();
+        }
+    }
+}
@@ -6,12 +6,19 @@ import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
 import com.github.leifoolsen.jerseyjpa.exception.ApplicationException;
 import com.github.leifoolsen.jerseyjpa.repository.BookRepositoryJpa;
+import com.github.leifoolsen.jerseyjpa.repository.BookSearchCache;
+import com.github.leifoolsen.jerseyjpa.repository.BookSnapshot;
 import com.github.leifoolsen.jerseyjpa.rest.dto.BookDTO;
 import com.github.leifoolsen.jerseyjpa.rest.interceptor.Compress;
 import com.github.leifoolsen.jerseyjpa.util.CollectionJson;
+import com.github.leifoolsen.jerseyjpa.util.ConnectionPool;
 import com.github.leifoolsen.jerseyjpa.util.DatabaseConnection;
 import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.RoutingDatabaseConnection;
+import com.github.leifoolsen.jerseyjpa.util.SharedCacheStatistics;
 import com.github.leifoolsen.jerseyjpa.util.StringUtil;
+import com.google.common.cache.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +40,7 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import java.util.Map;
 
 @Singleton
 @Path(BookResource.RESOURCE_PATH)
@@ -42,7 +50,7 @@ public class BookResource {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private JpaDatabaseConnectionManager.JpaDatabaseConnection connection = DatabaseConnection.getConnection();
+    private RoutingDatabaseConnection connection = DatabaseConnection.getConnection();
     private BookRepositoryJpa repository = new BookRepositoryJpa(connection);
 
     private UriInfo uriInfo; // actual uri info provided by parent resource (threadsafe)
@@ -137,15 +145,8 @@ public class BookResource {
     @Path("{isbn}")
     public Response byIsbn(@Isbn @PathParam("isbn") final String isbn) {
 
-        final Book book = repository.findBookByISBN(isbn);
-        if (book == null) {
-            throw new WebApplicationException("Book with isbn: '"+ isbn + "' was not found",
-                    Response.status(Response.Status.NOT_FOUND)
-                            .location(uriInfo.getRequestUri())
-                            .build()
-            );
-        }
-        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, book);
+        final BookSnapshot book = bookSnapshot(isbn);
+        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, book.toBook());
         return Response
                 .ok(collectionJson)
                 .location(uriInfo.getRequestUri())
@@ -155,8 +156,8 @@ public class BookResource {
     @GET
     @Path("{isbn}/publisher")
     public Response publisherOfBook(@Isbn @PathParam("isbn") final String isbn) {
-        final Book book = repository.findBookByISBN(isbn);
-        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, book.getPublisher());
+        final BookSnapshot book = bookSnapshot(isbn);
+        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, book.toPublisher());
         return Response
                 .ok(collectionJson)
                 .location(uriInfo.getRequestUri())
@@ -165,13 +166,87 @@ public class BookResource {
 
     @GET
     @Compress
-    public Response allBooks(@QueryParam("offset") Integer offset, @QueryParam("limit") Integer limit) {
+    public Response allBooks(
+            @QueryParam("offset") Integer offset,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("cursor") String cursor) {
         // Calling SearchResource directly is a hack, I think, but don't know how to do it otherwise
         // @GET'ing like this: "/books/search" will hit the byIsbn method,
         // so this method is needed to get all items without searchparams.
 
         String q = uriInfo.getQueryParameters().getFirst("q");
-        return resourceContext.getResource(SearchResource.class).allBooks(SearchType.Type.ANY.type(), q, offset, limit);
+        return resourceContext.getResource(SearchResource.class).allBooks(SearchType.Type.ANY.type(), q, offset, limit, cursor);
+    }
+
+    @GET
+    @Compress
+    @Path("search/" + SearchResource.FULLTEXT)
+    public Response fullText(
+            @QueryParam("q") String q,
+            @QueryParam("offset") Integer offset,
+            @QueryParam("limit") Integer limit) {
+
+        return resourceContext.getResource(SearchResource.class).fullText(q, offset, limit);
+    }
+
+    /**
+     * Hit, miss and eviction counters of the search result cache, one <code>name=value</code> per line
+     */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("search/cache")
+    public String searchCacheStats() {
+        final BookSearchCache cache = BookSearchCache.getInstance();
+        final CacheStats stats = cache.stats();
+        return "hits=" + stats.hitCount() + "\n" +
+                "misses=" + stats.missCount() + "\n" +
+                "evictions=" + stats.evictionCount() + "\n" +
+                "size=" + cache.size() + "\n";
+    }
+
+    /**
+     * Hit and miss counters of the shared cache of the JPA provider, and the hit ratio, one <code>name=value</code>
+     * per line. Empty unless the "cached" persistence profile is used, see {@link PersistenceProperties#PROFILE}
+     */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("cache")
+    public String sharedCacheStats() {
+        final Map<String, Long> counters = SharedCacheStatistics.of(connection.get());
+        final StringBuilder sb = new StringBuilder();
+        counters.forEach((name, value) -> sb.append(name).append('=').append(value).append('\n'));
+        if(counters.containsKey("cacheHits")) {
+            sb.append("hitRatio=")
+                    .append(SharedCacheStatistics.hitRatio(counters.get("cacheHits"), counters.get("cacheMisses")))
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Active, idle and waiting connections of the connection pool, one <code>name=value</code> per line.
+     * Gauges of the read replica pool, if any, are prefixed with <code>replica.</code>.
+     * Empty if the connections are not pooled by {@link ConnectionPool}
+     */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("pool")
+    public String connectionPoolStats() {
+        final StringBuilder sb = new StringBuilder();
+        appendPoolStats(sb, "", connection.primary());
+        if(connection.replica() != null) {
+            appendPoolStats(sb, "replica.", connection.replica());
+        }
+        return sb.toString();
+    }
+
+    private static void appendPoolStats(
+            final StringBuilder sb, final String prefix, final JpaDatabaseConnectionManager.JpaDatabaseConnection connection) {
+
+        final ConnectionPool pool = connection.connectionPool();
+        if(pool != null) {
+            pool.stats().forEach((name, value) -> sb.append(prefix).append(name).append('=').append(value).append('\n'));
+        }
     }
 
     @Path("search/{searchType}")
@@ -194,6 +269,18 @@ public class BookResource {
     }
 
 
+    private BookSnapshot bookSnapshot(final String isbn) {
+        final BookSnapshot book = repository.findBookSnapshotByISBN(isbn);
+        if (book == null) {
+            throw new WebApplicationException("Book with isbn: '"+ isbn + "' was not found",
+                    Response.status(Response.Status.NOT_FOUND)
+                            .location(uriInfo.getRequestUri())
+                            .build()
+            );
+        }
+        return book;
+    }
+
     private Publisher lookupPublisher(final String publisherCode) {
         Publisher publisher = null;
         String p = StringUtil.blankToNull(publisherCode);
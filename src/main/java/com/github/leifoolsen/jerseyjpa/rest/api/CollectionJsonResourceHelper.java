@@ -110,10 +110,15 @@ public class CollectionJsonResourceHelper {
 
             CollectionJson.Query q = new CollectionJson.Query(
                     "search", builder.clone().path(t.type()).build().toString(), "Search " + t.type());
-            q.addQueryData("q", "").addQueryData("offset", "").addQueryData("limit", "");
+            q.addQueryData("q", "").addQueryData("offset", "").addQueryData("limit", "").addQueryData("cursor", "");
             queryList.add(q);
         }
 
+        CollectionJson.Query fullText = new CollectionJson.Query(
+                "search", builder.clone().path(SearchResource.FULLTEXT).build().toString(), "Search " + SearchResource.FULLTEXT);
+        fullText.addQueryData("q", "").addQueryData("offset", "").addQueryData("limit", "");
+        queryList.add(fullText);
+
         return queryList;
     }
 }
@@ -2,11 +2,13 @@ package com.github.leifoolsen.jerseyjpa.rest.api;
 
 import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
 import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.exception.ApplicationException;
 import com.github.leifoolsen.jerseyjpa.repository.BookRepositoryJpa;
 import com.github.leifoolsen.jerseyjpa.rest.interceptor.Compress;
 import com.github.leifoolsen.jerseyjpa.util.CollectionJson;
 import com.github.leifoolsen.jerseyjpa.util.DatabaseConnection;
-import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.RoutingDatabaseConnection;
 import com.google.common.base.MoreObjects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,8 +31,9 @@ import java.util.List;
 public class SearchResource {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private static final int DEFAULT_LIMIT = 20;
+    public static final String FULLTEXT = "fulltext";
 
-    private JpaDatabaseConnectionManager.JpaDatabaseConnection connection = DatabaseConnection.getConnection();
+    private RoutingDatabaseConnection connection = DatabaseConnection.getConnection();
     private BookRepositoryJpa repository = new BookRepositoryJpa(connection);
 
     private UriInfo uriInfo;
@@ -40,21 +43,23 @@ public class SearchResource {
         logger.debug(this.getClass().getSimpleName() + " created");
     }
 
+    /**
+     * <p>Search books. Pages are linked with an opaque <code>cursor</code> (keyset pagination) for search types
+     * sorted by a non null field. The <code>offset</code> form is kept for backward compatibility; if an offset
+     * is given, or the search type does not support a cursor, pages are linked with offset.</p>
+     */
     @GET
     @Compress  // Client send request with "Accept-Encoding: gzip" - so annotation is not required
     public Response allBooks(
             @SearchType @PathParam("searchType") final String searchType,
             @QueryParam("q") final String searchValue,
             @QueryParam("offset") final Integer offset,
-            @QueryParam("limit") final Integer limit) {
+            @QueryParam("limit") final Integer limit,
+            @QueryParam("cursor") final String cursor) {
 
-        Integer off = Math.max(MoreObjects.firstNonNull(offset, 0), 0);            // At least zero
+        final SearchType.Type type = SearchType.Type.get(searchType);
         Integer lim = Math.max(MoreObjects.firstNonNull(limit, DEFAULT_LIMIT), 1); // Greater than zero
 
-        List<Book> books = repository.findBooksBySearchType(SearchType.Type.get(searchType), searchValue, off, lim);
-
-        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, books);
-
         UriBuilder rootUriBuilder = CollectionJsonResourceHelper
                 .resourceRootUriBuilder(uriInfo)
                 .path("search")
@@ -63,6 +68,81 @@ public class SearchResource {
         if(searchValue != null) {
             rootUriBuilder.queryParam("q", searchValue);
         }
+
+        final CollectionJson collectionJson;
+        if(offset == null && BookRepositoryJpa.supportsCursor(type)) {
+            collectionJson = booksByCursor(type, searchValue, decodeCursor(cursor), lim, rootUriBuilder);
+        }
+        else {
+            collectionJson = booksByOffset(type, searchValue, offset, lim, rootUriBuilder);
+        }
+        return Response
+                .ok(collectionJson)
+                .location(uriInfo.getRequestUri())
+                .build();
+    }
+
+    /**
+     * <p>Ranked full-text search over title, author and summary. Books are ordered by relevance,
+     * and pages are linked with offset. The full-text index is kept by the primary only, so the search never
+     * goes to the read replica.</p>
+     */
+    public Response fullText(final String query, final Integer offset, final Integer limit) {
+        connection.readFromPrimary();
+        final Integer lim = Math.max(MoreObjects.firstNonNull(limit, DEFAULT_LIMIT), 1);
+        final Integer off = Math.max(MoreObjects.firstNonNull(offset, 0), 0);
+
+        // Read one extra book to know if there is a page beyond this one
+        List<Book> books;
+        try {
+            books = repository.findBooksByFullText(query, off, lim + 1);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ApplicationException(Response.Status.BAD_REQUEST.getStatusCode(), null, e.getMessage(), null, e);
+        }
+        catch (UnsupportedOperationException e) {
+            throw new ApplicationException(Response.Status.NOT_IMPLEMENTED.getStatusCode(), null, e.getMessage(), null, e);
+        }
+        final UriBuilder rootUriBuilder = CollectionJsonResourceHelper
+                .resourceRootUriBuilder(uriInfo)
+                .path("search")
+                .path(FULLTEXT)
+                .queryParam("q", query);
+
+        final boolean more = books.size() > lim;
+        if(more) {
+            books = books.subList(0, lim);
+        }
+
+        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, books);
+        if(off > 0) {
+            collectionJson.collection().addLink(
+                    "prev", rootUriBuilder.clone()
+                            .queryParam("offset", Math.max(off - lim, 0))
+                            .queryParam("limit", lim).toString());
+        }
+        if(more) {
+            collectionJson.collection().addLink(
+                    "next", rootUriBuilder.clone()
+                            .queryParam("offset", off + lim)
+                            .queryParam("limit", lim).toString());
+        }
+        return Response
+                .ok(collectionJson)
+                .location(uriInfo.getRequestUri())
+                .build();
+    }
+
+    private CollectionJson booksByOffset(
+            final SearchType.Type type, final String searchValue, final Integer offset, final Integer lim,
+            final UriBuilder rootUriBuilder) {
+
+        Integer off = Math.max(MoreObjects.firstNonNull(offset, 0), 0);            // At least zero
+
+        List<Book> books = repository.findBooksBySearchType(type, searchValue, off, lim);
+
+        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, books);
+
         if(off > 0) {
             int pOffset = Math.max(off - lim, 0);
             collectionJson.collection().addLink(
@@ -77,10 +157,48 @@ public class SearchResource {
                             .queryParam("offset", nOffset)
                             .queryParam("limit", lim).toString());
         }
-        return Response
-                .ok(collectionJson)
-                .location(uriInfo.getRequestUri())
-                .build();
+        return collectionJson;
+    }
+
+    private CollectionJson booksByCursor(
+            final SearchType.Type type, final String searchValue, final PageCursor cursor, final Integer lim,
+            final UriBuilder rootUriBuilder) {
+
+        // Read one extra book to know if there is a page beyond this one
+        List<Book> books = repository.findBooksBySearchType(type, searchValue, cursor, lim + 1);
+        final boolean before = cursor != null && cursor.direction() == PageCursor.Direction.BEFORE;
+        final boolean more = books.size() > lim;
+        if(more) {
+            books = before ? books.subList(1, books.size()) : books.subList(0, lim);
+        }
+
+        CollectionJson collectionJson = CollectionJsonResourceHelper.buildCollectionJson(uriInfo, books);
+
+        if(!books.isEmpty()) {
+            final boolean hasPrev = before ? more : cursor != null;
+            final boolean hasNext = before || more;
+            if(hasPrev) {
+                collectionJson.collection().addLink(
+                        "prev", rootUriBuilder.clone()
+                                .queryParam("cursor", BookRepositoryJpa.cursorBefore(type, books.get(0)).encode())
+                                .queryParam("limit", lim).toString());
+            }
+            if(hasNext) {
+                collectionJson.collection().addLink(
+                        "next", rootUriBuilder.clone()
+                                .queryParam("cursor", BookRepositoryJpa.cursorAfter(type, books.get(books.size()-1)).encode())
+                                .queryParam("limit", lim).toString());
+            }
+        }
+        return collectionJson;
     }
 
+    private static PageCursor decodeCursor(final String cursor) {
+        try {
+            return PageCursor.decode(cursor);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ApplicationException(Response.Status.BAD_REQUEST.getStatusCode(), null, e.getMessage(), null, e);
+        }
+    }
 }
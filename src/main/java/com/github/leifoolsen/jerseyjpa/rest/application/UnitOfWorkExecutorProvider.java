@@ -0,0 +1,31 @@
+package com.github.leifoolsen.jerseyjpa.rest.application;
+
+import com.github.leifoolsen.jerseyjpa.util.DatabaseConnection;
+import com.github.leifoolsen.jerseyjpa.util.UnitOfWorkExecutor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.glassfish.jersey.spi.RequestExecutorProvider;
+
+import javax.ws.rs.ext.Provider;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The executor of <code>@ManagedAsync</code> resource methods. The request thread hands its unit of work, begun
+ * by {@link com.github.leifoolsen.jerseyjpa.rest.filter.JpaFilter}, over to the thread running the resource method,
+ * and the unit of work ends when the response completes. The connection is looked up when a task is submitted,
+ * as the filter may start it after the executor is created.
+ */
+@Provider
+public class UnitOfWorkExecutorProvider implements RequestExecutorProvider {
+
+    @Override
+    public ExecutorService getRequestingExecutor() {
+        return new UnitOfWorkExecutor(DatabaseConnection::getConnection, Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("jersey-managed-async-%d").setDaemon(true).build()));
+    }
+
+    @Override
+    public void releaseRequestingExecutor(final ExecutorService executor) {
+        executor.shutdownNow();
+    }
+}
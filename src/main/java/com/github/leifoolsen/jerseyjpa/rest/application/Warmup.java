@@ -0,0 +1,120 @@
+package com.github.leifoolsen.jerseyjpa.rest.application;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.repository.BookQueries;
+import com.github.leifoolsen.jerseyjpa.repository.BookRepositoryJpa;
+import com.github.leifoolsen.jerseyjpa.repository.PublisherCodeCache;
+import com.github.leifoolsen.jerseyjpa.rest.api.BookResource;
+import com.github.leifoolsen.jerseyjpa.rest.api.SearchResource;
+import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.UriBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Warm-up of the application before it reports started, so that the first requests after a deploy
+ * do not pay for metamodel initialization, JPQL parsing, statement preparation, empty caches and the
+ * build of the MOXy JAXB context.</p>
+ * <ul>
+ *     <li>{@link #database(JpaDatabaseConnectionManager.JpaDatabaseConnection)} executes the named queries
+ *     and primes the caches, run by the JPA filter when the connection is started</li>
+ *     <li>{@link #roundTrips(URI)} runs read-only requests to {@link BookResource} and {@link SearchResource},
+ *     run by {@link com.github.leifoolsen.jerseyjpa.embeddedjetty.JettyFactory#start(org.eclipse.jetty.server.Server,
+ *     java.util.function.Consumer)} before the connectors of Jetty are opened</li>
+ * </ul>
+ * <p>The time of each phase is logged. A failing phase is logged and does not stop the application.</p>
+ */
+public final class Warmup {
+    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+    private static final String SEARCH_VALUE = "a";
+    private static final int LIMIT = 10;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private Warmup() {}
+
+    public static void database(final JpaDatabaseConnectionManager.JpaDatabaseConnection connection) {
+        phase("named queries", () -> inUnitOfWork(connection, () -> BookQueries.executeNamedQueries(connection.get())));
+
+        phase("caches", () -> inUnitOfWork(connection, () -> {
+            final BookRepositoryJpa repository = new BookRepositoryJpa(connection);
+            final List<Publisher> publishers = repository.findPublishers(0, (int) PublisherCodeCache.DEFAULT_MAXIMUM_SIZE);
+            publishers.forEach(p -> repository.findPublisherByCode(p.getCode()));
+            repository.findBooks(0, LIMIT);
+        }));
+    }
+
+    public static void roundTrips(final URI serverUri) {
+        final UriBuilder books = UriBuilder.fromUri(serverUri)
+                .path(JerseyJpaApp.APPLICATION_PATH)
+                .path(BookResource.RESOURCE_PATH);
+
+        phase("book resource", () -> {
+            get(books.clone().queryParam("limit", LIMIT).build());
+            get(books.clone().path("count").build());
+        });
+
+        phase("search resource", () -> {
+            for (SearchType.Type t : SearchType.Type.values()) {
+                if(SearchType.Type.SUMMARY == t) {
+                    continue; // Not searchable through the API, see @SearchType
+                }
+                get(books.clone().path("search").path(t.type()).queryParam("q", SEARCH_VALUE).queryParam("limit", LIMIT).build());
+            }
+            get(books.clone().path("search").path(SearchResource.FULLTEXT).queryParam("q", SEARCH_VALUE).build());
+        });
+    }
+
+    private static void inUnitOfWork(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection connection, final Runnable work) {
+
+        connection.unitOfWork().beginLazily(true);
+        try {
+            work.run();
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+
+    private static void phase(final String name, final Runnable phase) {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            phase.run();
+            logger.info("Warm-up phase '{}' took {} ms", name, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+        catch (RuntimeException e) {
+            logger.warn("Warm-up phase '{}' failed after {} ms", name, stopwatch.elapsed(TimeUnit.MILLISECONDS), e);
+        }
+    }
+
+    private static void get(final URI uri) {
+        try {
+            final HttpURLConnection http = (HttpURLConnection) uri.toURL().openConnection();
+            http.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            http.setReadTimeout(READ_TIMEOUT_MILLIS);
+            http.setRequestProperty("Accept", MediaType.APPLICATION_JSON + ", " + MediaType.TEXT_PLAIN);
+            try (InputStream in = http.getResponseCode() < 400 ? http.getInputStream() : http.getErrorStream()) {
+                if(in != null) {
+                    ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                }
+            }
+            logger.debug("Warm-up GET {}: {}", uri, http.getResponseCode());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Warm-up GET " + uri + " failed", e);
+        }
+    }
+}
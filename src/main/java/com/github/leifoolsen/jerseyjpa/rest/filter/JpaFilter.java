@@ -1,11 +1,16 @@
 package com.github.leifoolsen.jerseyjpa.rest.filter;
 
+import com.github.leifoolsen.jerseyjpa.rest.application.Warmup;
 import com.github.leifoolsen.jerseyjpa.util.DatabaseConnection;
 import com.github.leifoolsen.jerseyjpa.util.DatabasePopulator;
-import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.RoutingDatabaseConnection;
+import com.github.leifoolsen.jerseyjpa.util.UnitOfWorkContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -13,17 +18,26 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 
 @WebFilter(
         urlPatterns = "/api/*",
         filterName = "JPA-Filter",
-        description = "JPA Session in View Filter"
+        description = "JPA Session in View Filter",
+        asyncSupported = true
 )
 public class JpaFilter implements Filter {
 
+    /**
+     * Cookie with the time of the last write of the client, in milliseconds. Set by {@link LastWriteResponseFilter}
+     * and used to read the writes of the client, see {@link RoutingDatabaseConnection}
+     */
+    public static final String LAST_WRITE_COOKIE = "jerseyjpa-last-write";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private JpaDatabaseConnectionManager.JpaDatabaseConnection connection;
+    private RoutingDatabaseConnection connection;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -31,7 +45,9 @@ public class JpaFilter implements Filter {
         connection.start();
 
         // Prepopulate db - for demonstration only. TODO: Use e.g. staging
-        DatabasePopulator.pupulateDb(connection);
+        DatabasePopulator.pupulateDb(connection.primary());
+
+        Warmup.database(connection.primary());
 
         logger.debug("Filter initialized");
     }
@@ -39,13 +55,73 @@ public class JpaFilter implements Filter {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         logger.debug("JerseyJpaFilter, doFilter");
-        connection.unitOfWork().begin();
+        // The EntityManager is created by the first repository call of the request, if any.
+        // GET and HEAD do not write, and get a read-only EntityManager, from the read replica if it is fresh enough
+        // and has applied the last write of the client
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final String method = httpRequest.getMethod();
+        final boolean readOnly = "GET".equals(method) || "HEAD".equals(method);
+        connection.beginLazily(readOnly, readOnly ? lastWriteMillis(httpRequest) : 0);
+        boolean async = false;
         try {
             chain.doFilter(request, response);
+            async = request.isAsyncStarted();
         }
         finally {
-            connection.unitOfWork().end();
+            if(async) {
+                // The response is completed by another thread, continuing the unit of work handed over by
+                // UnitOfWorkExecutorProvider, or by UnitOfWorkContext.wrap for an executor of the resource
+                endOnComplete(request.getAsyncContext(), connection.unitOfWork().detach());
+            }
+            else {
+                connection.unitOfWork().end();
+            }
+        }
+    }
+
+    /**
+     * @return the time of the last write of the client, 0 if none. A cookie that can not be parsed sends
+     *         the reads of the client to the primary
+     */
+    static long lastWriteMillis(final HttpServletRequest request) {
+        final Cookie[] cookies = request.getCookies();
+        if(cookies != null) {
+            for (Cookie c : cookies) {
+                if(LAST_WRITE_COOKIE.equals(c.getName())) {
+                    try {
+                        return Long.parseLong(c.getValue());
+                    }
+                    catch (NumberFormatException e) {
+                        return Long.MAX_VALUE;
+                    }
+                }
+            }
         }
+        return 0;
+    }
+
+    private void endOnComplete(final AsyncContext asyncContext, final UnitOfWorkContext unitOfWork) {
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                unitOfWork.end();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                unitOfWork.end();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                unitOfWork.end();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                event.getAsyncContext().addListener(this);
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,31 @@
+package com.github.leifoolsen.jerseyjpa.rest.filter;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Tells the client when its last write committed, by the {@link JpaFilter#LAST_WRITE_COOKIE} cookie, so that its
+ * following reads wait for the read replica to apply the write. Response filters run after the resource method,
+ * and so after the writes of the request have committed. Clients not keeping cookies may read from a replica that
+ * has not applied their writes. A failed request has written nothing, and does not set the cookie.
+ */
+@Provider
+public class LastWriteResponseFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        final String method = request.getMethod();
+        if(!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)
+                && response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL) {
+            response.getHeaders().add(HttpHeaders.SET_COOKIE, new NewCookie(
+                    JpaFilter.LAST_WRITE_COOKIE, Long.toString(System.currentTimeMillis()),
+                    "/", null, null, NewCookie.DEFAULT_MAX_AGE, false, true));
+        }
+    }
+}
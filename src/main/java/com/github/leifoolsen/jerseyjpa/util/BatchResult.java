@@ -0,0 +1,72 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Outcome of a chunked batch write, see {@link Repository#persist(java.util.Collection, int)}.</p>
+ * <p>Entities from chunks that were flushed and committed are listed in {@link #accepted()}.
+ * Every chunk that failed is reported as a {@link Failure}, holding the entities of that chunk
+ * and the exception that caused the chunk to be rolled back.</p>
+ */
+public class BatchResult<T> {
+    private final List<T> accepted = new ArrayList<>();
+    private final List<Failure<T>> failures = new ArrayList<>();
+
+    BatchResult() {}
+
+    void accepted(final Collection<T> entities) {
+        accepted.addAll(entities);
+    }
+
+    void failed(final int chunkIndex, final Collection<T> entities, final RuntimeException cause) {
+        failures.add(new Failure<>(chunkIndex, entities, cause));
+    }
+
+    public List<T> accepted() {
+        return Collections.unmodifiableList(accepted);
+    }
+
+    public List<Failure<T>> failures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult:{" +
+                "accepted=" + accepted.size() +
+                ", failures=" + failures.size() +
+                '}';
+    }
+
+    public static class Failure<T> {
+        private final int chunkIndex;
+        private final List<T> entities;
+        private final RuntimeException cause;
+
+        private Failure(final int chunkIndex, final Collection<T> entities, final RuntimeException cause) {
+            this.chunkIndex = chunkIndex;
+            this.entities = Collections.unmodifiableList(new ArrayList<>(entities));
+            this.cause = cause;
+        }
+
+        public int chunkIndex() { return chunkIndex; }
+        public List<T> entities() { return entities; }
+        public RuntimeException cause() { return cause; }
+
+        @Override
+        public String toString() {
+            return "Failure:{" +
+                    "chunkIndex=" + chunkIndex +
+                    ", entities=" + entities.size() +
+                    ", cause=" + cause +
+                    '}';
+        }
+    }
+}
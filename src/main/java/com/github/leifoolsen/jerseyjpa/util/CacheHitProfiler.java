@@ -0,0 +1,41 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EclipseLink profiler counting shared cache hits and misses, and nothing else. Unlike
+ * <code>PerformanceMonitor</code> it does not time operations or dump its counters to the log.
+ * Enabled by the "cached" profile of {@link PersistenceProperties}, read by {@link SharedCacheStatistics}.
+ */
+public class CacheHitProfiler extends SessionProfilerAdapter {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Override
+    public void occurred(final String operationName, final AbstractSession session) {
+        count(operationName);
+    }
+
+    @Override
+    public void occurred(final String operationName, final DatabaseQuery query, final AbstractSession session) {
+        count(operationName);
+    }
+
+    private void count(final String operationName) {
+        if(SessionProfiler.CacheHits.equals(operationName)) {
+            hits.increment();
+        }
+        else if(SessionProfiler.CacheMisses.equals(operationName)) {
+            misses.increment();
+        }
+    }
+
+    public long hits() { return hits.sum(); }
+
+    public long misses() { return misses.sum(); }
+}
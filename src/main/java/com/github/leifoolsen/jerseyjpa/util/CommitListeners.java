@@ -0,0 +1,361 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.SessionEventListener;
+import org.eclipse.persistence.sessions.UnitOfWork;
+import org.eclipse.persistence.sessions.server.Server;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.jpa.HibernateEntityManagerFactory;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>Listeners called with the entities written by a transaction, after the transaction has committed.</p>
+ * <p>JPA entity listeners, e.g. <code>@PostPersist</code>, are called when the persistence context is flushed.
+ * An in-memory structure kept current from them shows writes that may still be rolled back, and a rolled back
+ * write is never repaired. A commit listener only gets the writes of committed transactions.</p>
+ * <p>A listener is added to one EntityManagerFactory, e.g. by a start listener of the connection, see
+ * {@link JpaDatabaseConnectionManager.JpaDatabaseConnection#onStart(String, java.util.function.Consumer)}, and
+ * only gets the writes done through that factory. Writes done by another JVM, or by native statements, are not
+ * seen; see {@link #written(EntityManager, Object)} for the latter.</p>
+ * <p>A listener keeping a structure where a write that is rolled back does no harm, e.g. a Bloom filter, may be
+ * called when a write is flushed instead, see {@link #addOnFlush(EntityManagerFactory, Listener, Class[])}, and so
+ * also sees the writes of transactions that have not committed yet.</p>
+ * <p>Supported providers are EclipseLink, using descriptor and unit of work events, and Hibernate, using
+ * post-commit and post-action events.</p>
+ */
+public final class CommitListeners {
+    private static final Logger logger = LoggerFactory.getLogger(CommitListeners.class);
+
+    public enum Change { WRITTEN, REMOVED }
+
+    @FunctionalInterface
+    public interface Listener {
+        void committed(Object entity, Change change);
+    }
+
+    private CommitListeners() {}
+
+    /**
+     * Add a listener for the given entity classes, and their subclasses
+     */
+    public static void add(final EntityManagerFactory emf, final Listener listener, final Class<?>... entityClasses) {
+        Preconditions.checkArgument(entityClasses.length > 0, "No entity classes");
+        dispatcher(emf).add(listener, false, entityClasses);
+    }
+
+    /**
+     * Add a listener called when the given entity classes, and their subclasses, are written to the database,
+     * before the transaction commits. The listener is also called for writes that are rolled back
+     */
+    public static void addOnFlush(final EntityManagerFactory emf, final Listener listener, final Class<?>... entityClasses) {
+        Preconditions.checkArgument(entityClasses.length > 0, "No entity classes");
+        dispatcher(emf).add(listener, true, entityClasses);
+    }
+
+    /**
+     * Pass an entity written by a native statement to the listeners of the EntityManagerFactory: now to the
+     * listeners added by {@link #addOnFlush}, and to the others when the transaction of the EntityManager commits,
+     * or now if the EntityManager is not joined to a transaction
+     */
+    public static void written(final EntityManager em, final Object entity) {
+        final Dispatcher dispatcher = dispatcher(em.getEntityManagerFactory());
+        dispatcher.flushed(entity, Change.WRITTEN);
+
+        if(!em.isJoinedToTransaction()) {
+            dispatcher.dispatch(entity, Change.WRITTEN);
+        }
+        else if(dispatcher instanceof EclipseLink) {
+            ((EclipseLink) dispatcher).pending((Session) em.unwrap(UnitOfWork.class), entity, Change.WRITTEN);
+        }
+        else {
+            ((EventSource) em.unwrap(org.hibernate.Session.class)).getActionQueue().registerProcess(
+                    (AfterTransactionCompletionProcess) (success, session) -> {
+                        if(success) {
+                            dispatcher.dispatch(entity, Change.WRITTEN);
+                        }
+                    });
+        }
+    }
+
+    // The provider is checked by name, so that the classes of a provider are only loaded when it is used
+    private static Dispatcher dispatcher(final EntityManagerFactory emf) {
+        final String name = emf.getClass().getName();
+        if(name.startsWith("org.eclipse.persistence.")) {
+            return EclipseLink.dispatcher(emf);
+        }
+        else if(name.startsWith("org.hibernate.")) {
+            return Hibernate.dispatcher(emf);
+        }
+        throw new UnsupportedOperationException("Commit listeners are not supported for " + name);
+    }
+
+
+    private static class Dispatcher {
+        private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+        private final List<Registration> flushRegistrations = new CopyOnWriteArrayList<>();
+
+        void add(final Listener listener, final boolean onFlush, final Class<?>... entityClasses) {
+            (onFlush ? flushRegistrations : registrations).add(new Registration(listener, entityClasses));
+        }
+
+        /**
+         * @return true if a listener called on commit handles the entity class
+         */
+        boolean handles(final Class<?> entityClass) {
+            return registrations.stream().anyMatch(r -> r.handles(entityClass));
+        }
+
+        void dispatch(final Object entity, final Change change) {
+            dispatch(registrations, entity, change);
+        }
+
+        void flushed(final Object entity, final Change change) {
+            dispatch(flushRegistrations, entity, change);
+        }
+
+        private static void dispatch(final List<Registration> registrations, final Object entity, final Change change) {
+            for (Registration r : registrations) {
+                if(r.handles(entity.getClass())) {
+                    try {
+                        r.listener.committed(entity, change);
+                    }
+                    catch (RuntimeException e) {
+                        // The write is done. Report, and let the other listeners run
+                        logger.error("Commit listener {} failed for {}", r.listener, entity, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Registration {
+        private final Listener listener;
+        private final List<Class<?>> entityClasses;
+
+        private Registration(final Listener listener, final Class<?>... entityClasses) {
+            this.listener = Preconditions.checkNotNull(listener);
+            this.entityClasses = Arrays.asList(entityClasses);
+        }
+
+        boolean handles(final Class<?> entityClass) {
+            return entityClasses.stream().anyMatch(c -> c.isAssignableFrom(entityClass));
+        }
+    }
+
+
+    /**
+     * Writes are collected per unit of work from the descriptor events, and passed on when the unit of work commits.
+     * Every unit of work is released when its transaction ends, after it has committed or rolled back
+     */
+    private static final class EclipseLink extends Dispatcher {
+        private final Map<Session, List<Object[]>> pending = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final List<Class<?>> descriptorClasses = new CopyOnWriteArrayList<>();
+        private final Server server;
+
+        private final DescriptorEventAdapter descriptorListener = new DescriptorEventAdapter() {
+            @Override
+            public void postInsert(final DescriptorEvent event) {
+                written(event.getSession(), event.getSource(), Change.WRITTEN);
+            }
+
+            @Override
+            public void postUpdate(final DescriptorEvent event) {
+                written(event.getSession(), event.getSource(), Change.WRITTEN);
+            }
+
+            @Override
+            public void postDelete(final DescriptorEvent event) {
+                written(event.getSession(), event.getSource(), Change.REMOVED);
+            }
+        };
+
+        private EclipseLink(final Server server) {
+            this.server = server;
+        }
+
+        static synchronized EclipseLink dispatcher(final EntityManagerFactory emf) {
+            final Server server = JpaHelper.getServerSession(emf);
+            for (SessionEventListener l : server.getEventManager().getListeners()) {
+                if(l instanceof EclipseLinkSessionListener) {
+                    return ((EclipseLinkSessionListener) l).dispatcher;
+                }
+            }
+            final EclipseLink dispatcher = new EclipseLink(server);
+            server.getEventManager().addListener(new EclipseLinkSessionListener(dispatcher));
+            return dispatcher;
+        }
+
+        @Override
+        synchronized void add(final Listener listener, final boolean onFlush, final Class<?>... entityClasses) {
+            for (Class<?> c : entityClasses) {
+                for (ClassDescriptor d : server.getDescriptors().values()) {
+                    if(c.isAssignableFrom(d.getJavaClass()) && !descriptorClasses.contains(d.getJavaClass())) {
+                        d.getEventManager().addListener(descriptorListener);
+                        descriptorClasses.add(d.getJavaClass());
+                    }
+                }
+            }
+            super.add(listener, onFlush, entityClasses);
+        }
+
+        private void written(final Session unitOfWork, final Object entity, final Change change) {
+            flushed(entity, change);
+            pending(unitOfWork, entity, change);
+        }
+
+        void pending(final Session unitOfWork, final Object entity, final Change change) {
+            if(handles(entity.getClass())) {
+                pending.computeIfAbsent(unitOfWork, k -> new ArrayList<>()).add(new Object[] {entity, change});
+            }
+        }
+
+        void committed(final Session unitOfWork) {
+            final List<Object[]> writes = pending.remove(unitOfWork);
+            if(writes != null) {
+                for (Object[] w : writes) {
+                    dispatch(w[0], (Change) w[1]);
+                }
+            }
+        }
+
+        void released(final Session unitOfWork) {
+            pending.remove(unitOfWork);
+        }
+    }
+
+    // Added to the server session, and so copied to the event manager of every unit of work
+    private static final class EclipseLinkSessionListener extends SessionEventAdapter {
+        private final EclipseLink dispatcher;
+
+        private EclipseLinkSessionListener(final EclipseLink dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void postCommitUnitOfWork(final SessionEvent event) {
+            dispatcher.committed(event.getSession());
+        }
+
+        @Override
+        public void postReleaseUnitOfWork(final SessionEvent event) {
+            dispatcher.released(event.getSession());
+        }
+    }
+
+
+    /**
+     * Hibernate calls post-commit event listeners after a successful commit, and skips them on rollback.
+     * Post-action event listeners are called when the statement has been executed
+     */
+    private static final class Hibernate extends Dispatcher
+            implements PostCommitInsertEventListener, PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+        private final FlushListener flushListener = new FlushListener();
+
+        static synchronized Hibernate dispatcher(final EntityManagerFactory emf) {
+            final SessionFactoryImplementor sessionFactory =
+                    (SessionFactoryImplementor) ((HibernateEntityManagerFactory) emf).getSessionFactory();
+            final EventListenerRegistry registry =
+                    sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+
+            for (Object l : registry.getEventListenerGroup(EventType.POST_COMMIT_INSERT).listeners()) {
+                if(l instanceof Hibernate) {
+                    return (Hibernate) l;
+                }
+            }
+            final Hibernate dispatcher = new Hibernate();
+            registry.appendListeners(EventType.POST_COMMIT_INSERT, dispatcher);
+            registry.appendListeners(EventType.POST_COMMIT_UPDATE, dispatcher);
+            registry.appendListeners(EventType.POST_COMMIT_DELETE, dispatcher);
+            registry.appendListeners(EventType.POST_INSERT, dispatcher.flushListener);
+            registry.appendListeners(EventType.POST_UPDATE, dispatcher.flushListener);
+            registry.appendListeners(EventType.POST_DELETE, dispatcher.flushListener);
+            return dispatcher;
+        }
+
+        @Override
+        public boolean requiresPostCommitHanding(final EntityPersister persister) {
+            return handles(persister.getMappedClass());
+        }
+
+        @Override
+        public void onPostInsert(final PostInsertEvent event) {
+            dispatch(event.getEntity(), Change.WRITTEN);
+        }
+
+        @Override
+        public void onPostUpdate(final PostUpdateEvent event) {
+            dispatch(event.getEntity(), Change.WRITTEN);
+        }
+
+        @Override
+        public void onPostDelete(final PostDeleteEvent event) {
+            dispatch(event.getEntity(), Change.REMOVED);
+        }
+
+        @Override
+        public void onPostInsertCommitFailed(final PostInsertEvent event) {}
+
+        @Override
+        public void onPostUpdateCommitFailed(final PostUpdateEvent event) {}
+
+        @Override
+        public void onPostDeleteCommitFailed(final PostDeleteEvent event) {}
+
+        private final class FlushListener
+                implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+            @Override
+            public boolean requiresPostCommitHanding(final EntityPersister persister) {
+                return false;
+            }
+
+            @Override
+            public void onPostInsert(final PostInsertEvent event) {
+                flushed(event.getEntity(), Change.WRITTEN);
+            }
+
+            @Override
+            public void onPostUpdate(final PostUpdateEvent event) {
+                flushed(event.getEntity(), Change.WRITTEN);
+            }
+
+            @Override
+            public void onPostDelete(final PostDeleteEvent event) {
+                flushed(event.getEntity(), Change.REMOVED);
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mchange.v2.c3p0.AbstractConnectionCustomizer;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.beans.PropertyVetoException;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Bounded JDBC connection pool handed to the JPA provider as <code>javax.persistence.nonJtaDataSource</code>,
+ * so that EclipseLink and Hibernate share the same pool configuration and gauges. Created and closed by
+ * {@link JpaDatabaseConnectionManager.JpaDatabaseConnection} from the <code>javax.persistence.jdbc.*</code>
+ * properties and the <code>jerseyjpa.pool.*</code> properties below, see
+ * {@link PersistenceProperties#createPropertiesForProvider}.</p>
+ * <p>A request waiting longer than the acquire timeout for a connection fails with an <code>SQLException</code>
+ * instead of queueing without bound. A connection checked out longer than the leak detection threshold is
+ * logged with the thread that checked it out, and left open. Checkouts are tracked by the pool's check-out and
+ * check-in events, so connections are not wrapped, and checked for leaks by a background thread every 10 seconds,
+ * or every threshold if shorter, also when the pool is idle or exhausted. The stack trace of each checkout is
+ * only captured, and logged, if enabled. A connection is only taken back by the pool after the unreturned
+ * connection timeout, which is off unless configured.</p>
+ */
+public class ConnectionPool implements DataSource, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    public static final String MIN_SIZE = "jerseyjpa.pool.min-size";
+    public static final String MAX_SIZE = "jerseyjpa.pool.max-size";
+
+    /**
+     * Milliseconds to wait for a connection when all connections are in use
+     */
+    public static final String ACQUIRE_TIMEOUT = "jerseyjpa.pool.acquire-timeout";
+
+    /**
+     * Seconds a connection may be checked out before it is logged as leaked. 0 disables leak detection
+     */
+    public static final String LEAK_DETECTION_THRESHOLD = "jerseyjpa.pool.leak-detection-threshold";
+
+    /**
+     * If true, the stack trace of every checkout is captured, and logged with a leak. For debugging only,
+     * a stack trace per checkout is expensive
+     */
+    public static final String LEAK_DETECTION_STACK_TRACES = "jerseyjpa.pool.leak-detection-stack-traces";
+
+    /**
+     * Seconds a connection may be checked out before the pool destroys it, and so fails whatever is using it.
+     * 0, the default, never destroys a checked out connection. Must be well above the longest legitimate use of a
+     * connection, e.g. a batch import or a full-text reindex
+     */
+    public static final String UNRETURNED_CONNECTION_TIMEOUT = "jerseyjpa.pool.unreturned-connection-timeout";
+
+    /**
+     * Prepared statements cached per connection. 0 disables the statement cache
+     */
+    public static final String STATEMENT_CACHE_SIZE = "jerseyjpa.pool.statement-cache-size";
+
+    static final String JDBC_DRIVER = "javax.persistence.jdbc.driver";
+    static final String JDBC_URL = "javax.persistence.jdbc.url";
+    static final String JDBC_USER = "javax.persistence.jdbc.user";
+    static final String JDBC_PASSWORD = "javax.persistence.jdbc.password";
+
+    private static final long LEAK_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    // Pools detecting leaks, by the identity token of their data source, see LeakTracker
+    private static final Map<String, ConnectionPool> trackedPools = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService leakDetector = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("connection-pool-leak-detector-%d").setDaemon(true).build());
+
+    private final ComboPooledDataSource dataSource;
+    private final long leakDetectionThresholdMillis;
+    private final boolean leakStackTraces;
+    private final Map<Connection, Checkout> checkouts = new ConcurrentHashMap<>();
+    private final AtomicInteger leaked = new AtomicInteger();
+    private final ScheduledFuture<?> leakCheck;
+
+    private ConnectionPool(
+            final ComboPooledDataSource dataSource, final int leakDetectionThreshold, final boolean leakStackTraces) {
+
+        this.dataSource = dataSource;
+        this.leakDetectionThresholdMillis = TimeUnit.SECONDS.toMillis(leakDetectionThreshold);
+        this.leakStackTraces = leakStackTraces;
+        if(leakDetectionThresholdMillis > 0) {
+            trackedPools.put(dataSource.getIdentityToken(), this);
+            final long interval = Math.min(leakDetectionThresholdMillis, LEAK_CHECK_INTERVAL_MILLIS);
+            leakCheck = leakDetector.scheduleWithFixedDelay(this::logLeaks, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        else {
+            leakCheck = null;
+        }
+    }
+
+    /**
+     * @return true if the properties give a JDBC url to pool connections for
+     */
+    public static boolean isConfigured(final Map<?, ?> properties) {
+        return properties != null && StringUtil.blankToNull((String) properties.get(JDBC_URL)) != null;
+    }
+
+    /**
+     * Create a pool from the <code>javax.persistence.jdbc.*</code> and <code>jerseyjpa.pool.*</code> properties
+     */
+    public static ConnectionPool create(final Properties properties) {
+        final ComboPooledDataSource dataSource = new ComboPooledDataSource();
+        try {
+            dataSource.setDriverClass(properties.getProperty(JDBC_DRIVER));
+        }
+        catch (PropertyVetoException e) {
+            throw new IllegalArgumentException("Could not load JDBC driver " + properties.getProperty(JDBC_DRIVER), e);
+        }
+        dataSource.setJdbcUrl(properties.getProperty(JDBC_URL));
+        dataSource.setUser(properties.getProperty(JDBC_USER));
+        dataSource.setPassword(properties.getProperty(JDBC_PASSWORD));
+
+        final int minSize = intProperty(properties, MIN_SIZE, 1);
+        final int maxSize = intProperty(properties, MAX_SIZE, 10);
+        dataSource.setMinPoolSize(minSize);
+        dataSource.setInitialPoolSize(minSize);
+        dataSource.setMaxPoolSize(maxSize);
+        dataSource.setAcquireIncrement(2);
+        dataSource.setCheckoutTimeout(intProperty(properties, ACQUIRE_TIMEOUT, 5000));
+        dataSource.setMaxIdleTimeExcessConnections(300);
+
+        final int unreturnedConnectionTimeout = intProperty(properties, UNRETURNED_CONNECTION_TIMEOUT, 0);
+        dataSource.setUnreturnedConnectionTimeout(unreturnedConnectionTimeout);
+        dataSource.setDebugUnreturnedConnectionStackTraces(unreturnedConnectionTimeout > 0);
+
+        dataSource.setMaxStatementsPerConnection(intProperty(properties, STATEMENT_CACHE_SIZE, 50));
+
+        final int leakDetectionThreshold = intProperty(properties, LEAK_DETECTION_THRESHOLD, 300);
+        if(leakDetectionThreshold > 0) {
+            dataSource.setConnectionCustomizerClassName(LeakTracker.class.getName());
+        }
+
+        logger.debug("Connection pool created for '{}', size {}-{}", dataSource.getJdbcUrl(), minSize, maxSize);
+        return new ConnectionPool(dataSource, leakDetectionThreshold,
+                Boolean.parseBoolean(properties.getProperty(LEAK_DETECTION_STACK_TRACES)));
+    }
+
+    private static int intProperty(final Properties properties, final String name, final int defaultValue) {
+        final String value = StringUtil.blankToNull(properties.getProperty(name));
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * @return number of connections checked out. Connections are checked in asynchronously, so a connection
+     *         just closed may still be counted
+     */
+    public int active() {
+        try {
+            return dataSource.getNumBusyConnectionsDefaultUser();
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of open connections not checked out
+     */
+    public int idle() {
+        try {
+            return dataSource.getNumIdleConnectionsDefaultUser();
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of threads waiting for a connection. Greater than 0 means the pool is exhausted
+     */
+    public int waiting() {
+        try {
+            return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int maxSize() {
+        return dataSource.getMaxPoolSize();
+    }
+
+    /**
+     * @return number of connections logged as possibly leaked
+     */
+    public int leaked() {
+        return leaked.get();
+    }
+
+    /**
+     * @return the gauges by name: <code>active</code>, <code>idle</code>, <code>waiting</code>, <code>maxSize</code>
+     *         and <code>leaked</code>
+     */
+    public Map<String, Long> stats() {
+        final Map<String, Long> gauges = new LinkedHashMap<>();
+        gauges.put("active", (long) active());
+        gauges.put("idle", (long) idle());
+        gauges.put("waiting", (long) waiting());
+        gauges.put("maxSize", (long) maxSize());
+        gauges.put("leaked", (long) leaked());
+        return gauges;
+    }
+
+    @Override
+    public void close() {
+        if(leakCheck != null) {
+            leakCheck.cancel(false);
+            trackedPools.remove(dataSource.getIdentityToken());
+        }
+        dataSource.close();
+        logger.debug("Connection pool closed for '{}'", dataSource.getJdbcUrl());
+    }
+
+    /**
+     * Log every connection checked out longer than the leak detection threshold, once
+     *
+     * @return number of connections logged
+     */
+    int logLeaks() {
+        if(leakDetectionThresholdMillis <= 0) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        int logged = 0;
+        for (Checkout c : checkouts.values()) {
+            if(!c.logged && now - c.millis > leakDetectionThresholdMillis) {
+                c.logged = true;
+                logged++;
+                if(c.trace != null) {
+                    logger.warn("Connection of '{}' checked out by thread {} for {} ms, and possibly leaked. " +
+                            "Checked out at", dataSource.getJdbcUrl(), c.thread, now - c.millis, c.trace);
+                }
+                else {
+                    logger.warn("Connection of '{}' checked out by thread {} for {} ms, and possibly leaked. " +
+                            "Set {} to log where it was checked out",
+                            dataSource.getJdbcUrl(), c.thread, now - c.millis, LEAK_DETECTION_STACK_TRACES);
+                }
+            }
+        }
+        leaked.addAndGet(logged);
+        return logged;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        return dataSource.getConnection(username, password);
+    }
+
+    /**
+     * Tracks the checkouts of the pools detecting leaks. Created by the pool, which calls it on the thread
+     * checking out a connection. The connection is checked in asynchronously, after it is closed
+     */
+    public static final class LeakTracker extends AbstractConnectionCustomizer {
+
+        @Override
+        public void onCheckOut(final Connection connection, final String identityToken) {
+            final ConnectionPool pool = trackedPools.get(identityToken);
+            if(pool != null) {
+                pool.checkouts.put(connection, new Checkout(pool.leakStackTraces));
+            }
+        }
+
+        @Override
+        public void onCheckIn(final Connection connection, final String identityToken) {
+            final ConnectionPool pool = trackedPools.get(identityToken);
+            if(pool != null) {
+                pool.checkouts.remove(connection);
+            }
+        }
+
+        @Override
+        public void onDestroy(final Connection connection, final String identityToken) {
+            onCheckIn(connection, identityToken);
+        }
+    }
+
+    private static final class Checkout {
+        private final long millis = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final Exception trace;
+        private volatile boolean logged;
+
+        private Checkout(final boolean stackTrace) {
+            trace = stackTrace ? new Exception("Checked out by thread " + thread) : null;
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if(iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(getClass().getName() + " is not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
@@ -2,6 +2,8 @@ package com.github.leifoolsen.jerseyjpa.util;
 
 import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.repository.BookQueries;
+import com.github.leifoolsen.jerseyjpa.repository.BookRepositoryJpa;
 
 import java.util.Arrays;
 import java.util.Properties;
@@ -9,21 +11,60 @@ import java.util.Properties;
 public class DatabaseConnection {
 
     private static final String PU_NAME = "jpa-example-eclipselink";
-    private static JpaDatabaseConnectionManager.JpaDatabaseConnection connection;
+    private static final String REPLICA_PU_NAME = "jpa-example-eclipselink-replica";
+
+    /**
+     * System property with the JDBC url of a read replica. No replica is used if not set
+     */
+    public static final String REPLICA_URL = "jerseyjpa.replica.url";
+
+    /**
+     * System property with the maximum replication lag in milliseconds, default 1000, see
+     * {@link RoutingDatabaseConnection}
+     */
+    public static final String REPLICA_MAX_LAG = "jerseyjpa.replica.max-lag";
+
+    /**
+     * System property with the interval of the heartbeat measuring the replication lag in milliseconds, default 200,
+     * see {@link ReplicationHeartbeat}
+     */
+    public static final String REPLICA_HEARTBEAT_INTERVAL = "jerseyjpa.replica.heartbeat-interval";
+
+    private static RoutingDatabaseConnection connection;
 
     private DatabaseConnection() {}
 
-    public static JpaDatabaseConnectionManager.JpaDatabaseConnection createConnection() {
+    public static RoutingDatabaseConnection createConnection() {
 
         // Configure PU //
         Properties properties = PersistenceProperties.createPropertiesForProvider(
                 PersistenceProperties.ECLIPSELINK, null, Arrays.asList(Publisher.class, Book.class));
 
-        connection = JpaDatabaseConnectionManager.createConnection(PU_NAME, properties);
+        final JpaDatabaseConnectionManager.JpaDatabaseConnection primary = BookRepositoryJpa.registerStartListeners(
+                JpaDatabaseConnectionManager.createConnection(PU_NAME, properties));
+
+        final String replicaUrl = StringUtil.blankToNull(System.getProperty(REPLICA_URL));
+        if(replicaUrl == null) {
+            connection = new RoutingDatabaseConnection(primary);
+        }
+        else {
+            Properties overridingProperties = new Properties();
+            overridingProperties.put("javax.persistence.jdbc.url", replicaUrl);
+            Properties replicaProperties = PersistenceProperties.createReplicaPropertiesForProvider(
+                    PersistenceProperties.ECLIPSELINK, overridingProperties, Arrays.asList(Publisher.class, Book.class));
+
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection replica =
+                    JpaDatabaseConnectionManager.createConnection(REPLICA_PU_NAME, replicaProperties)
+                    .onStart("book-queries", BookQueries::registerNamedQueries);
+
+            final ReplicationHeartbeat heartbeat =
+                    new ReplicationHeartbeat(primary, replica, Long.getLong(REPLICA_HEARTBEAT_INTERVAL, 200));
+            connection = new RoutingDatabaseConnection(primary, replica, heartbeat, Long.getLong(REPLICA_MAX_LAG, 1000));
+        }
         return connection;
     }
 
-    public static JpaDatabaseConnectionManager.JpaDatabaseConnection getConnection() {
+    public static RoutingDatabaseConnection getConnection() {
         return connection;
     }
 
@@ -0,0 +1,81 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import javax.persistence.EmbeddedId;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+/**
+ * <p>Compiled accessor for the member annotated with @Id or @EmbeddedId of an entity class.</p>
+ * <p>The member is made accessible once, when the accessor is created, and read through a
+ * {@link MethodHandle}. This avoids toggling the accessibility flag and the access checks of
+ * {@link Field#get(Object)} / {@link Method#invoke(Object, Object...)} on every call.</p>
+ * <p>Accessors are cached per entity class, see {@link RepositoryJPA#getIdAccessor(Class)}.</p>
+ */
+public final class IdAccessor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private final Member member;
+    private final MethodHandle getter;
+    private final boolean embeddedId;
+
+    private IdAccessor(final Member member, final MethodHandle getter) {
+        this.member = member;
+        this.getter = getter;
+        this.embeddedId = ((AnnotatedElement) member).isAnnotationPresent(EmbeddedId.class);
+    }
+
+    static IdAccessor of(final Member member) {
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final MethodHandle mh;
+            if(member instanceof Field) {
+                final Field field = (Field) member;
+                field.setAccessible(true);
+                mh = lookup.unreflectGetter(field);
+            }
+            else {
+                final Method method = (Method) member;
+                method.setAccessible(true);
+                mh = lookup.unreflect(method);
+            }
+            return new IdAccessor(member, mh.asType(GETTER_TYPE));
+        }
+        catch (final IllegalAccessException | RuntimeException e) {
+            throw new IllegalArgumentException("Could not create id accessor for member: " + member, e);
+        }
+    }
+
+    public Member member() { return member; }
+
+    public boolean isEmbeddedId() { return embeddedId; }
+
+    /**
+     * @return the persistent attribute name of the id, e.g. "id"
+     */
+    public String attributeName() { return RepositoryJPA.idAttributeName(member); }
+
+    public Object get(final Object entity) {
+        try {
+            return (Object) getter.invokeExact(entity);
+        }
+        catch (final RuntimeException | Error e) {
+            throw e;
+        }
+        catch (final Throwable t) {
+            throw new IllegalArgumentException("Could not get id value of: " + member, t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IdAccessor:{" +
+                "member=" + member +
+                ", embeddedId=" + embeddedId +
+                '}';
+    }
+}
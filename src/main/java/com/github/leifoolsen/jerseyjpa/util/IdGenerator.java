@@ -0,0 +1,80 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * <p>Generates the primary keys of new entities, see {@link com.github.leifoolsen.jerseyjpa.domain.Book.Builder}
+ * and {@link com.github.leifoolsen.jerseyjpa.domain.Publisher}. Ids are strings in the canonical 36 character
+ * UUID format.</p>
+ * <p>{@link #timeOrderedUuid()}, the default, generates version 7 UUIDs: the first 48 bits are the Unix time in
+ * milliseconds, followed by a 12 bit sequence that keeps ids generated within the same millisecond in order, and
+ * 62 random bits from {@link ThreadLocalRandom}. New ids sort after existing ids, so inserts append to the primary
+ * key index instead of splitting pages all over it, and no id is drawn from the blocking {@link java.security.SecureRandom}
+ * behind {@link UUID#randomUUID()}. Time-ordered ids are not secret; they reveal when the entity was created.</p>
+ * <p>{@link #randomUuid()} generates version 4 UUIDs, as before.</p>
+ */
+public final class IdGenerator {
+    private static volatile IdGenerator instance = timeOrderedUuid();
+
+    private final Supplier<String> generator;
+
+    private IdGenerator(final Supplier<String> generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * @return random (version 4) UUIDs
+     */
+    public static IdGenerator randomUuid() {
+        return new IdGenerator(() -> UUID.randomUUID().toString());
+    }
+
+    /**
+     * @return time-ordered (version 7) UUIDs. Ids from the same generator are strictly increasing
+     */
+    public static IdGenerator timeOrderedUuid() {
+        final AtomicLong lastTimeAndSequence = new AtomicLong();
+        return new IdGenerator(() -> {
+            // Unix time in milliseconds in the upper bits, the sequence in the lower 12 bits. If the sequence
+            // overflows, or the clock goes backwards, the time is advanced past the last id instead
+            final long now = System.currentTimeMillis() << 12;
+            long last;
+            long next;
+            do {
+                last = lastTimeAndSequence.get();
+                next = Math.max(now, last + 1);
+            } while (!lastTimeAndSequence.compareAndSet(last, next));
+
+            final long msb = ((next >>> 12) << 16) | 0x7000L | (next & 0xfffL);
+            final long lsb = (ThreadLocalRandom.current().nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+            return new UUID(msb, lsb).toString();
+        });
+    }
+
+    /**
+     * @param generator custom id generator. Ids must be unique and at most 36 characters long
+     */
+    public static IdGenerator of(final Supplier<String> generator) {
+        return new IdGenerator(Preconditions.checkNotNull(generator, "generator may not be null"));
+    }
+
+    /**
+     * @return the generator used for new entities. Time-ordered unless set with {@link #setInstance(IdGenerator)}
+     */
+    public static IdGenerator getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(final IdGenerator generator) {
+        instance = Preconditions.checkNotNull(generator, "generator may not be null");
+    }
+
+    public String newId() {
+        return generator.get();
+    }
+}
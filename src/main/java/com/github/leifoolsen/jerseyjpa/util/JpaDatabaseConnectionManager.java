@@ -8,14 +8,21 @@ import javax.inject.Provider;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 
 public class JpaDatabaseConnectionManager {
 
     private static final Logger logger = LoggerFactory.getLogger(JpaDatabaseConnectionManager.class);
+    private static final String NON_JTA_DATASOURCE = "javax.persistence.nonJtaDataSource";
+    private static final String ECLIPSELINK_SESSION_NAME = "eclipselink.session-name";
+    private static final String HIBERNATE_REGION_PREFIX = "hibernate.cache.region_prefix";
     private static final ConcurrentMap<String, JpaDatabaseConnection> connections = new ConcurrentHashMap();
 
     private JpaDatabaseConnectionManager() {}
@@ -39,11 +46,28 @@ public class JpaDatabaseConnectionManager {
      * @return The provider
      */
     public static JpaDatabaseConnection createConnection(final String persistenceUnitName, final Properties properties) {
-        JpaDatabaseConnection connection = connections.get(persistenceUnitName);
+        return createConnection(persistenceUnitName, persistenceUnitName, properties);
+    }
+
+    /**
+     * <p>Create a named EntityManagerProvider for the persistence unit, e.g. one of several shards of the same
+     * persistence unit, each with its own JDBC url, see {@link com.github.leifoolsen.jerseyjpa.repository.ShardedBookRepository}.
+     * EclipseLink keeps a session per connection name, and Hibernate prefixes the second level cache regions of
+     * the connection with its name.</p>
+     *
+     * @param connectionName The name of the connection, used to remove it
+     * @param persistenceUnitName The name of the persistence unit
+     * @param properties
+     * @return The provider
+     */
+    public static JpaDatabaseConnection createConnection(
+            final String connectionName, final String persistenceUnitName, final Properties properties) {
+
+        JpaDatabaseConnection connection = connections.get(connectionName);
         if(connection == null) {
             synchronized (JpaDatabaseConnectionManager.class) {
-                connection = new JpaDatabaseConnection(persistenceUnitName).properties(properties);
-                JpaDatabaseConnection oldConnection = connections.putIfAbsent(persistenceUnitName, connection);
+                connection = new JpaDatabaseConnection(connectionName, persistenceUnitName).properties(properties);
+                JpaDatabaseConnection oldConnection = connections.putIfAbsent(connectionName, connection);
                 if(oldConnection != null) {connection = oldConnection;}
             }
         }
@@ -53,15 +77,16 @@ public class JpaDatabaseConnectionManager {
     /**
      * <p>Close an EntityManagerProvider for the named persistence unit.</p>
      *
-     * @param persistenceUnitName The name of the persistence unit to remove
+     * @param connectionName The name of the connection to remove, the name of the persistence unit unless
+     *                       given when the connection was created
      *
      */
-    public static void removeConnection(final String persistenceUnitName) {
-        JpaDatabaseConnection connection = connections.get(persistenceUnitName);
+    public static void removeConnection(final String connectionName) {
+        JpaDatabaseConnection connection = connections.get(connectionName);
         if(connection != null) {
             synchronized (JpaDatabaseConnectionManager.class) {
                 connection.stop();
-                connections.remove(persistenceUnitName);
+                connections.remove(connectionName);
             }
         }
     }
@@ -85,11 +110,15 @@ public class JpaDatabaseConnectionManager {
 
     public static class JpaDatabaseConnection implements UnitOfWork, Provider<EntityManager> {
         private volatile EntityManagerFactory entityManagerFactory;
+        private final String connectionName;
         private final String persistenceUnitName;
-        private final ThreadLocal<EntityManager> threadLocalEm = new ThreadLocal<EntityManager>();
+        private final ThreadLocal<UnitOfWorkContext> binding = new ThreadLocal<>();
         private Properties properties;
+        private volatile ConnectionPool connectionPool;
+        private final Map<Object, Consumer<EntityManagerFactory>> startListeners = new LinkedHashMap<>();
 
-        private JpaDatabaseConnection(final String persistenceUnitName) {
+        private JpaDatabaseConnection(final String connectionName, final String persistenceUnitName) {
+            this.connectionName = connectionName;
             this.persistenceUnitName = persistenceUnitName;
         }
         
@@ -98,25 +127,99 @@ public class JpaDatabaseConnectionManager {
             return this;
         }
 
+        /**
+         * <p>Add a listener called with the EntityManagerFactory each time the connection is started,
+         * e.g. to register named queries. Listeners are called in the order they were added.</p>
+         */
+        public synchronized JpaDatabaseConnection onStart(final Consumer<EntityManagerFactory> listener) {
+            startListeners.put(new Object(), Preconditions.checkNotNull(listener));
+            return this;
+        }
+
+        /**
+         * <p>Add a named start listener, see {@link #onStart(Consumer)}. A listener replaces an earlier listener
+         * with the same name, and keeps its place in the order.</p>
+         */
+        public synchronized JpaDatabaseConnection onStart(final String name, final Consumer<EntityManagerFactory> listener) {
+            startListeners.put(Preconditions.checkNotNull(name), Preconditions.checkNotNull(listener));
+            return this;
+        }
+
         public synchronized void start() {
             try {
-                entityManagerFactory = Persistence.createEntityManagerFactory(persistenceUnitName, properties);
+                Map<Object, Object> emfProperties = properties;
+                if(ConnectionPool.isConfigured(properties) && !properties.containsKey(NON_JTA_DATASOURCE)) {
+                    connectionPool = ConnectionPool.create(properties);
+                    emfProperties = new HashMap<>(properties);
+                    emfProperties.put(NON_JTA_DATASOURCE, connectionPool);
+                }
+                if(!connectionName.equals(persistenceUnitName)) {
+                    emfProperties = emfProperties != null ? new HashMap<>(emfProperties) : new HashMap<>();
+                    emfProperties.put(ECLIPSELINK_SESSION_NAME, connectionName);
+                    emfProperties.putIfAbsent(HIBERNATE_REGION_PREFIX, connectionName);
+                }
+                entityManagerFactory = Persistence.createEntityManagerFactory(persistenceUnitName, emfProperties);
                 logger.debug("Entity Manager Factory created for pu '{}'", persistenceUnitName);
             }
             catch(Throwable t) {
                 logger.error("Entity Manager Factory creation failed", t);
+                close();
                 throw new ExceptionInInitializerError(t);
             }
+
+            for (Map.Entry<Object, Consumer<EntityManagerFactory>> listener : startListeners.entrySet()) {
+                try {
+                    listener.getValue().accept(entityManagerFactory);
+                }
+                catch(RuntimeException e) {
+                    logger.error("Start listener {} failed for pu '{}'. Closing the Entity Manager Factory",
+                            listener.getKey() instanceof String ? listener.getKey() : listener.getValue(),
+                            persistenceUnitName, e);
+                    close();
+                    throw e;
+                }
+            }
         }
 
         public synchronized void stop() {
             end();
-            if(entityManagerFactory.isOpen()) {
-                entityManagerFactory.close();
-            }
+            close();
             logger.debug("Entity Manager Factory closed for pu '{}'", persistenceUnitName);
         }
 
+        // Close the factory and the pool, also when start failed half-way
+        private void close() {
+            try {
+                if(entityManagerFactory != null && entityManagerFactory.isOpen()) {
+                    entityManagerFactory.close();
+                }
+            }
+            finally {
+                if(connectionPool != null) {
+                    connectionPool.close();
+                    connectionPool = null;
+                }
+            }
+        }
+
+
+        /**
+         * @return the pool the EntityManagerFactory gets its connections from, or null if the connections are
+         *         not pooled by {@link ConnectionPool}, e.g. when a data source is given by the properties
+         */
+        public ConnectionPool connectionPool() {
+            return connectionPool;
+        }
+
+        /**
+         * @return the EntityManagerFactory of the started connection, e.g. to create EntityManagers
+         *         for other threads. Getting it does not need, or begin, a unit of work
+         */
+        public EntityManagerFactory entityManagerFactory() {
+            final EntityManagerFactory emf = entityManagerFactory;
+            Preconditions.checkState(emf != null && emf.isOpen(), "Connection for pu '%s' is not started", persistenceUnitName);
+            return emf;
+        }
 
         public UnitOfWork unitOfWork() {
             return this;
@@ -127,23 +230,70 @@ public class JpaDatabaseConnectionManager {
         }
 
         /**
-         * <p>
-         * Provide a per-thread EntityManager "singleton" instance.
-         * </p>
-         * <p>
-         * This method can be called as many times as needed per thread, and it will
-         * return the same EntityManager instance, until the manager is closed.
-         * </p>
+         * <p>Begin a unit of work for this thread, and create its EntityManager.</p>
          *
-         * @return EntityManager singleton for this thread
+         * @return the EntityManager of the unit of work
          */
         @Override
         public EntityManager begin() {
+            final UnitOfWorkContext context = binding.get();
+            Preconditions.checkState(context == null || !context.hasEntityManager(),
+                    "Entitymanager already created for this thread");
+            final boolean readOnly = context != null && context.isReadOnly();
+            if(context != null) {
+                context.end();
+            }
+            return bind(readOnly).entityManager();
+        }
+
+        /**
+         * <p>Begin a unit of work for this thread without creating an EntityManager. Requests that never
+         * call {@link #get()}, e.g. a ping or a request failing validation, never create one.</p>
+         *
+         * @param readOnly if true, the EntityManager is configured by {@link PersistenceProperties#readOnly(EntityManager)}
+         * @return this connection, creating the EntityManager on the first call to {@link #get()}
+         */
+        @Override
+        public Provider<EntityManager> beginLazily(final boolean readOnly) {
+            final UnitOfWorkContext context = binding.get();
+            Preconditions.checkState(context == null || !context.hasEntityManager(),
+                    "Entitymanager already created for this thread");
+            if(context != null) {
+                context.end();
+            }
+            bind(readOnly);
+            return this;
+        }
+
+        private UnitOfWorkContext bind(final boolean readOnly) {
+            final UnitOfWorkContext context = new UnitOfWorkContext(binding, () -> create(readOnly), readOnly)
+                    .onEnd(() -> logger.debug("Unit of work ended for pu '{}'", persistenceUnitName));
+            binding.set(context);
+            return context;
+        }
+
+        /**
+         * @return true if the unit of work of this thread does not write
+         */
+        public boolean isReadOnly() {
+            final UnitOfWorkContext context = binding.get();
+            return context != null && context.isReadOnly();
+        }
+
+        /**
+         * @return true if an EntityManager is open for the unit of work of this thread
+         */
+        public boolean hasEntityManager() {
+            final UnitOfWorkContext context = binding.get();
+            return context != null && context.hasEntityManager();
+        }
+
+        private EntityManager create(final boolean readOnly) {
             try {
-                EntityManager em = threadLocalEm.get();
-                Preconditions.checkState(em == null, "Entitymanager already created for this thread");
-                em = entityManagerFactory.createEntityManager();
-                threadLocalEm.set(em);
+                final EntityManager em = entityManagerFactory.createEntityManager();
+                if(readOnly) {
+                    PersistenceProperties.readOnly(em);
+                }
                 logger.debug("Entity Manager created for pu '{}'", persistenceUnitName);
                 return em;
             }
@@ -154,42 +304,52 @@ public class JpaDatabaseConnectionManager {
         }
 
         /**
-         * <p>Close the EntityManager and set the thread's instance to null.</p>
+         * <p>End the unit of work of this thread and close its EntityManager, see {@link UnitOfWorkContext#end()}.</p>
          */
         @Override
         public void end() {
-            EntityManager em = threadLocalEm.get();
-            if(em != null) {
-                try {
-                    if (em.isOpen()) {
-                        em.close();
-                    }
-                    logger.debug("Entity Manager closed for pu '{}'", persistenceUnitName);
-                }
-                finally {
-                    threadLocalEm.remove();
-                }
+            final UnitOfWorkContext context = binding.get();
+            if(context != null) {
+                context.end();
             }
         }
 
+        @Override
+        public UnitOfWorkContext context() {
+            return binding.get();
+        }
+
+        @Override
+        public UnitOfWorkContext detach() {
+            final UnitOfWorkContext context = binding.get();
+            if(context != null) {
+                context.unbind();
+                context.release();
+            }
+            return context;
+        }
+
         /**
          * <p>
-         * Provide a per-thread EntityManager "singleton" instance.
+         * Provide the EntityManager of the unit of work bound to this thread, see {@link UnitOfWorkContext}.
          * </p>
          * <p>
-         * This method can be called as many times as needed per thread, and it will
-         * return the same EntityManager instance, until the manager is closed.
+         * This method can be called as many times as needed, and it will return the same EntityManager
+         * instance, until the unit of work ends. A thread without a unit of work must begin one, or continue
+         * the unit of work of another thread, see {@link UnitOfWorkContext#wrap(java.util.concurrent.Callable)}.
+         * Nothing would end a unit of work begun here, and its EntityManager would leak.
          * </p>
          *
-         * @return EntityManager singleton for this thread
+         * @return EntityManager of the unit of work
+         * @throws IllegalStateException if no unit of work is bound to this thread, or another thread is using
+         *         the EntityManager
          */
         @Override
         public EntityManager get() {
-            EntityManager em = threadLocalEm.get();
-            if (em == null || !em.isOpen()) {
-                return begin();
-            }
-            return em;
+            final UnitOfWorkContext context = binding.get();
+            Preconditions.checkState(context != null && !context.isEnded(),
+                    "No unit of work for pu '%s' on thread %s", persistenceUnitName, Thread.currentThread().getName());
+            return context.entityManager();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * <p>Open addressing hash map from primitive long keys to primitive int values. Keys and values are stored in
+ * parallel arrays, so neither a lookup nor an update allocates. Collisions are resolved by linear probing, and
+ * removal shifts the following entries back, so there are no tombstones.</p>
+ * <p>The table is doubled when it is more than {@value #LOAD_FACTOR} full. Zero is used to mark an empty slot,
+ * a zero key is kept on the side.</p>
+ * <p>Not thread safe.</p>
+ */
+public final class LongIntHashMap {
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntHashMap(final int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "Expected size must be >= 0");
+        allocate(tableSize(expectedSize));
+    }
+
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(final long key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] == key;
+    }
+
+    /**
+     * @return the value of the key, or missingValue if the key is not in the map
+     */
+    public int get(final long key, final int missingValue) {
+        if(key == 0) {
+            return hasZeroKey ? zeroValue : missingValue;
+        }
+        final int i = slot(key);
+        return keys[i] == key ? values[i] : missingValue;
+    }
+
+    /**
+     * @return the previous value of the key, or missingValue if the key was not in the map
+     */
+    public int put(final long key, final int value, final int missingValue) {
+        if(key == 0) {
+            final int previous = hasZeroKey ? zeroValue : missingValue;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+        final int i = slot(key);
+        if(keys[i] == key) {
+            final int previous = values[i];
+            values[i] = value;
+            return previous;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return missingValue;
+    }
+
+    /**
+     * @return the value of the removed key, or missingValue if the key was not in the map
+     */
+    public int remove(final long key, final int missingValue) {
+        if(key == 0) {
+            final int previous = hasZeroKey ? zeroValue : missingValue;
+            hasZeroKey = false;
+            return previous;
+        }
+        int i = slot(key);
+        if(keys[i] != key) {
+            return missingValue;
+        }
+        final int previous = values[i];
+        size--;
+
+        // Shift back entries that probed past the removed slot
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final long k = keys[j];
+            if(k == 0) {
+                break;
+            }
+            final int home = hash(k) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = k;
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = 0;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /**
+     * @return the slot of the key, or the empty slot where it would be inserted
+     */
+    private int slot(final long key) {
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            final long k = oldKeys[i];
+            if(k != 0) {
+                final int j = slot(k);
+                keys[j] = k;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSize(final int expectedSize) {
+        final long n = Math.max((long) Math.ceil(expectedSize / LOAD_FACTOR), MIN_CAPACITY);
+        Preconditions.checkArgument(n <= 1 << 30, "Expected size too large: %s", expectedSize);
+        return Integer.highestOneBit((int) n - 1) << 1;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads sequential keys such as ISBNs over the table
+     */
+    private static int hash(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87c3L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,372 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Embedded;
+import javax.persistence.EmbeddedId;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A create-or-update of one row as a single native statement, see {@link Repository#upsert(NativeUpsert)}.</p>
+ * <p>Columns are divided in:</p>
+ * <ul>
+ *     <li>key: the unique key used to decide between insert and update, e.g. ISBN</li>
+ *     <li>insert only: written on insert, kept on update, e.g. the primary key</li>
+ *     <li>value: written on insert and on update</li>
+ *     <li>version: set to 0 on insert and incremented on update, so that optimistic locking still
+ *         works for JPA writers holding an older version</li>
+ * </ul>
+ * <pre>
+ *   NativeUpsert.into(Book.class)
+ *       .key("ISBN", book.getISBN())
+ *       .insertOnly("ID", book.getId())
+ *       .value("TITLE", book.getTitle())
+ *       .version("VERSION");
+ * </pre>
+ * <p>or, with the columns taken from the mapping of the entity, see {@link #of(Object, String)}:</p>
+ * <pre>
+ *   NativeUpsert.of(book, "isbnNumber");
+ * </pre>
+ * Note: The upsert is "last writer wins". The version of the caller is not checked.
+ */
+public class NativeUpsert {
+
+    public enum Dialect {
+        H2("jdbc:h2:"),
+        HSQLDB("jdbc:hsqldb:"),
+        POSTGRESQL("jdbc:postgresql:"),
+        MYSQL("jdbc:mysql:", "jdbc:mariadb:");
+
+        private final String[] urlPrefixes;
+
+        Dialect(final String... urlPrefixes) { this.urlPrefixes = urlPrefixes; }
+
+        public static Dialect forJdbcUrl(final String jdbcUrl) {
+            final String url = StringUtil.blankToNull(jdbcUrl);
+            if(url != null) {
+                for (Dialect d : values()) {
+                    for (String prefix : d.urlPrefixes) {
+                        if (url.startsWith(prefix)) {
+                            return d;
+                        }
+                    }
+                }
+            }
+            throw new UnsupportedOperationException("Native upsert is not supported for JDBC url: " + jdbcUrl);
+        }
+    }
+
+    private final Class<?> entityClass;
+    private final Object entity;
+    private final String table;
+    private final Map<String, Object> keys = new LinkedHashMap<>();
+    private final Map<String, Object> insertOnly = new LinkedHashMap<>();
+    private final Map<String, Object> values = new LinkedHashMap<>();
+    private String versionColumn;
+
+    private NativeUpsert(final Class<?> entityClass, final Object entity) {
+        Preconditions.checkArgument(RepositoryJPA.isEntity(entityClass), "Not an entity: %s", entityClass);
+        this.entityClass = entityClass;
+        this.entity = entity;
+        final Table t = entityClass.getAnnotation(Table.class);
+        final String name = t != null ? StringUtil.blankToNull(t.name()) : null;
+        this.table = name != null ? name : RepositoryJPA.entityName(entityClass).toUpperCase();
+    }
+
+    /**
+     * @param entityClass the entity mapped to the table. The table name is taken from
+     *                    <code>@Table(name)</code>, or defaults to the entity name
+     */
+    public static NativeUpsert into(final Class<?> entityClass) { return new NativeUpsert(entityClass, null); }
+
+    /**
+     * Upsert of an entity, with the columns and values taken from the field mapping of the entity class:
+     * the field named <code>keyAttribute</code> is the key, @Id is insert only, @Version is the version column
+     * and the other persistent fields are values. A @ManyToOne or @OneToOne is written as the id of the referenced
+     * entity. The entity is validated by {@link Repository#upsert(NativeUpsert)}.
+     * <p>Note: Entity callbacks, e.g. @PrePersist, are not called. Fields derived by callbacks must be up to date.
+     * Embedded attributes and property access are not supported.</p>
+     */
+    public static NativeUpsert of(final Object entity, final String keyAttribute) {
+        final NativeUpsert upsert = new NativeUpsert(entity.getClass(), entity);
+        for (Class<?> clazz = entity.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if(!isPersistent(field)) {
+                    continue;
+                }
+                final String column = columnName(field);
+                final Object value = columnValue(field, RepositoryJPA.getFieldValue(field, entity));
+                if(field.getName().equals(keyAttribute)) {
+                    upsert.key(column, value);
+                }
+                else if(field.isAnnotationPresent(Id.class)) {
+                    upsert.insertOnly(column, value);
+                }
+                else if(field.isAnnotationPresent(Version.class)) {
+                    upsert.version(column);
+                }
+                else {
+                    upsert.value(column, value);
+                }
+            }
+        }
+        Preconditions.checkArgument(!upsert.keys.isEmpty(),
+                "No persistent attribute '%s' in %s", keyAttribute, entity.getClass().getName());
+        return upsert;
+    }
+
+    private static boolean isPersistent(final Field field) {
+        final int modifiers = field.getModifiers();
+        if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()
+                || field.isAnnotationPresent(Transient.class)
+                || field.isAnnotationPresent(OneToMany.class) || field.isAnnotationPresent(ManyToMany.class)
+                || field.isAnnotationPresent(ElementCollection.class)) {
+            return false;
+        }
+        if(field.isAnnotationPresent(Embedded.class) || field.isAnnotationPresent(EmbeddedId.class)) {
+            throw new UnsupportedOperationException("Embedded attributes are not supported: " +
+                    RepositoryJPA.fieldToString(field));
+        }
+        return true;
+    }
+
+    private static boolean isReference(final Field field) {
+        return field.isAnnotationPresent(ManyToOne.class) || field.isAnnotationPresent(OneToOne.class);
+    }
+
+    private static String columnName(final Field field) {
+        if(isReference(field)) {
+            final JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+            final String name = joinColumn != null ? StringUtil.blankToNull(joinColumn.name()) : null;
+            if(name != null) {
+                return name;
+            }
+            // Default join column: <attribute>_<primary key column of the referenced entity>
+            final Member id = RepositoryJPA.getMemberAnnotadedWithId(field.getType());
+            return field.getName() + "_" +
+                    (id instanceof Field ? columnName((Field) id) : RepositoryJPA.idAttributeName(id));
+        }
+        final Column column = field.getAnnotation(Column.class);
+        final String name = column != null ? StringUtil.blankToNull(column.name()) : null;
+        return name != null ? name : field.getName();
+    }
+
+    private static Object columnValue(final Field field, final Object value) {
+        if(value == null) {
+            return null;
+        }
+        if(isReference(field)) {
+            return RepositoryJPA.getIdValue(value);
+        }
+        final Temporal temporal = field.getAnnotation(Temporal.class);
+        if(temporal != null && value instanceof java.util.Date) {
+            final long time = ((java.util.Date) value).getTime();
+            switch (temporal.value()) {
+                case DATE: return new java.sql.Date(time);
+                case TIME: return new java.sql.Time(time);
+                default:   return new java.sql.Timestamp(time);
+            }
+        }
+        if(value instanceof Enum) {
+            final Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            return enumerated != null && enumerated.value() == EnumType.STRING
+                    ? ((Enum<?>) value).name()
+                    : ((Enum<?>) value).ordinal();
+        }
+        return value;
+    }
+
+    public NativeUpsert key(final String column, final Object value) {
+        keys.put(column, Preconditions.checkNotNull(value, "Key column '%s' may not be null", column));
+        return this;
+    }
+
+    public NativeUpsert insertOnly(final String column, final Object value) {
+        insertOnly.put(column, value);
+        return this;
+    }
+
+    public NativeUpsert value(final String column, final Object value) {
+        values.put(column, value);
+        return this;
+    }
+
+    public NativeUpsert version(final String column) {
+        versionColumn = column;
+        return this;
+    }
+
+    public Class<?> entityClass() { return entityClass; }
+
+    /**
+     * @return the entity of {@link #of(Object, String)}, or null if the columns are given by the caller
+     */
+    public Object entity() { return entity; }
+
+    public String table() { return table; }
+
+    /**
+     * @return positional parameters, <code>?1</code> .. <code>?n</code>, in the order they are referenced by {@link #sql(Dialect)}
+     */
+    public List<Object> parameters() {
+        final List<Object> parameters = new ArrayList<>(keys.values());
+        parameters.addAll(insertOnly.values());
+        parameters.addAll(values.values());
+        return Collections.unmodifiableList(parameters);
+    }
+
+    public String sql(final Dialect dialect) {
+        Preconditions.checkState(!keys.isEmpty(), "At least one key column is required");
+
+        final List<String> columns = new ArrayList<>(keys.keySet());
+        columns.addAll(insertOnly.keySet());
+        columns.addAll(values.keySet());
+
+        final List<String> parameters = new ArrayList<>();
+        for (int i = 1; i <= columns.size(); i++) {
+            parameters.add("?" + i);
+        }
+
+        switch (dialect) {
+            case H2:          return h2Sql(columns, parameters);
+            case HSQLDB:      return hsqldbSql(columns, parameters);
+            case POSTGRESQL:  return postgresqlSql(columns, parameters);
+            case MYSQL:       return mysqlSql(columns, parameters);
+            default:          throw new UnsupportedOperationException("Dialect not supported: " + dialect);
+        }
+    }
+
+    // MERGE INTO t (k, id, c, v) KEY(k) VALUES (?1, COALESCE((SELECT id FROM t WHERE k = ?1), ?2), ?3, COALESCE((SELECT v + 1 FROM t WHERE k = ?1), 0))
+    private String h2Sql(final List<String> columns, final List<String> parameters) {
+        final String where = " FROM " + table + " WHERE " + keyCondition(parameters) + ")";
+        final List<String> cols = new ArrayList<>(columns);
+        final List<String> vals = new ArrayList<>(parameters);
+
+        int i = keys.size();
+        for (String column : insertOnly.keySet()) {
+            vals.set(i, "COALESCE((SELECT " + column + where + ", " + parameters.get(i) + ")");
+            i++;
+        }
+        if(versionColumn != null) {
+            cols.add(versionColumn);
+            vals.add("COALESCE((SELECT " + versionColumn + " + 1" + where + ", 0)");
+        }
+        return "MERGE INTO " + table + " (" + Joiner.on(", ").join(cols) + ")" +
+                " KEY(" + Joiner.on(", ").join(keys.keySet()) + ")" +
+                " VALUES (" + Joiner.on(", ").join(vals) + ")";
+    }
+
+    // MERGE INTO t USING (VALUES(?1, ?2, ?3)) AS s(k, id, c) ON t.k = s.k
+    //   WHEN MATCHED THEN UPDATE SET t.c = s.c, t.v = t.v + 1
+    //   WHEN NOT MATCHED THEN INSERT (k, id, c, v) VALUES (s.k, s.id, s.c, 0)
+    private String hsqldbSql(final List<String> columns, final List<String> parameters) {
+        final List<String> on = new ArrayList<>();
+        for (String key : keys.keySet()) {
+            on.add("t." + key + " = s." + key);
+        }
+        final List<String> set = new ArrayList<>();
+        for (String column : values.keySet()) {
+            set.add("t." + column + " = s." + column);
+        }
+        final List<String> cols = new ArrayList<>(columns);
+        final List<String> vals = new ArrayList<>();
+        for (String column : columns) {
+            vals.add("s." + column);
+        }
+        if(versionColumn != null) {
+            set.add("t." + versionColumn + " = t." + versionColumn + " + 1");
+            cols.add(versionColumn);
+            vals.add("0");
+        }
+        return "MERGE INTO " + table + " t" +
+                " USING (VALUES(" + Joiner.on(", ").join(parameters) + ")) AS s(" + Joiner.on(", ").join(columns) + ")" +
+                " ON " + Joiner.on(" AND ").join(on) +
+                (set.isEmpty() ? "" : " WHEN MATCHED THEN UPDATE SET " + Joiner.on(", ").join(set)) +
+                " WHEN NOT MATCHED THEN INSERT (" + Joiner.on(", ").join(cols) + ")" +
+                " VALUES (" + Joiner.on(", ").join(vals) + ")";
+    }
+
+    // INSERT INTO t (k, id, c, v) VALUES (?1, ?2, ?3, 0) ON CONFLICT (k) DO UPDATE SET c = EXCLUDED.c, v = t.v + 1
+    private String postgresqlSql(final List<String> columns, final List<String> parameters) {
+        final List<String> set = new ArrayList<>();
+        for (String column : values.keySet()) {
+            set.add(column + " = EXCLUDED." + column);
+        }
+        if(versionColumn != null) {
+            set.add(versionColumn + " = " + table + "." + versionColumn + " + 1");
+        }
+        return insertSql(columns, parameters) +
+                " ON CONFLICT (" + Joiner.on(", ").join(keys.keySet()) + ")" +
+                (set.isEmpty() ? " DO NOTHING" : " DO UPDATE SET " + Joiner.on(", ").join(set));
+    }
+
+    // INSERT INTO t (k, id, c, v) VALUES (?1, ?2, ?3, 0) ON DUPLICATE KEY UPDATE c = VALUES(c), v = v + 1
+    private String mysqlSql(final List<String> columns, final List<String> parameters) {
+        final List<String> set = new ArrayList<>();
+        for (String column : values.keySet()) {
+            set.add(column + " = VALUES(" + column + ")");
+        }
+        if(versionColumn != null) {
+            set.add(versionColumn + " = " + versionColumn + " + 1");
+        }
+        if(set.isEmpty()) {
+            final String key = keys.keySet().iterator().next();
+            set.add(key + " = " + key);
+        }
+        return insertSql(columns, parameters) + " ON DUPLICATE KEY UPDATE " + Joiner.on(", ").join(set);
+    }
+
+    private String insertSql(final List<String> columns, final List<String> parameters) {
+        final List<String> cols = new ArrayList<>(columns);
+        final List<String> vals = new ArrayList<>(parameters);
+        if(versionColumn != null) {
+            cols.add(versionColumn);
+            vals.add("0");
+        }
+        return "INSERT INTO " + table + " (" + Joiner.on(", ").join(cols) + ")" +
+                " VALUES (" + Joiner.on(", ").join(vals) + ")";
+    }
+
+    private String keyCondition(final List<String> parameters) {
+        final List<String> condition = new ArrayList<>();
+        int i = 0;
+        for (String key : keys.keySet()) {
+            condition.add(key + " = " + parameters.get(i++));
+        }
+        return Joiner.on(" AND ").join(condition);
+    }
+
+    @Override
+    public String toString() {
+        return "NativeUpsert:{" +
+                "table='" + table + '\'' +
+                ", keys=" + keys.keySet() +
+                ", insertOnly=" + insertOnly.keySet() +
+                ", values=" + values.keySet() +
+                ", version='" + versionColumn + '\'' +
+                '}';
+    }
+}
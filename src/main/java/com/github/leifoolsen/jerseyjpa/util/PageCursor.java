@@ -0,0 +1,87 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * <p>Position for keyset (seek) pagination: the sort value and the id of the last row on a page,
+ * and the direction to read from that row. The id is a tie-breaker for rows with equal sort values.</p>
+ * <p>A cursor is passed to clients as an opaque, URL safe string, see {@link #encode()} and {@link #decode(String)}.</p>
+ */
+public class PageCursor {
+
+    public enum Direction { AFTER, BEFORE }
+
+    private final Direction direction;
+    private final String value;
+    private final String id;
+
+    private PageCursor(final Direction direction, final String value, final String id) {
+        this.direction = direction;
+        this.value = Preconditions.checkNotNull(value, "Cursor value may not be null");
+        this.id = Preconditions.checkNotNull(id, "Cursor id may not be null");
+    }
+
+    /**
+     * @return a cursor reading rows after the given position, e.g. for a "next" link
+     */
+    public static PageCursor after(final String value, final String id) {
+        return new PageCursor(Direction.AFTER, value, id);
+    }
+
+    /**
+     * @return a cursor reading rows before the given position, e.g. for a "prev" link
+     */
+    public static PageCursor before(final String value, final String id) {
+        return new PageCursor(Direction.BEFORE, value, id);
+    }
+
+    public Direction direction() { return direction; }
+    public String value() { return value; }
+    public String id() { return id; }
+
+    public String encode() {
+        final String s = (direction == Direction.AFTER ? "A" : "B") + value.length() + ":" + value + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor an encoded cursor
+     * @return the decoded cursor, or null if the given cursor is blank
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public static PageCursor decode(final String cursor) {
+        final String c = StringUtil.blankToNull(cursor);
+        if(c == null) {
+            return null;
+        }
+        try {
+            final String s = new String(Base64.getUrlDecoder().decode(c), StandardCharsets.UTF_8);
+            final int colon = s.indexOf(':');
+            final int length = Integer.parseInt(s.substring(1, colon));
+            final String value = s.substring(colon + 1, colon + 1 + length);
+            final String id = s.substring(colon + 1 + length);
+            Preconditions.checkArgument(!id.isEmpty());
+
+            switch (s.charAt(0)) {
+                case 'A': return after(value, id);
+                case 'B': return before(value, id);
+                default:  throw new IllegalArgumentException();
+            }
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a valid page cursor: " + cursor, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PageCursor:{" +
+                "direction=" + direction +
+                ", value='" + value + '\'' +
+                ", id='" + id + '\'' +
+                '}';
+    }
+}
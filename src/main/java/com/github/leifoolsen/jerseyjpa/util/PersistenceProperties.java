@@ -1,19 +1,137 @@
 package com.github.leifoolsen.jerseyjpa.util;
 
+import com.google.common.base.MoreObjects;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class PersistenceProperties {
     public static final String ECLIPSELINK = "eclipselink";
     public static final String HIBERNATE   = "hibernate";
 
+    /**
+     * <p>Selects the persistence profile, as a system property or as an overriding property, e.g.
+     * <code>-Djerseyjpa.persistence.profile=cached</code></p>
+     * <ul>
+     *     <li>{@value #DEFAULT_PROFILE}: the provider defaults. EclipseLink has its shared cache enabled,
+     *         Hibernate has no second level cache</li>
+     *     <li>{@value #CACHED_PROFILE}: the shared cache is enabled for <code>@Cacheable</code> entities on both
+     *         providers, named queries are cached, see {@link #queryCacheHints(EntityManager)}, and cache hits
+     *         and misses are counted, see {@link SharedCacheStatistics}</li>
+     * </ul>
+     */
+    public static final String PROFILE = "jerseyjpa.persistence.profile";
+    public static final String DEFAULT_PROFILE = "default";
+    public static final String CACHED_PROFILE = "cached";
+
+    /**
+     * EntityManager property set on EntityManagers configured by {@link #readOnly(EntityManager)}
+     */
+    public static final String READ_ONLY = "jerseyjpa.read-only";
+
+    /**
+     * Hibernate has no second level cache of its own. The region factory used by the cached profile unless
+     * <code>hibernate.cache.region.factory_class</code> is overridden. Provided by hibernate-ehcache
+     */
+    static final String HIBERNATE_REGION_FACTORY = "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory";
+
     private static final Logger logger = LoggerFactory.getLogger(PersistenceProperties.class);
 
     private PersistenceProperties() {}
 
+    /**
+     * Resolve the provider behind an EntityManager
+     * @param em the EntityManager
+     * @return eclipselink, hibernate or null if the provider is unknown
+     */
+    public static String providerName(final EntityManager em) {
+        final String delegate = em.getDelegate().getClass().getName();
+        if(delegate.startsWith("org.eclipse.persistence.")) {
+            return ECLIPSELINK;
+        }
+        else if(delegate.startsWith("org.hibernate.")) {
+            return HIBERNATE;
+        }
+        return null;
+    }
+
+    /**
+     * @return the profile given by the overriding properties, else by the system property, else the default profile
+     */
+    public static String profile(final Properties overridingProperties) {
+        final String profile = overridingProperties != null ? overridingProperties.getProperty(PROFILE) : null;
+        return StringUtil.blankToNull(profile) != null
+                ? profile.trim()
+                : MoreObjects.firstNonNull(StringUtil.blankToNull(System.getProperty(PROFILE)), DEFAULT_PROFILE);
+    }
+
+    /**
+     * @param properties properties of an EntityManagerFactory
+     */
+    public static boolean isCachedProfile(final Map<String, Object> properties) {
+        return CACHED_PROFILE.equals(properties.get(PROFILE));
+    }
+
+    /**
+     * @return hints that cache the results of a query in the cached profile, else no hints
+     */
+    public static Map<String, Object> queryCacheHints(final EntityManager em) {
+        if(!isCachedProfile(em.getEntityManagerFactory().getProperties())) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> hints = new HashMap<>();
+        final String provider = providerName(em);
+        if(ECLIPSELINK.equals(provider)) {
+            hints.put("eclipselink.query-results-cache", "true");
+        }
+        else if(HIBERNATE.equals(provider)) {
+            hints.put("org.hibernate.cacheable", "true");
+        }
+        return hints;
+    }
+
+    /**
+     * <p>Configure an EntityManager for a unit of work that does not write, e.g. a GET request.
+     * Queries never flush the persistence context. Hibernate loads entities read-only, so it keeps no snapshots
+     * for dirty checking, and never flushes. EclipseLink queries get the <code>eclipselink.read-only</code> hint,
+     * see {@link #readOnlyHints(EntityManager)}, and return the objects of the shared cache without registering
+     * copies in the persistence context.</p>
+     * <p>Entities loaded by a read-only EntityManager are shared with every other read-only unit of work by
+     * EclipseLink, and must be treated as immutable. The domain entities have no setters, and copies are made with
+     * their builders, e.g. {@link com.github.leifoolsen.jerseyjpa.domain.Book#with(com.github.leifoolsen.jerseyjpa.domain.Book, boolean)}.
+     * {@link RepositoryJPA} refuses to write through a read-only EntityManager.</p>
+     */
+    public static EntityManager readOnly(final EntityManager em) {
+        em.setFlushMode(FlushModeType.COMMIT);
+        em.setProperty(READ_ONLY, Boolean.TRUE);
+        if(HIBERNATE.equals(providerName(em))) {
+            final Session session = em.unwrap(Session.class);
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+        }
+        return em;
+    }
+
+    /**
+     * @return query hints for a query on the given EntityManager if it is read-only, else no hints
+     */
+    public static Map<String, Object> readOnlyHints(final EntityManager em) {
+        if(ECLIPSELINK.equals(providerName(em)) && Boolean.TRUE.equals(em.getProperties().get(READ_ONLY))) {
+            return Collections.singletonMap("eclipselink.read-only", "true");
+        }
+        return Collections.emptyMap();
+    }
+
     /**
      * Propertes to use when creating an EntityManagerFactory instance
      * @param providerName eclipselink or hibernate
@@ -24,12 +142,23 @@ public class PersistenceProperties {
     public static Properties createPropertiesForProvider(
             final String providerName, final Properties overridingProperties, final List<?> entityClasses) {
 
+        final String profile = profile(overridingProperties);
         Properties properties = new Properties();
+        properties.put(PROFILE, profile);
         properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
         properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:mymemdb");
         properties.put("javax.persistence.jdbc.user", "sa");
         properties.put("javax.persistence.jdbc.password", "");
 
+        // Connection pool for both providers, see ConnectionPool
+        properties.put(ConnectionPool.MIN_SIZE, "1");
+        properties.put(ConnectionPool.MAX_SIZE, "10");
+        properties.put(ConnectionPool.ACQUIRE_TIMEOUT, "5000");
+        properties.put(ConnectionPool.LEAK_DETECTION_THRESHOLD, "300");
+        properties.put(ConnectionPool.LEAK_DETECTION_STACK_TRACES, "false");
+        properties.put(ConnectionPool.UNRETURNED_CONNECTION_TIMEOUT, "0");
+        properties.put(ConnectionPool.STATEMENT_CACHE_SIZE, "50");
+
         if(ECLIPSELINK.equals(providerName)) {
             // Eclipse Link (EL)
 
@@ -46,7 +175,7 @@ public class PersistenceProperties {
             properties.put("eclipselink.logging.exceptions", "true");
 
             // EL optimization, see: http://java-persistence-performance.blogspot.no/2011/06/how-to-improve-jpa-performance-by-1825.html
-            properties.put("eclipselink.jdbc.cache-statements", "true");
+            // Statements are cached by the ConnectionPool. EclipseLink only caches statements in its internal pools
             properties.put("eclipselink.jdbc.batch-writing", "JDBC");
             properties.put("eclipselink.jdbc.batch-writing.size", "1000");
             properties.put("eclipselink.persistence-context.flush-mode", "commit");
@@ -60,6 +189,13 @@ public class PersistenceProperties {
             properties.put("eclipselink.metadata-source", "XML");
             properties.put("eclipselink.metadata-source.xml.file", "META-INF/eclipselink-orm.xml");
 
+            if(CACHED_PROFILE.equals(profile)) {
+                // See: http://wiki.eclipse.org/EclipseLink/Examples/JPA/Caching
+                properties.put("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+                properties.put("eclipselink.flush-clear.cache", "merge");
+                properties.put("eclipselink.profiler", CacheHitProfiler.class.getName());
+            }
+
             if(entityClasses != null && entityClasses.size() > 0) {
                 logger.warn("Eclipselink can not load entity classes dynamically. " +
                         "Ensure that all entity classes are contained in persistence.xml (or connected orm.xml)");
@@ -73,31 +209,41 @@ public class PersistenceProperties {
             //                    See: http://hibernate.org/orm/documentation/
             properties.put("hibernate.hbm2ddl.auto", "create-drop"); //
             properties.put("hibernate.default_batch_fetch_size", "16");
+            properties.put("hibernate.jdbc.batch_size", "1000");
+            properties.put("hibernate.jdbc.batch_versioned_data", "true");
+            properties.put("hibernate.order_inserts", "true");
+            properties.put("hibernate.order_updates", "true");
             properties.put("hibernate.show_sql", "false");
             properties.put("hibernate.format_sql", "true");
 
             /*
             p.put("hibernate.connection.autocommit", "false");
             p.put("hibernate.connection.release_mode", "on_close");
-            p.put("hibernate.cache.use_second_level_cache", "false");
-            p.put("hibernate.cache.use_query_cache", "false");
-            p.put("org.hibernate.cacheable", "false");
             */
 
-            /*
-            p.put("hibernate.cache.use_second_level_cache", "true");
-            p.put("hibernate.cache.provider_class", "net.sf.ehcache.hibernate.SingletonEhCacheProvider");
-            p.put("net.sf.ehcache.configurationResourceName", "/ehcache.xml");
-            */
+            properties.put("javax.persistence.sharedCache.mode", "NONE");
+            properties.put("hibernate.cache.use_second_level_cache", "false");
+            properties.put("hibernate.cache.use_query_cache", "false");
 
-            properties.put("hibernate.connection.pool_size", "10");
-            properties.put("hibernate.connection.provider_class", "org.hibernate.service.jdbc.connections.internal.C3P0ConnectionProvider");
-            properties.put("hibernate.c3p0.min_size", "1");
-            properties.put("hibernate.c3p0.max_size", "10");
-            properties.put("hibernate.c3p0.acquire_increment", "2");
-            properties.put("hibernate.c3p0.timeout", "500");
-            properties.put("hibernate.c3p0.max_statements", "50");
-            properties.put("hibernate.c3p0.idle_test_period", "1000");
+            if(CACHED_PROFILE.equals(profile)) {
+                properties.put("hibernate.generate_statistics", "true");
+
+                final String regionFactory = overridingProperties != null
+                        ? overridingProperties.getProperty("hibernate.cache.region.factory_class", HIBERNATE_REGION_FACTORY)
+                        : HIBERNATE_REGION_FACTORY;
+
+                if(isOnClasspath(regionFactory)) {
+                    // Concurrency strategies are given by @org.hibernate.annotations.Cache on the entities
+                    properties.put("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+                    properties.put("hibernate.cache.use_second_level_cache", "true");
+                    properties.put("hibernate.cache.use_query_cache", "true");
+                    properties.put("hibernate.cache.region.factory_class", regionFactory);
+                }
+                else {
+                    logger.warn("Second level cache region factory {} is not on the classpath. " +
+                            "The cached profile runs without a second level cache", regionFactory);
+                }
+            }
 
             if(entityClasses != null && entityClasses.size() > 0) {
                 // Add entity classes, Hibernate
@@ -114,4 +260,37 @@ public class PersistenceProperties {
         return mergedProperties;
     }
 
+    /**
+     * <p>Propertes for a read replica of the database, see {@link RoutingDatabaseConnection}. The replica has no
+     * shared cache on either provider, since a cached entity would never see the rows replicated from the primary,
+     * and does not generate the schema, which is replicated from the primary.</p>
+     * @param overridingProperties properties overriding default properties, e.g. the JDBC url of the replica
+     */
+    public static Properties createReplicaPropertiesForProvider(
+            final String providerName, final Properties overridingProperties, final List<?> entityClasses) {
+
+        Properties replicaProperties = new Properties();
+        replicaProperties.put(PROFILE, DEFAULT_PROFILE);
+        replicaProperties.put("javax.persistence.sharedCache.mode", "NONE");
+        replicaProperties.put("eclipselink.cache.shared.default", "false");
+        replicaProperties.put("hibernate.cache.use_second_level_cache", "false");
+        replicaProperties.put("hibernate.cache.use_query_cache", "false");
+        replicaProperties.put("eclipselink.ddl-generation", "none");
+        replicaProperties.put("hibernate.hbm2ddl.auto", "none");
+        if(overridingProperties != null) {
+            replicaProperties.putAll(overridingProperties);
+        }
+        return createPropertiesForProvider(providerName, replicaProperties, entityClasses);
+    }
+
+    private static boolean isOnClasspath(final String className) {
+        try {
+            Class.forName(className, false, PersistenceProperties.class.getClassLoader());
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,152 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * <p>Measures the replication lag of a read replica with a heartbeat row. The primary writes the current time
+ * to the row every interval, and the time read back from the replica is the time of the last write the replica
+ * has applied. The lag is the time since then, so it is never less than the real lag, and at most the real
+ * lag plus the interval and the time to read the replica. The interval must be well below the maximum lag of
+ * {@link RoutingDatabaseConnection}, else the replica is never used.</p>
+ * <p>The row is written and read on a thread of its own, and {@link #lagMillis()} does no I/O. The heartbeat table
+ * is created on the primary, and replicated to the replica. The lag is unknown until the replica has been read,
+ * and grows while the primary or the replica can not be reached.</p>
+ * <p>The time is written by the clock of this JVM, and compared with the same clock.</p>
+ */
+public class ReplicationHeartbeat {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationHeartbeat.class);
+
+    static final String TABLE = "replication_heartbeat";
+
+    private static final String CREATE_SQL =
+            "create table if not exists " + TABLE + " (id integer not null primary key, beat_millis bigint not null)";
+    private static final String UPDATE_SQL = "update " + TABLE + " set beat_millis = ?1 where id = 1";
+    private static final String INSERT_SQL = "insert into " + TABLE + " (id, beat_millis) values (1, ?1)";
+    private static final String SELECT_SQL = "select beat_millis from " + TABLE + " where id = 1";
+
+    private final JpaDatabaseConnectionManager.JpaDatabaseConnection primary;
+    private final JpaDatabaseConnectionManager.JpaDatabaseConnection replica;
+    private final long intervalMillis;
+
+    private ScheduledExecutorService executor;
+    private volatile long replicaBeatMillis = -1;
+
+    // Only a failure following a success is logged as a warning. Beats never overlap
+    private volatile boolean primaryFailing;
+    private volatile boolean replicaFailing;
+
+    /**
+     * @param intervalMillis time between heartbeats
+     */
+    public ReplicationHeartbeat(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection primary,
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection replica,
+            final long intervalMillis) {
+
+        Preconditions.checkArgument(intervalMillis > 0, "Heartbeat interval must be greater than zero");
+        this.primary = Preconditions.checkNotNull(primary, "Primary connection may not be null");
+        this.replica = Preconditions.checkNotNull(replica, "Replica connection may not be null");
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Create the heartbeat table on the primary, if not there, and start the heartbeat with a first beat on the
+     * calling thread. The connections must be started
+     */
+    public synchronized void start() {
+        if(executor != null) {
+            return;
+        }
+        inUnitOfWork(primary, em -> em.createNativeQuery(CREATE_SQL).executeUpdate());
+        beat();
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("replication-heartbeat-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(this::beat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        replicaBeatMillis = -1;
+    }
+
+    /**
+     * @return milliseconds the replica is behind the primary, or -1 if not known
+     */
+    public long lagMillis() {
+        final long beat = replicaBeatMillis;
+        return beat < 0 ? -1 : Math.max(System.currentTimeMillis() - beat, 0);
+    }
+
+    /**
+     * Write a heartbeat to the primary, and read the last heartbeat applied by the replica
+     */
+    void beat() {
+        try {
+            final long now = System.currentTimeMillis();
+            inUnitOfWork(primary, em -> {
+                if(em.createNativeQuery(UPDATE_SQL).setParameter(1, now).executeUpdate() == 0) {
+                    em.createNativeQuery(INSERT_SQL).setParameter(1, now).executeUpdate();
+                }
+                return null;
+            });
+            primaryFailing = false;
+        }
+        catch (RuntimeException e) {
+            failed("Could not write replication heartbeat to the primary", primaryFailing, e);
+            primaryFailing = true;
+        }
+        try {
+            final List<?> beats = inUnitOfWork(replica, em -> em.createNativeQuery(SELECT_SQL).getResultList());
+            if(!beats.isEmpty()) {
+                replicaBeatMillis = ((Number) beats.get(0)).longValue();
+            }
+            replicaFailing = false;
+        }
+        catch (RuntimeException e) {
+            failed("Could not read replication heartbeat from the replica", replicaFailing, e);
+            replicaFailing = true;
+        }
+    }
+
+    private static void failed(final String message, final boolean failing, final RuntimeException e) {
+        if(failing) {
+            logger.debug(message, e);
+        }
+        else {
+            logger.warn(message, e);
+        }
+    }
+
+    private static <T> T inUnitOfWork(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection connection,
+            final Function<EntityManager, T> work) {
+
+        final EntityManager em = connection.unitOfWork().begin();
+        try {
+            em.getTransaction().begin();
+            final T result = work.apply(em);
+            em.getTransaction().commit();
+            return result;
+        }
+        finally {
+            if(em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            connection.unitOfWork().end();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import javax.persistence.TypedQuery;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public interface Repository {
     EntityManager getEntityManager();
@@ -14,20 +15,30 @@ public interface Repository {
 
     <T> Collection<T> persist(Collection<T> entities);
 
+    <T> BatchResult<T> persist(Collection<T> entities, int batchSize);
+
     <T> T merge(T entity);
 
     <T> Collection<T> merge(Collection<T> entities);
 
+    <T> BatchResult<T> merge(Collection<T> entities, int batchSize);
+
     <T> T createOrUpdate(T entity);
 
     <T> Collection<T> createOrUpdate(Collection<T> entities);
 
+    <T> BatchResult<T> createOrUpdate(Collection<T> entities, int batchSize);
+
+    int upsert(NativeUpsert upsert);
+
     <T> void remove(T entity);
 
     <T> void remove(Class<T> entityClass, Object id);
 
     <T> void remove(Collection<T> entities);
 
+    <T> BatchResult<T> remove(Collection<T> entities, int batchSize);
+
     <T> T getReference(Class<T> entityClass, Object id);
 
     <T> T find(Class<T> entityClass, Object id);
@@ -36,6 +47,10 @@ public interface Repository {
 
     <T> List<T> find(Class<T> entityClass, Integer offset, Integer limit);
 
+    <T> Stream<T> stream(Class<T> entityClass, int fetchSize);
+
+    <T> Stream<T> stream(TypedQuery<T> query, int fetchSize);
+
     <T> long count(Class<T> entityClass);
 
     void clear();
@@ -1,6 +1,8 @@
 package com.github.leifoolsen.jerseyjpa.util;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.ObjectArrays;
 import org.slf4j.Logger;
@@ -15,21 +17,38 @@ import javax.persistence.EntityNotFoundException;
 import javax.persistence.Id;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validation;
+import javax.validation.ValidatorFactory;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
 
 public class RepositoryJPA implements Repository {
     private static final Logger logger = LoggerFactory.getLogger(RepositoryJPA.class);
 
+    /**
+     * Max number of ids in one IN clause. Larger lists are split into several queries.
+     */
+    public static final int IN_CLAUSE_SIZE = 500;
+
+    private static final String JDBC_URL = "javax.persistence.jdbc.url";
+    private static final String VALIDATION_MODE = "javax.persistence.validation.mode";
+    private static final String VALIDATION_FACTORY = "javax.persistence.validation.factory";
+
     private final Provider<EntityManager> provider;
 
     @Inject  //
@@ -42,9 +61,23 @@ public class RepositoryJPA implements Repository {
         return provider.get();
     }
 
+    /**
+     * Entities loaded by a read-only EntityManager may be the instances of the shared cache, and writes through it
+     * are never flushed, see {@link PersistenceProperties#readOnly(EntityManager)}
+     *
+     * @throws IllegalStateException if the EntityManager is read-only
+     */
+    private EntityManager writableEntityManager() {
+        final EntityManager em = getEntityManager();
+        if(Boolean.TRUE.equals(em.getProperties().get(PersistenceProperties.READ_ONLY))) {
+            throw new IllegalStateException("EntityManager is read-only");
+        }
+        return em;
+    }
+
     @Override
     public <T> T persist(final T entity) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
@@ -68,23 +101,23 @@ public class RepositoryJPA implements Repository {
     @Override
     public <T> Collection<T> persist(final Collection<T> entities) {
         final Collection<T> result = Lists.newArrayList();
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
         }
-        for(T entity : entities) {
-            try {
+        try {
+            for(T entity : entities) {
                 em.persist(entity);
-                em.flush();
                 result.add(entity);
             }
-            catch (RuntimeException e) {
-                if(!transactionAlreadyStarted) {
-                    em.getTransaction().rollback();
-                }
-                throw e;
+            em.flush();
+        }
+        catch (RuntimeException e) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().rollback();
             }
+            throw e;
         }
         if(!transactionAlreadyStarted) {
             em.getTransaction().commit();
@@ -92,9 +125,30 @@ public class RepositoryJPA implements Repository {
         return result;
     }
 
+    /**
+     * <p>Persist entities in chunks of <code>batchSize</code>. Each chunk is flushed once, so the
+     * JDBC batch-writing configured for the provider can group the inserts, and the entities of the chunk
+     * are detached after every chunk to keep memory bounded for large imports. The persistence context is
+     * only cleared when this method owns the transaction, so entities the caller loaded in its own
+     * transaction stay managed.</p>
+     * <p>If no transaction is active, every chunk is committed in its own transaction. A failing chunk
+     * is rolled back and reported in the returned {@link BatchResult}, while chunks already committed
+     * are kept. If the caller has started a transaction, the first failure is rethrown.</p>
+     * <p>Note: entities are detached when this method returns.</p>
+     */
+    @Override
+    public <T> BatchResult<T> persist(final Collection<T> entities, final int batchSize) {
+        return executeInChunks(entities, batchSize, (em, chunk) -> {
+            for (T entity : chunk) {
+                em.persist(entity);
+            }
+            return chunk;
+        });
+    }
+
     @Override
     public <T> T merge(final T entity) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
@@ -121,23 +175,22 @@ public class RepositoryJPA implements Repository {
     @Override
     public <T> Collection<T> merge(final Collection<T> entities) {
         final Collection<T> result = Lists.newArrayList();
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
         }
-        for(T entity : entities) {
-            try {
-                T e = em.merge(entity);
-                em.flush();
-                result.add(e);
+        try {
+            for(T entity : entities) {
+                result.add(em.merge(entity));
             }
-            catch (RuntimeException e) {
-                if(!transactionAlreadyStarted) {
-                    em.getTransaction().rollback();
-                }
-                throw e;
+            em.flush();
+        }
+        catch (RuntimeException e) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().rollback();
             }
+            throw e;
         }
         if(!transactionAlreadyStarted) {
             em.getTransaction().commit();
@@ -145,17 +198,31 @@ public class RepositoryJPA implements Repository {
         return result;
     }
 
+    /**
+     * Merge entities in chunks of <code>batchSize</code>.
+     * See {@link #persist(java.util.Collection, int)} for transaction and failure handling.
+     */
+    @Override
+    public <T> BatchResult<T> merge(final Collection<T> entities, final int batchSize) {
+        return executeInChunks(entities, batchSize, (em, chunk) -> {
+            final List<T> result = new ArrayList<>(chunk.size());
+            for (T entity : chunk) {
+                result.add(em.merge(entity));
+            }
+            return result;
+        });
+    }
+
     @Override
     public <T> T createOrUpdate(final T entity) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
         }
         try {
             T result = entity;
-            Member member = getMemberAnnotadedWithId(entity.getClass());
-            Object id = getMemberValue(member, entity);
+            Object id = getIdValue(entity);
             String logMsg = "Entity '{}'  with id '{}' ";
 
             if(em.find(entity.getClass(), id) != null) {
@@ -184,34 +251,29 @@ public class RepositoryJPA implements Repository {
         }
     }
 
+    /**
+     * <p>Create or update entities. Existing entities are resolved with one <code>where e.id in :ids</code>
+     * query per entity class, split in chunks of {@link #IN_CLAUSE_SIZE} distinct ids, instead of one find per
+     * entity. The loaded entities stay in the persistence context, so the following merge does not hit the database.
+     * An id occurring more than once in the collection is created by its first entity and updated by the rest.</p>
+     */
     @Override
     public <T> Collection<T> createOrUpdate(final Collection<T> entities) {
         final Collection<T> result = Lists.newArrayList();
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
         }
-        for(T entity : entities) {
-            try {
-                T e = entity;
-                Member member = getMemberAnnotadedWithId(entity.getClass());
-                Object id = getMemberValue(member, entity);
-                if(em.find(entity.getClass(), id) != null) {
-                    e = em.merge(entity);
-                }
-                else {
-                    em.persist(entity);
-                }
-                em.flush();
-                result.add(e);
-            }
-            catch (RuntimeException e) {
-                if(!transactionAlreadyStarted) {
-                    em.getTransaction().rollback();
-                }
-                throw e;
+        try {
+            result.addAll(createOrUpdateEntities(em, entities));
+            em.flush();
+        }
+        catch (RuntimeException e) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().rollback();
             }
+            throw e;
         }
         if(!transactionAlreadyStarted) {
             em.getTransaction().commit();
@@ -219,9 +281,90 @@ public class RepositoryJPA implements Repository {
         return result;
     }
 
+    /**
+     * Create or update entities in chunks of <code>batchSize</code>, resolving existing ids once per chunk.
+     * See {@link #createOrUpdate(java.util.Collection)} and {@link #persist(java.util.Collection, int)}.
+     */
+    @Override
+    public <T> BatchResult<T> createOrUpdate(final Collection<T> entities, final int batchSize) {
+        return executeInChunks(entities, batchSize, RepositoryJPA::createOrUpdateEntities);
+    }
+
+    /**
+     * <p>Create or update one row with a single native statement, e.g. H2's <code>MERGE INTO ... KEY(...)</code>.
+     * The SQL dialect is resolved from the JDBC url of the EntityManagerFactory.</p>
+     * <p>Note: The statement bypasses the persistence context. Clear or refresh entities mapped to the table
+     * after the upsert. The entity class is evicted from the shared cache by this method.</p>
+     * <p>The statement bypasses the bean validation of the JPA provider. The entity of
+     * {@link NativeUpsert#of(Object, String)} is validated by this method, with the validator factory of the
+     * persistence unit.</p>
+     *
+     * @return the number of rows affected
+     * @throws ConstraintViolationException if the entity is not valid
+     */
+    @Override
+    public int upsert(final NativeUpsert upsert) {
+        EntityManager em = writableEntityManager();
+        if(upsert.entity() != null) {
+            validate(em, upsert.entity());
+        }
+        final NativeUpsert.Dialect dialect = NativeUpsert.Dialect.forJdbcUrl(
+                (String) em.getEntityManagerFactory().getProperties().get(JDBC_URL));
+
+        final Query query = em.createNativeQuery(upsert.sql(dialect));
+        int i = 1;
+        for (Object parameter : upsert.parameters()) {
+            query.setParameter(i++, parameter);
+        }
+
+        boolean transactionAlreadyStarted = em.isJoinedToTransaction();
+        if(!transactionAlreadyStarted) {
+            em.getTransaction().begin();
+        }
+        try {
+            int n = query.executeUpdate();
+            em.getEntityManagerFactory().getCache().evict(upsert.entityClass());
+            if(logger.isDebugEnabled()) logger.debug("Upsert into '{}' affected {} row(s)", upsert.table(), n);
+            return n;
+        }
+        catch (RuntimeException e) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().rollback();
+            }
+            transactionAlreadyStarted = true;  // block commit in finally block
+            throw e;
+        }
+        finally {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().commit();
+            }
+        }
+    }
+
+    private static void validate(final EntityManager em, final Object entity) {
+        final Map<String, Object> properties = em.getEntityManagerFactory().getProperties();
+        if("NONE".equalsIgnoreCase(String.valueOf(properties.get(VALIDATION_MODE)))) {
+            return;
+        }
+        final Object factory = properties.get(VALIDATION_FACTORY);
+        final ValidatorFactory validatorFactory = factory instanceof ValidatorFactory
+                ? (ValidatorFactory) factory
+                : DefaultValidatorFactory.INSTANCE;
+
+        final Set<ConstraintViolation<Object>> violations = validatorFactory.getValidator().validate(entity);
+        if(!violations.isEmpty()) {
+            throw new ConstraintViolationException(new HashSet<>(violations));
+        }
+    }
+
+    // Built on first use, as the JPA providers do when no validator factory is given
+    private static final class DefaultValidatorFactory {
+        static final ValidatorFactory INSTANCE = Validation.buildDefaultValidatorFactory();
+    }
+
     @Override
     public <T> void remove(final T entity) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
@@ -246,7 +389,7 @@ public class RepositoryJPA implements Repository {
 
     @Override
     public <T> void remove(final Class<T> entityClass, final Object id) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         final T entity = em.find(entityClass, id);
         if(entity != null) {
             boolean transactionAlreadyStarted = em.isJoinedToTransaction();
@@ -280,28 +423,42 @@ public class RepositoryJPA implements Repository {
 
     @Override
     public <T> void remove(final Collection<T> entities) {
-        EntityManager em = getEntityManager();
+        EntityManager em = writableEntityManager();
         boolean transactionAlreadyStarted = em.isJoinedToTransaction();
         if(!transactionAlreadyStarted) {
             em.getTransaction().begin();
         }
-        for(T entity : entities) {
-            try {
+        try {
+            for(T entity : entities) {
                 em.remove(entity);
-                em.flush();
             }
-            catch (RuntimeException e) {
-                if(!transactionAlreadyStarted) {
-                    em.getTransaction().rollback();
-                }
-                throw e;
+            em.flush();
+        }
+        catch (RuntimeException e) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().rollback();
             }
+            throw e;
         }
         if(!transactionAlreadyStarted) {
             em.getTransaction().commit();
         }
     }
 
+    /**
+     * Remove entities in chunks of <code>batchSize</code>. Detached entities are merged before they are removed.
+     * See {@link #persist(java.util.Collection, int)} for transaction and failure handling.
+     */
+    @Override
+    public <T> BatchResult<T> remove(final Collection<T> entities, final int batchSize) {
+        return executeInChunks(entities, batchSize, (em, chunk) -> {
+            for (T entity : chunk) {
+                em.remove(em.contains(entity) ? entity : em.merge(entity));
+            }
+            return chunk;
+        });
+    }
+
     /**
      * Note: getReference returns a PROXY. Use getReference with care!!
      */
@@ -312,8 +469,7 @@ public class RepositoryJPA implements Repository {
 
         // EntityNotFoundException is not thrown as expected
         // Looks like the exception is embedded in the proxy!!
-        Member idMember = getMemberAnnotadedWithId(entityClass);
-        Object idValue = getMemberValue(idMember, entity);
+        Object idValue = getIdAccessor(entityClass).get(entity);
 
         if(idValue == null) {
             throw new EntityNotFoundException("Entity " + entityClass.getName() + " not found for id: " + id);
@@ -323,7 +479,9 @@ public class RepositoryJPA implements Repository {
 
     @Override
     public <T> T find(final Class<T> entityClass, final Object id) {
-        return getEntityManager().find(entityClass, id);
+        final EntityManager em = getEntityManager();
+        final Map<String, Object> hints = PersistenceProperties.readOnlyHints(em);
+        return hints.isEmpty() ? em.find(entityClass, id) : em.find(entityClass, id, hints);
     }
 
     @Override
@@ -333,11 +491,36 @@ public class RepositoryJPA implements Repository {
 
     @Override
     public <T> List<T> find(final Class<T> entityClass, final Integer offset, final Integer limit) {
+        final String entityName = entityName(entityClass);
+        final EntityManager em = getEntityManager();
+        TypedQuery<T> query = em.createQuery(String.format("select e from %s e", entityName), entityClass);
+
+        return findWithQuery(readOnlyHints(em, query), offset, limit);
+    }
+
+    /**
+     * <p>Stream all entities of a class through a forward-only JDBC cursor, reading <code>fetchSize</code> rows
+     * per round trip. The persistence context is cleared every <code>fetchSize</code> rows, so the heap stays flat
+     * for exports and reindexing of large tables.</p>
+     * <p>Note: Outside a transaction, entities managed by the EntityManager before the stream is read will be
+     * detached as well. Inside a transaction, pending changes are flushed, and only the streamed entities are
+     * detached. Close the stream, e.g. with try-with-resources, if it is not read to the end.</p>
+     */
+    @Override
+    public <T> Stream<T> stream(final Class<T> entityClass, final int fetchSize) {
         final String entityName = entityName(entityClass);
         TypedQuery<T> query = getEntityManager()
                 .createQuery(String.format("select e from %s e", entityName), entityClass);
 
-        return findWithQuery(query, offset, limit);
+        return stream(query, fetchSize);
+    }
+
+    /**
+     * Stream the result of a query. See {@link #stream(Class, int)}
+     */
+    @Override
+    public <T> Stream<T> stream(final TypedQuery<T> query, final int fetchSize) {
+        return ResultCursor.stream(getEntityManager(), query, fetchSize);
     }
 
     /**
@@ -363,7 +546,8 @@ public class RepositoryJPA implements Repository {
     public <T> TypedQuery<T> createQuery(
             final String jpql, final Class<T> resultClass, final Map<String, Object> parameters)
     {
-        final TypedQuery<T> query = getEntityManager().createQuery(jpql, resultClass);
+        final EntityManager em = getEntityManager();
+        final TypedQuery<T> query = readOnlyHints(em, em.createQuery(jpql, resultClass));
         addQueryParameters(query, parameters);
         return query;
     }
@@ -372,7 +556,8 @@ public class RepositoryJPA implements Repository {
     public <T> TypedQuery<T> createNamedQuery(
             final String queryName, final Class<T> resultClass, final Map<String, Object> parameters)
     {
-        final TypedQuery<T> query = getEntityManager().createNamedQuery(queryName, resultClass);
+        final EntityManager em = getEntityManager();
+        final TypedQuery<T> query = readOnlyHints(em, em.createNamedQuery(queryName, resultClass));
         addQueryParameters(query, parameters);
         return query;
     }
@@ -403,6 +588,129 @@ public class RepositoryJPA implements Repository {
         return query;
     }
 
+    private <T> BatchResult<T> executeInChunks(
+            final Collection<T> entities, final int batchSize, final ChunkOperation<T> operation) {
+
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be greater than zero");
+
+        final BatchResult<T> result = new BatchResult<>();
+        EntityManager em = writableEntityManager();
+        boolean transactionAlreadyStarted = em.isJoinedToTransaction();
+        int chunkIndex = 0;
+
+        for (List<T> chunk : Iterables.partition(entities, batchSize)) {
+            if(!transactionAlreadyStarted) {
+                em.getTransaction().begin();
+            }
+            try {
+                final List<T> accepted = operation.apply(em, chunk);
+                em.flush();
+                if(!transactionAlreadyStarted) {
+                    em.getTransaction().commit();
+                }
+                else {
+                    // The caller's entities must stay managed, detach just the entities of this chunk
+                    accepted.forEach(em::detach);
+                }
+                result.accepted(accepted);
+            }
+            catch (RuntimeException e) {
+                if(transactionAlreadyStarted) {
+                    throw e;
+                }
+                if(em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                result.failed(chunkIndex, chunk, e);
+                logger.warn("Chunk {} with {} entities failed: {}", chunkIndex, chunk.size(), e.getMessage());
+            }
+            finally {
+                if(!transactionAlreadyStarted) {
+                    em.clear();
+                }
+            }
+            chunkIndex++;
+        }
+        if(logger.isDebugEnabled()) logger.debug("Executed {} chunks. {}", chunkIndex, result);
+        return result;
+    }
+
+    private static <T> List<T> createOrUpdateEntities(final EntityManager em, final Collection<T> entities) {
+        final Map<Class<?>, Set<Object>> existingIds = findExistingIds(em, entities);
+        final List<T> result = new ArrayList<>(entities.size());
+        int created = 0;
+
+        for (T entity : entities) {
+            Object id = getIdValue(entity);
+            Set<Object> ids = existingIds.get(entity.getClass());
+            boolean exists = ids != null
+                    ? ids.contains(id)
+                    : id != null && em.find(entity.getClass(), id) != null;  // e.g. @EmbeddedId
+
+            if(exists) {
+                result.add(em.merge(entity));
+            }
+            else {
+                em.persist(entity);
+                result.add(entity);
+                created++;
+                if(ids != null && id != null) {
+                    ids.add(id);  // Later entities with the same id are merged into this one
+                }
+            }
+        }
+        if(logger.isDebugEnabled()) logger.debug("{} entities created, {} updated", created, result.size() - created);
+        return result;
+    }
+
+    /**
+     * Load the entities that already exists in the database, using one IN query per entity class and chunk of ids.
+     * Entity classes with an @EmbeddedId are not resolved, since JPQL does not support IN for embeddables.
+     *
+     * @return existing ids keyed by entity class
+     */
+    private static <T> Map<Class<?>, Set<Object>> findExistingIds(final EntityManager em, final Collection<T> entities) {
+        final Map<Class<?>, Set<Object>> idsByClass = new HashMap<>();
+        for (T entity : entities) {
+            IdAccessor accessor = getIdAccessor(entity.getClass());
+            if(accessor.isEmbeddedId()) {
+                continue;
+            }
+            Set<Object> ids = idsByClass.computeIfAbsent(entity.getClass(), k -> new LinkedHashSet<>());
+            Object id = accessor.get(entity);
+            if(id != null) {
+                ids.add(id);
+            }
+        }
+
+        final Map<Class<?>, Set<Object>> existingIds = new HashMap<>();
+        for (Map.Entry<Class<?>, Set<Object>> entry : idsByClass.entrySet()) {
+            final Class<?> entityClass = entry.getKey();
+            final IdAccessor accessor = getIdAccessor(entityClass);
+            final String jpql = String.format("select e from %s e where e.%s in :ids",
+                    entityName(entityClass), accessor.attributeName());
+
+            final Set<Object> ids = new HashSet<>();
+            for (List<Object> chunk : Iterables.partition(entry.getValue(), IN_CLAUSE_SIZE)) {
+                for (Object e : em.createQuery(jpql, entityClass).setParameter("ids", chunk).getResultList()) {
+                    ids.add(accessor.get(e));
+                }
+            }
+            existingIds.put(entityClass, ids);
+        }
+        return existingIds;
+    }
+
+    private static <T> TypedQuery<T> readOnlyHints(final EntityManager em, final TypedQuery<T> query) {
+        PersistenceProperties.readOnlyHints(em).forEach(query::setHint);
+        return query;
+    }
+
+    @FunctionalInterface
+    private interface ChunkOperation<T> {
+        List<T> apply(EntityManager em, List<T> chunk);
+    }
+
     public static <T> List<T> findWithQuery(final TypedQuery<T> query, final Integer offset, final Integer limit) {
         if(MoreObjects.firstNonNull(offset, 0) > 0) {
             query.setFirstResult(offset);
@@ -453,11 +761,14 @@ public class RepositoryJPA implements Repository {
     }
 
 
-    private static final ConcurrentMap<String, Member> entityIdCache = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, IdAccessor> entityIdCache = new ConcurrentHashMap<>();
 
-    public static <T> Member getMemberAnnotadedWithId(final Class<T> entityClass) {
-        Member member = entityIdCache.get(entityClass.getName());
-        if(member == null) {
+    /**
+     * @return a compiled accessor for the member annotated with @Id or @EmbeddedId, cached per entity class
+     */
+    public static IdAccessor getIdAccessor(final Class<?> entityClass) {
+        IdAccessor accessor = entityIdCache.get(entityClass);
+        if(accessor == null) {
             List<Member> m = findMembersAnnotatedWith(entityClass, Id.class, EmbeddedId.class);
             if(m.size() > 1) {
                 throw new IllegalStateException("Multile @Id annotations are not supported by this repository. " +
@@ -466,10 +777,18 @@ public class RepositoryJPA implements Repository {
             else if(m.size() < 1) {
                 throw new IllegalStateException("Entity without @Id annotation is not supported by this repository.");
             }
-            entityIdCache.putIfAbsent(entityClass.getName(), m.get(0));
-            return entityIdCache.get(entityClass.getName());
+            entityIdCache.putIfAbsent(entityClass, IdAccessor.of(m.get(0)));
+            return entityIdCache.get(entityClass);
         }
-        return member;
+        return accessor;
+    }
+
+    public static <T> Member getMemberAnnotadedWithId(final Class<T> entityClass) {
+        return getIdAccessor(entityClass).member();
+    }
+
+    public static Object getIdValue(final Object entity) {
+        return getIdAccessor(entity.getClass()).get(entity);
     }
 
 
@@ -500,34 +819,48 @@ public class RepositoryJPA implements Repository {
         return member instanceof Field ? getFieldValue((Field) member, target) : getMethodValue((Method) member, target);
     }
 
+    // The accessible flag is set, but never reset. Resetting it races with other threads reading the same member
     public static Object getFieldValue(final Field field, final Object target) {
-        final boolean accessible = field.isAccessible();
         try {
-            field.setAccessible(true);
+            if(!field.isAccessible()) {
+                field.setAccessible(true);
+            }
             return field.get(target);
         }
         catch (final Exception e) {
             throw new IllegalArgumentException("Could not get field value by reflection: " + fieldToString(field), e);
         }
-        finally {
-            field.setAccessible(accessible);
-        }
     }
 
     // TODO: Use e.g. fest-reflect
     public static Object getMethodValue(final Method method, final Object target) {
-        final boolean accessible = method.isAccessible();
         try {
-            method.setAccessible(true);
+            if(!method.isAccessible()) {
+                method.setAccessible(true);
+            }
             return method.invoke(target, (Object[]) null);
         }
         catch (final Exception e) {
             throw new IllegalArgumentException(
                     "Not a valid getter method: %s" + methodToString(method), e);
         }
-        finally {
-            method.setAccessible(accessible);
+    }
+
+    /**
+     * @return the persistent attribute name of an id field or getter, e.g. "id" for both <code>id</code> and <code>getId()</code>
+     */
+    public static String idAttributeName(final Member member) {
+        String name = member.getName();
+        if(member instanceof Method) {
+            if(name.startsWith("get") && name.length() > 3) {
+                name = name.substring(3);
+            }
+            else if(name.startsWith("is") && name.length() > 2) {
+                name = name.substring(2);
+            }
+            name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
         }
+        return name;
     }
 
     public static String fieldToString(final Field field) {
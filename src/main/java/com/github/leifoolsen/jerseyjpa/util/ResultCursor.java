@@ -0,0 +1,203 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>A forward-only JDBC cursor over the result of a query, exposed as a {@link Stream}.</p>
+ * <p>The persistence context is cleared every <code>fetchSize</code> rows, before the next row is read,
+ * so memory stays flat no matter how many rows are read. An entity returned by the cursor is detached
+ * when the next chunk of rows is fetched.</p>
+ * <p>Inside a transaction the caller has joined, the persistence context holds the caller's changes, and is not
+ * cleared. The changes are flushed, and only the entities of the chunk returned by the cursor are detached.</p>
+ * <p>Provider specific cursors:</p>
+ * <ul>
+ *     <li>EclipseLink: ScrollableCursor, using the <code>eclipselink.cursor.scrollable</code> query hint</li>
+ *     <li>Hibernate: ScrollableResults, ScrollMode.FORWARD_ONLY with read only entities</li>
+ * </ul>
+ * <p>Other providers fall back to reading the full result list.</p>
+ * <p>The cursor is closed when the last row is read, or when the stream is closed.
+ * Use try-with-resources if the stream may not be read to the end.</p>
+ */
+abstract class ResultCursor<T> implements Iterator<T>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ResultCursor.class);
+
+    private final EntityManager em;
+    private final int fetchSize;
+    private final List<T> chunk = new ArrayList<>();
+    private Boolean entityRows;
+    private long count = 0;
+    private T next;
+    private boolean exhausted = false;
+
+    private ResultCursor(final EntityManager em, final int fetchSize) {
+        this.em = em;
+        this.fetchSize = fetchSize;
+    }
+
+    static <T> Stream<T> stream(final EntityManager em, final TypedQuery<T> query, final int fetchSize) {
+        Preconditions.checkArgument(fetchSize > 0, "Fetch size must be greater than zero");
+
+        final String provider = PersistenceProperties.providerName(em);
+        final ResultCursor<T> cursor;
+        if(PersistenceProperties.ECLIPSELINK.equals(provider)) {
+            cursor = new EclipseLinkCursor<>(em, query, fetchSize);
+        }
+        else if(PersistenceProperties.HIBERNATE.equals(provider)) {
+            cursor = new HibernateCursor<>(em, query, fetchSize);
+        }
+        else {
+            logger.warn("No cursor support for JPA provider '{}'. Reading full result list.", provider);
+            cursor = new ListCursor<>(em, query, fetchSize);
+        }
+
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next == null && !exhausted) {
+            if(count > 0 && count % fetchSize == 0) {
+                clearChunk();
+            }
+            next = advance();
+            exhausted = next == null;
+            if(exhausted) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final T result = next;
+        next = null;
+        count++;
+        chunk.add(result);
+        return result;
+    }
+
+    private void clearChunk() {
+        if(em.isJoinedToTransaction()) {
+            // The caller's changes must not be lost, and the caller's entities must stay managed
+            em.flush();
+            if(isEntity(chunk.get(0))) {
+                chunk.forEach(em::detach);
+            }
+        }
+        else {
+            em.clear();
+        }
+        chunk.clear();
+    }
+
+    private boolean isEntity(final T row) {
+        if(entityRows == null) {
+            entityRows = em.getMetamodel().getEntities().stream().anyMatch(e -> e.getJavaType().isInstance(row));
+        }
+        return entityRows;
+    }
+
+    /**
+     * @return the next row, or null if there are no more rows
+     */
+    protected abstract T advance();
+
+    @Override
+    public abstract void close();
+
+
+    private static class EclipseLinkCursor<T> extends ResultCursor<T> {
+        private final org.eclipse.persistence.queries.ScrollableCursor cursor;
+
+        private EclipseLinkCursor(final EntityManager em, final TypedQuery<T> query, final int fetchSize) {
+            super(em, fetchSize);
+            query.setHint(org.eclipse.persistence.config.QueryHints.SCROLLABLE_CURSOR, true);
+            query.setHint(org.eclipse.persistence.config.QueryHints.RESULT_SET_TYPE,
+                    org.eclipse.persistence.config.ResultSetType.ForwardOnly);
+            query.setHint(org.eclipse.persistence.config.QueryHints.RESULT_SET_CONCURRENCY,
+                    org.eclipse.persistence.config.ResultSetConcurrency.ReadOnly);
+            query.setHint(org.eclipse.persistence.config.QueryHints.JDBC_FETCH_SIZE, fetchSize);
+            cursor = (org.eclipse.persistence.queries.ScrollableCursor) query.getSingleResult();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected T advance() {
+            return !cursor.isClosed() && cursor.hasNext() ? (T) cursor.next() : null;
+        }
+
+        @Override
+        public void close() {
+            if(!cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+
+    private static class HibernateCursor<T> extends ResultCursor<T> {
+        private final org.hibernate.ScrollableResults results;
+        private boolean closed = false;
+
+        private HibernateCursor(final EntityManager em, final TypedQuery<T> query, final int fetchSize) {
+            super(em, fetchSize);
+            results = query.unwrap(org.hibernate.Query.class)
+                    .setFetchSize(fetchSize)
+                    .setReadOnly(true)
+                    .scroll(org.hibernate.ScrollMode.FORWARD_ONLY);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected T advance() {
+            return !closed && results.next() ? (T) results.get(0) : null;
+        }
+
+        @Override
+        public void close() {
+            if(!closed) {
+                closed = true;
+                results.close();
+            }
+        }
+    }
+
+
+    private static class ListCursor<T> extends ResultCursor<T> {
+        private final Iterator<T> iterator;
+
+        private ListCursor(final EntityManager em, final TypedQuery<T> query, final int fetchSize) {
+            super(em, fetchSize);
+            iterator = query.getResultList().iterator();
+        }
+
+        @Override
+        protected T advance() {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public void close() {
+            // NOOP
+        }
+    }
+}
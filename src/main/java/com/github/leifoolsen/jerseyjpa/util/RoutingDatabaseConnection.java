@@ -0,0 +1,223 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Provider;
+import javax.persistence.EntityManager;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>Routes units of work to a primary or a read replica persistence unit. Units of work that write go to the
+ * primary. Read-only units of work, see {@link #beginLazily(boolean, long)}, go to the replica when it is fresh
+ * enough, else to the primary.</p>
+ * <p>The replica is fresh enough if:</p>
+ * <ul>
+ *     <li>its replication lag is known and at most <code>maxLagMillis</code>, e.g. measured by a
+ *     {@link ReplicationHeartbeat}, and</li>
+ *     <li>it has applied the last write of the client (read-your-writes). The client tells when its last write
+ *     committed, e.g. by a cookie set in the response of the write. A write committed at a time T has been
+ *     applied by the replica when <code>now - lag &gt;= T</code>. The writes of other clients are not waited for.</li>
+ * </ul>
+ * <p>A unit of work stays with the connection it was routed to until it ends, so a request never
+ * reads from both. The route is the connection the unit of work is bound to, and so continues with the unit of
+ * work on other threads, see {@link UnitOfWorkContext}. A read the replica can not serve is moved to the primary
+ * before it starts, see {@link #readFromPrimary()}.</p>
+ * <p>Without a replica, every unit of work goes to the primary.</p>
+ */
+public class RoutingDatabaseConnection implements UnitOfWork, Provider<EntityManager> {
+    private static final Logger logger = LoggerFactory.getLogger(RoutingDatabaseConnection.class);
+
+    private final JpaDatabaseConnectionManager.JpaDatabaseConnection primary;
+    private final JpaDatabaseConnectionManager.JpaDatabaseConnection replica;
+    private final LongSupplier replicaLagMillis;
+    private final long maxLagMillis;
+    private final ReplicationHeartbeat heartbeat;
+
+    public RoutingDatabaseConnection(final JpaDatabaseConnectionManager.JpaDatabaseConnection primary) {
+        this(primary, null, () -> Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param heartbeat measures the replication lag. Started and stopped with this connection
+     * @param maxLagMillis the replica is not used when it lags more than this
+     */
+    public RoutingDatabaseConnection(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection primary,
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection replica,
+            final ReplicationHeartbeat heartbeat,
+            final long maxLagMillis) {
+
+        this(primary, replica, heartbeat::lagMillis, maxLagMillis, heartbeat);
+    }
+
+    /**
+     * @param replica the read replica, or null if there is none
+     * @param replicaLagMillis how far the replica is behind the primary. Called for every read-only unit of work,
+     *                         cache the value if it is queried from the database. A negative value or an exception
+     *                         means the lag is unknown, and the primary is used
+     * @param maxLagMillis the replica is not used when it lags more than this
+     */
+    public RoutingDatabaseConnection(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection primary,
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection replica,
+            final LongSupplier replicaLagMillis,
+            final long maxLagMillis) {
+
+        this(primary, replica, replicaLagMillis, maxLagMillis, null);
+    }
+
+    private RoutingDatabaseConnection(
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection primary,
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection replica,
+            final LongSupplier replicaLagMillis,
+            final long maxLagMillis,
+            final ReplicationHeartbeat heartbeat) {
+
+        this.primary = Preconditions.checkNotNull(primary, "Primary connection may not be null");
+        this.replica = replica;
+        this.replicaLagMillis = Preconditions.checkNotNull(replicaLagMillis, "Replica lag may not be null");
+        this.maxLagMillis = maxLagMillis;
+        this.heartbeat = heartbeat;
+    }
+
+    public synchronized void start() {
+        primary.start();
+        if(replica != null) {
+            replica.start();
+            if(heartbeat != null) {
+                heartbeat.start();
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        end();
+        if(heartbeat != null) {
+            heartbeat.stop();
+        }
+        if(replica != null) {
+            replica.stop();
+        }
+        primary.stop();
+    }
+
+    public JpaDatabaseConnectionManager.JpaDatabaseConnection primary() {
+        return primary;
+    }
+
+    /**
+     * @return the replica, or null if there is none
+     */
+    public JpaDatabaseConnectionManager.JpaDatabaseConnection replica() {
+        return replica;
+    }
+
+    /**
+     * @return the connection the unit of work of this thread is routed to, the primary if there is none
+     */
+    public JpaDatabaseConnectionManager.JpaDatabaseConnection current() {
+        return replica != null && replica.context() != null ? replica : primary;
+    }
+
+    public UnitOfWork unitOfWork() {
+        return this;
+    }
+
+    public Provider<EntityManager> provider() {
+        return this;
+    }
+
+    /**
+     * Begin a unit of work on the primary
+     */
+    @Override
+    public EntityManager begin() {
+        return primary.begin();
+    }
+
+    /**
+     * Begin a unit of work of a client with no writes to wait for, see {@link #beginLazily(boolean, long)}
+     */
+    @Override
+    public Provider<EntityManager> beginLazily(final boolean readOnly) {
+        return beginLazily(readOnly, 0);
+    }
+
+    /**
+     * @param readOnly if true, the unit of work goes to the replica when it is fresh enough
+     * @param lastWriteMillis when the last write of the client committed, 0 if none
+     */
+    public Provider<EntityManager> beginLazily(final boolean readOnly, final long lastWriteMillis) {
+        if(readOnly && isReplicaFresh(lastWriteMillis)) {
+            replica.beginLazily(true);
+        }
+        else {
+            primary.beginLazily(readOnly);
+        }
+        return this;
+    }
+
+    @Override
+    public void end() {
+        current().end();
+    }
+
+    @Override
+    public UnitOfWorkContext context() {
+        return current().context();
+    }
+
+    @Override
+    public UnitOfWorkContext detach() {
+        return current().detach();
+    }
+
+    @Override
+    public EntityManager get() {
+        return current().get();
+    }
+
+    /**
+     * Move the read-only unit of work of this thread from the replica to the primary, for a read the replica can not
+     * serve, e.g. a full-text search using an index kept by the primary only. Does nothing if the unit of work is
+     * on the primary
+     *
+     * @throws IllegalStateException if the unit of work has already read from the replica
+     */
+    public void readFromPrimary() {
+        final UnitOfWorkContext context = replica != null ? replica.context() : null;
+        if(context != null) {
+            Preconditions.checkState(!context.isUsed(), "Unit of work has already read from the replica");
+            replica.end();
+            primary.beginLazily(true);
+        }
+    }
+
+    /**
+     * @return true if a read-only unit of work of a client with no writes to wait for would go to the replica
+     */
+    public boolean isReplicaFresh() {
+        return isReplicaFresh(0);
+    }
+
+    /**
+     * @param lastWriteMillis when the last write of the client committed, 0 if none
+     * @return true if a read-only unit of work of the client started now would go to the replica
+     */
+    public boolean isReplicaFresh(final long lastWriteMillis) {
+        if(replica == null) {
+            return false;
+        }
+        final long lag;
+        try {
+            lag = replicaLagMillis.getAsLong();
+        }
+        catch (RuntimeException e) {
+            logger.warn("Replica lag unknown, reading from the primary", e);
+            return false;
+        }
+        return lag >= 0 && lag <= maxLagMillis && System.currentTimeMillis() - lag >= lastWriteMillis;
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import javax.persistence.EntityManager;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hit and miss counters of the shared (second level) entity cache and the query cache of the JPA provider.
+ * The counters are only collected in the "cached" profile, see {@link PersistenceProperties}.
+ */
+public class SharedCacheStatistics {
+    private SharedCacheStatistics() {}
+
+    /**
+     * @return counters by name, e.g. <code>cacheHits</code> and <code>cacheMisses</code>.
+     *         Empty if the provider does not collect statistics
+     */
+    public static Map<String, Long> of(final EntityManager em) {
+        final Map<String, Long> counters = new LinkedHashMap<>();
+        final String provider = PersistenceProperties.providerName(em);
+
+        if(PersistenceProperties.ECLIPSELINK.equals(provider)) {
+            final SessionProfiler profiler = JpaHelper.getServerSession(em.getEntityManagerFactory()).getProfiler();
+            if(profiler instanceof CacheHitProfiler) {
+                counters.put("cacheHits", ((CacheHitProfiler) profiler).hits());
+                counters.put("cacheMisses", ((CacheHitProfiler) profiler).misses());
+            }
+        }
+        else if(PersistenceProperties.HIBERNATE.equals(provider)) {
+            final Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+            if(statistics.isStatisticsEnabled()) {
+                counters.put("cacheHits", statistics.getSecondLevelCacheHitCount());
+                counters.put("cacheMisses", statistics.getSecondLevelCacheMissCount());
+                counters.put("queryCacheHits", statistics.getQueryCacheHitCount());
+                counters.put("queryCacheMisses", statistics.getQueryCacheMissCount());
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if there are no lookups
+     */
+    public static double hitRatio(final long hits, final long misses) {
+        return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+    }
+}
@@ -1,8 +1,38 @@
 package com.github.leifoolsen.jerseyjpa.util;
 
+import javax.inject.Provider;
 import javax.persistence.EntityManager;
 
 public interface UnitOfWork {
     EntityManager begin();
+
+    /**
+     * Begin a unit of work without creating an EntityManager. The EntityManager is created the first time
+     * the returned provider is asked for it, and {@link #end()} does nothing if it never was.
+     */
+    default Provider<EntityManager> beginLazily() {
+        return beginLazily(false);
+    }
+
+    /**
+     * @param readOnly if true, the EntityManager is configured for a unit of work that does not write,
+     *                 see {@link PersistenceProperties#readOnly(EntityManager)}
+     */
+    Provider<EntityManager> beginLazily(boolean readOnly);
+
     void end();
+
+    /**
+     * @return the unit of work bound to this thread, or null if there is none. Continue it on another thread
+     *         with {@link UnitOfWorkContext#wrap(java.util.concurrent.Callable)}
+     */
+    UnitOfWorkContext context();
+
+    /**
+     * Unbind the unit of work from this thread, e.g. when the response is completed by another thread.
+     * The unit of work is ended with {@link UnitOfWorkContext#end()}
+     *
+     * @return the unit of work, or null if there is none
+     */
+    UnitOfWorkContext detach();
 }
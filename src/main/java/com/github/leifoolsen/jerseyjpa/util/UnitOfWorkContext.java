@@ -0,0 +1,211 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * <p>The state of a unit of work: its EntityManager, created on first use, and whether it is read-only.
+ * A unit of work belongs to the request that began it, not to a thread. It is bound to the thread that began it,
+ * and may continue on other threads, e.g. an executor running an async JAX-RS response or a
+ * CompletableFuture stage, see {@link #wrap(Callable)}.</p>
+ * <p>An EntityManager is not thread safe. The first thread to use it owns it, until the thread is done with
+ * the unit of work, and any other thread using it meanwhile gets an IllegalStateException. A thread is done when
+ * a wrapped task returns, when the unit of work is detached from the thread, see {@link UnitOfWork#detach()},
+ * or when the thread wraps a task, and so hands the unit of work over to the task.</p>
+ * <p>{@link #end()} may be called from any thread. If another thread owns the EntityManager, it is closed when
+ * that thread is done with it.</p>
+ */
+public final class UnitOfWorkContext {
+
+    private final ThreadLocal<UnitOfWorkContext> binding;
+    private final Supplier<EntityManager> entityManagerFactory;
+    private final boolean readOnly;
+
+    private final AtomicReference<Thread> owner = new AtomicReference<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final List<Runnable> endListeners = new CopyOnWriteArrayList<>();
+    private volatile EntityManager em;
+    private volatile boolean used;
+    private volatile boolean ended;
+
+    /**
+     * @param binding the unit of work bound to each thread, by the connection of the unit of work
+     * @param entityManagerFactory creates the EntityManager on first use
+     */
+    UnitOfWorkContext(
+            final ThreadLocal<UnitOfWorkContext> binding, final Supplier<EntityManager> entityManagerFactory,
+            final boolean readOnly) {
+
+        this.binding = binding;
+        this.entityManagerFactory = entityManagerFactory;
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return true if the EntityManager is open
+     */
+    public boolean hasEntityManager() {
+        final EntityManager entityManager = em;
+        return entityManager != null && entityManager.isOpen();
+    }
+
+    /**
+     * @return true if the unit of work has created an EntityManager
+     */
+    public boolean isUsed() {
+        return used;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Add a listener called once, when the unit of work has ended and its EntityManager is closed
+     */
+    public UnitOfWorkContext onEnd(final Runnable listener) {
+        endListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * @return the EntityManager of the unit of work, owned by the calling thread
+     * @throws IllegalStateException if the unit of work has ended, or another thread owns the EntityManager
+     */
+    EntityManager entityManager() {
+        Preconditions.checkState(!ended, "Unit of work has ended");
+        claim();
+        if(em == null || !em.isOpen()) {
+            em = entityManagerFactory.get();
+            used = true;
+        }
+        return em;
+    }
+
+    /**
+     * @return a task continuing this unit of work on the thread running it. The calling thread hands the unit of
+     *         work over to the task, and must not use it until the task is done
+     */
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        release();
+        return () -> call(task);
+    }
+
+    /**
+     * For a stage of a CompletableFuture, see {@link #wrap(Callable)}
+     */
+    public <T> Supplier<T> wrapSupplier(final Supplier<T> task) {
+        final Callable<T> callable = wrap((Callable<T>) task::get);
+        return () -> {
+            try {
+                return callable.call();
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        };
+    }
+
+    /**
+     * @see #wrap(Callable)
+     */
+    public Runnable wrap(final Runnable task) {
+        final Supplier<Void> supplier = wrapSupplier(() -> {
+            task.run();
+            return null;
+        });
+        return supplier::get;
+    }
+
+    private <T> T call(final Callable<T> task) throws Exception {
+        final UnitOfWorkContext previous = binding.get();
+        binding.set(this);
+        try {
+            return task.call();
+        }
+        finally {
+            if(previous != null) {
+                binding.set(previous);
+            }
+            else {
+                binding.remove();
+            }
+            release();
+        }
+    }
+
+    /**
+     * End the unit of work and close its EntityManager, now or when the thread owning it is done with it
+     */
+    public void end() {
+        ended = true;
+        unbind();
+        release();
+    }
+
+    /**
+     * Unbind the unit of work from the calling thread, if bound
+     */
+    void unbind() {
+        if(binding.get() == this) {
+            binding.remove();
+        }
+    }
+
+    private void claim() {
+        final Thread current = Thread.currentThread();
+        while (!owner.compareAndSet(null, current)) {
+            final Thread other = owner.get();
+            if(other == current) {
+                return;
+            }
+            if(other != null) {
+                throw new IllegalStateException(
+                        "EntityManager of the unit of work is in use by thread " + other.getName());
+            }
+        }
+    }
+
+    /**
+     * The calling thread is done with the unit of work. Closes the EntityManager if the unit of work has ended
+     */
+    void release() {
+        final Thread current = Thread.currentThread();
+        owner.compareAndSet(current, null);
+        if(ended && owner.compareAndSet(null, current)) {
+            try {
+                close();
+            }
+            finally {
+                owner.set(null);
+            }
+        }
+    }
+
+    private void close() {
+        if(!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final EntityManager entityManager = em;
+            if(entityManager != null && entityManager.isOpen()) {
+                entityManager.close();
+            }
+        }
+        finally {
+            endListeners.forEach(Runnable::run);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs each task in the unit of work of the thread submitting it, if any, see {@link UnitOfWorkContext#wrap(Runnable)}.
+ * The submitting thread hands the unit of work over to the task, e.g. a request thread handing it over to the
+ * thread completing an async response.
+ */
+public class UnitOfWorkExecutor extends AbstractExecutorService {
+
+    private final Supplier<? extends UnitOfWork> unitOfWork;
+    private final ExecutorService executor;
+
+    /**
+     * @param unitOfWork gives the unit of work of the submitting thread, or null if there is no connection (yet)
+     * @param executor runs the tasks
+     */
+    public UnitOfWorkExecutor(final Supplier<? extends UnitOfWork> unitOfWork, final ExecutorService executor) {
+        this.unitOfWork = Preconditions.checkNotNull(unitOfWork, "Unit of work may not be null");
+        this.executor = Preconditions.checkNotNull(executor, "Executor may not be null");
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final UnitOfWork u = unitOfWork.get();
+        final UnitOfWorkContext context = u != null ? u.context() : null;
+        executor.execute(context != null && !context.isEnded() ? context.wrap(task) : task);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
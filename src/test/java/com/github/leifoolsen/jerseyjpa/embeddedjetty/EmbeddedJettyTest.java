@@ -5,17 +5,32 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 public class EmbeddedJettyTest {
+    private static final int PORT = 8080;
+
     private static Server server;
+    private static URI warmUpUri;
+    private static boolean openDuringWarmUp;
 
     @BeforeClass
     public static void startServer() throws Exception {
 
         // Start the server
-        server = new JettyFactory().build();
-        JettyFactory.start(server);
+        server = new JettyFactory().port(PORT).build();
+        JettyFactory.start(server, uri -> {
+            warmUpUri = uri;
+            openDuringWarmUp = isOpen(PORT);
+        });
     }
 
     @AfterClass
@@ -28,4 +43,23 @@ public class EmbeddedJettyTest {
         assertTrue(server.isStarted());
         assertTrue(server.isRunning());
     }
+
+    @Test
+    public void connectorShouldOpenAfterWarmUp() throws Exception {
+        assertFalse(openDuringWarmUp);
+        assertThat(warmUpUri.getPort(), not(equalTo(PORT)));
+        assertFalse(isOpen(warmUpUri.getPort()));
+
+        assertTrue(isOpen(PORT));
+        assertThat(server.getURI().getPort(), equalTo(PORT));
+    }
+
+    private static boolean isOpen(final int port) {
+        try (Socket socket = new Socket("localhost", port)) {
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
 }
@@ -3,10 +3,16 @@ package com.github.leifoolsen.jerseyjpa.repository;
 import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
 import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.BatchResult;
 import com.github.leifoolsen.jerseyjpa.util.DatabasePopulator;
 import com.github.leifoolsen.jerseyjpa.util.DomainPopulator;
+import com.github.leifoolsen.jerseyjpa.util.IdGenerator;
 import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.NativeUpsert;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
 import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.Repository;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -15,20 +21,34 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.EntityManager;
+import javax.validation.ConstraintViolationException;
 import java.time.LocalDate;
 import java.time.Month;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BookRepositoryJpaTest {
     private static final Logger logger = LoggerFactory.getLogger(BookRepositoryJpaTest.class);
@@ -40,6 +60,7 @@ public class BookRepositoryJpaTest {
     private static final String ISBN_VREDENS_DRUER = "9788253019727";
     private static final String ISBN_GUIDE_TO_MIDDLE_EARTH = "9780752495620";
     private static final String ISBN_TRAVELING_TO_INFINITY = "9781846883668";
+    private static final String ISBN_NOT_IN_DATABASE = "9780000000019";
 
 
     @BeforeClass
@@ -49,7 +70,7 @@ public class BookRepositoryJpaTest {
                 PersistenceProperties.HIBERNATE, null, Arrays.asList(Publisher.class, Book.class));
 
         // Start db
-        connection.properties(properties).start();
+        BookRepositoryJpa.registerStartListeners(connection.properties(properties)).start();
 
         // Create repositoty
         bookRepository = new BookRepositoryJpa(connection);
@@ -172,6 +193,153 @@ public class BookRepositoryJpaTest {
         assertThat(b.getVersion(), greaterThan(0L));
     }
 
+    @Test
+    public void persistInChunksShouldKeepAcceptedChunksAndReportFailedChunk() {
+        final Repository repository = new RepositoryJPA(connection);
+        final List<Publisher> publishers = Arrays.asList(
+                new Publisher("90001", "Chunk 0, publisher 1"),
+                new Publisher("90002", "Chunk 0, publisher 2"),
+                new Publisher("90003", "Chunk 1, publisher 1"),
+                new Publisher(DomainPopulator.PAX, "Chunk 1, duplicate code"),
+                new Publisher("90005", "Chunk 2, publisher 1"));
+
+        BatchResult<Publisher> result = repository.persist(publishers, 2);
+
+        assertThat(result.accepted(), hasSize(3));
+        assertThat(result.failures(), hasSize(1));
+        assertThat(result.failures().get(0).chunkIndex(), equalTo(1));
+        assertThat(result.failures().get(0).entities(), hasSize(2));
+
+        assertNotNull(bookRepository.findPublisherByCode("90001"));
+        assertNull(bookRepository.findPublisherByCode("90003"));
+        assertNotNull(bookRepository.findPublisherByCode("90005"));
+    }
+
+    @Test
+    public void persistInChunksShouldKeepTheCallersEntitiesManaged() {
+        final Repository repository = new RepositoryJPA(connection);
+        final EntityManager em = connection.provider().get();
+        final Publisher loaded = repository.find(Publisher.class, bookRepository.findPublisherByCode(DomainPopulator.PAX).getId());
+        final List<Publisher> publishers = Arrays.asList(
+                new Publisher("90011", "Joined chunk 0"),
+                new Publisher("90012", "Joined chunk 1"));
+
+        em.getTransaction().begin();
+        try {
+            BatchResult<Publisher> result = repository.persist(publishers, 1);
+            assertThat(result.accepted(), hasSize(2));
+            assertTrue(em.contains(loaded));
+            assertFalse(em.contains(publishers.get(0)));
+        }
+        finally {
+            em.getTransaction().rollback();
+        }
+    }
+
+    @Test
+    public void createOrUpdateShouldMergeANewIdOccurringTwice() {
+        final Repository repository = new RepositoryJPA(connection);
+        final String id = IdGenerator.getInstance().newId();
+
+        repository.createOrUpdate(Arrays.asList(
+                Publisher.copyOf(id, null, "90021", "First"),
+                Publisher.copyOf(id, null, "90021", "Second")));
+
+        connection.provider().get().clear();
+        assertThat(repository.find(Publisher.class, id).getName(), equalTo("Second"));
+    }
+
+    @Test
+    public void createOrUpdateBooksInChunks() {
+        final Publisher publisher = bookRepository.findPublisherByCode(DomainPopulator.PENGUIN);
+        assertNotNull(publisher);
+
+        final Book existingBook = bookRepository.findBookByISBN(ISBN_VREDENS_DRUER);
+        assertNotNull(existingBook);
+        final Long version = existingBook.getVersion();
+        connection.provider().get().clear();
+
+        final Book changedBook = Book.with(existingBook, true).title("Vredens druer (ny utgave)").build();
+        final Book aNewBook = Book.with("9780241951521")
+                .title("The Old Man and the Sea")
+                .author("Hemingway, Ernest")
+                .publisher(publisher)
+                .published(LocalDate.of(2011, Month.JANUARY, 1))
+                .build();
+
+        BatchResult<Book> result = bookRepository.createOrUpdateBooks(Arrays.asList(changedBook, aNewBook), 10);
+        assertThat(result.failures(), hasSize(0));
+        assertThat(result.accepted(), hasSize(2));
+
+        assertThat(bookRepository.findBookByISBN(ISBN_VREDENS_DRUER).getVersion(), greaterThan(version));
+        assertNotNull(bookRepository.findBookByISBN("9780241951521"));
+    }
+
+    @Test
+    public void createAndUpdateBookWithNativeUpsert() {
+        final Publisher publisher = bookRepository.findPublisherByCode(DomainPopulator.PENGUIN);
+        assertNotNull(publisher);
+
+        Book aNewBook = Book.with("9780141182636")
+                .title("The Great Gatsby")
+                .author("Fitzgerald, F. Scott")
+                .publisher(publisher)
+                .published(LocalDate.of(2000, Month.MARCH, 30))
+                .build();
+
+        Book created = bookRepository.createOrUpdateBook(aNewBook, true);
+        assertEquals(aNewBook.getId(), created.getId());
+        assertThat(created.getVersion(), equalTo(0L));
+
+        // Same ISBN, new id: existing id is kept and version is bumped
+        Book changedBook = Book.with(aNewBook, false).translator("Nobody").build();
+        Book updated = bookRepository.createOrUpdateBook(changedBook, true);
+        assertEquals(aNewBook.getId(), updated.getId());
+        assertEquals("Nobody", updated.getTranslator());
+        assertThat(updated.getVersion(), equalTo(1L));
+
+        // Columns are taken from the mapping of Book
+        final String sql = NativeUpsert.of(changedBook, "isbnNumber").sql(NativeUpsert.Dialect.H2);
+        for (String column : Arrays.asList("isbn_number", "title_search", "author_search", "publisher_id", "version")) {
+            assertTrue(column, sql.contains(column));
+        }
+
+        try {
+            bookRepository.createOrUpdateBook(Book.with(aNewBook, false).publisher(null).build(), true);
+            fail("Invalid book upserted");
+        }
+        catch (ConstraintViolationException e) {
+            assertThat(e.getConstraintViolations(), hasSize(1));
+        }
+    }
+
+    @Test
+    public void searchIndexShouldOnlyHoldCommittedBooks() {
+        final Publisher publisher = bookRepository.findPublisherByCode(DomainPopulator.PENGUIN);
+        final BookSearchIndex index = BookSearchIndex.getInstance();
+        final EntityManager em = connection.provider().get();
+        final String isbn = "9780141439518";
+
+        final Book rolledBack = Book.with(isbn).title("Pride and Prejudice").author("Austen, Jane").publisher(publisher).build();
+        em.getTransaction().begin();
+        bookRepository.newBook(rolledBack);
+        em.flush();
+        assertNull(index.findBookIdByIsbn(isbn));
+        em.getTransaction().rollback();
+        assertNull(index.findBookIdByIsbn(isbn));
+
+        final Book committed = Book.with(isbn).title("Pride and Prejudice").author("Austen, Jane").publisher(publisher).build();
+        em.getTransaction().begin();
+        bookRepository.newBook(committed);
+        em.flush();
+        assertNull(index.findBookIdByIsbn(isbn));
+        em.getTransaction().commit();
+        assertThat(index.findBookIdByIsbn(isbn), equalTo(committed.getId()));
+
+        bookRepository.deleteBook(committed.getId());
+        assertNull(index.findBookIdByIsbn(isbn));
+    }
+
     @Test
     public void shouldFindFivePublishers() {
         final List<Publisher> publishers = bookRepository.findPublishers(0, 5);
@@ -210,15 +378,442 @@ public class BookRepositoryJpaTest {
 
     @Test
     public void shouldFindAnyBookWithTextHawking() {
+        assertThat(BookSearchIndex.getInstance().isReady(), equalTo(true));
         final List<Book> books = bookRepository.findBooksBySearchType(
                 SearchType.Type.ANY, "hawking", null, null);
         assertThat(books, hasSize(greaterThan(1)));
 
     }
 
+    @Test
+    public void shouldFindBooksByPrefix() {
+        List<Book> books = bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "LOE, E*", null, null);
+        assertThat(books, hasSize(greaterThan(2)));
+        books.forEach(b -> assertThat(b.getAuthor(), startsWith("Loe, E")));
+
+        books = bookRepository.findBooksBySearchType(SearchType.Type.ISBN, "978825*", null, null);
+        assertThat(books, hasSize(greaterThan(0)));
+        books.forEach(b -> assertThat(b.getISBN(), startsWith("978825")));
+
+        // "erlend" is contained in, but is not a prefix of, the author
+        assertThat(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "erlend", null, null), hasSize(greaterThan(2)));
+        assertThat(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "erlend*", null, null), hasSize(0));
+    }
+
+    @Test
+    public void fullTextSearchShouldFindRankedBooks() {
+        final List<Book> books = bookRepository.findBooksByFullText("hawking", null, null);
+        assertThat(books, hasSize(greaterThan(1)));
+
+        final List<Book> page = bookRepository.findBooksByFullText("hawking", 1, 1);
+        assertThat(page, hasSize(1));
+        assertEquals(books.get(1).getId(), page.get(0).getId());
+
+        assertThat(bookRepository.findBooksByFullText("nosuchwordinanybook", null, null), hasSize(0));
+    }
+
+    @Test
+    public void existingFullTextIndexShouldBeKept() {
+        final List<String> before = bookRepository.findBooksByFullText("hawking", null, null)
+                .stream().map(Book::getId).collect(Collectors.toList());
+
+        final EntityManager em = connection.provider().get();
+        BookFullTextIndex.create(em.getEntityManagerFactory());
+
+        final List<String> after = bookRepository.findBooksByFullText("hawking", null, null)
+                .stream().map(Book::getId).collect(Collectors.toList());
+        assertThat(after, equalTo(before));
+        assertThat(((Number) em.createNativeQuery("SELECT COUNT(*) FROM FTL.INDEXES").getSingleResult()).intValue(),
+                equalTo(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFullTextQueryShouldThrowIllegalArgumentException() {
+        bookRepository.findBooksByFullText("title:(hawking", null, null);
+    }
+
+    @Test
+    public void searchIndexShouldMatchAndOrderAsTheDatabase() {
+        final BookRepositoryJpa database = new BookRepositoryJpa(
+                connection, new BookSearchIndex(), BookAnySearch.sequential(), new BookSearchCache(0),
+                new BookSnapshotCache(0), BookIsbnFilter.getInstance(), PublisherCodeCache.getInstance());
+
+        // Wildcards in a search value are matched literally
+        for (String value : Arrays.asList("the", "hawking", "8202", "e_e", "e%e", "!e!")) {
+            for (SearchType.Type t : SearchType.Type.values()) {
+                assertThat(t + " " + value, bookIds(bookRepository.findBooksBySearchType(t, value, null, null)),
+                        equalTo(bookIds(database.findBooksBySearchType(t, value, null, null))));
+            }
+        }
+        assertThat(database.findBooksBySearchType(SearchType.Type.TITLE, "_", null, null), hasSize(0));
+    }
+
+    @Test
+    public void anySearchShouldFindUnionOfFieldSearches() {
+        // A search index that is not ready, and a cache of size 0, makes the repository search the database
+        final BookSearchIndex noIndex = new BookSearchIndex();
+        final BookSearchCache noCache = new BookSearchCache(0);
+        final BookSnapshotCache noSnapshots = new BookSnapshotCache(0);
+        final BookRepositoryJpa sequential = new BookRepositoryJpa(
+                connection, noIndex, BookAnySearch.sequential(), noCache, noSnapshots, BookIsbnFilter.getInstance(),
+                PublisherCodeCache.getInstance());
+        final BookRepositoryJpa parallel = new BookRepositoryJpa(
+                connection, noIndex, BookAnySearch.parallel(2), noCache, noSnapshots, BookIsbnFilter.getInstance(),
+                PublisherCodeCache.getInstance());
+
+        for (String value : Arrays.asList("hawking", "loe*", "978825*", "no such text")) {
+            final SortedSet<String> expected = new TreeSet<>();
+            for (SearchType.Type t : SearchType.Type.values()) {
+                if(SearchType.Type.ANY != t) {
+                    bookRepository.findBooksBySearchType(t, value, null, null).forEach(b -> expected.add(b.getId()));
+                }
+            }
+            final List<String> ids = new ArrayList<>(expected);
+            assertThat(value, bookIds(sequential.findBooksBySearchType(SearchType.Type.ANY, value, null, null)), equalTo(ids));
+            assertThat(value, bookIds(parallel.findBooksBySearchType(SearchType.Type.ANY, value, null, null)), equalTo(ids));
+        }
+
+        final List<Book> all = sequential.findBooksBySearchType(SearchType.Type.ANY, "978*", null, null);
+        assertThat(all, hasSize(greaterThan(2)));
+        assertThat(bookIds(sequential.findBooksBySearchType(SearchType.Type.ANY, "978*", 1, 1)),
+                equalTo(bookIds(all.subList(1, 2))));
+        assertThat(bookIds(parallel.findBooksBySearchType(SearchType.Type.ANY, "978*",
+                        BookRepositoryJpa.cursorAfter(SearchType.Type.ANY, all.get(0)), 2)),
+                equalTo(bookIds(all.subList(1, 3))));
+        assertThat(bookIds(parallel.findBooksBySearchType(SearchType.Type.ANY, "978*",
+                        BookRepositoryJpa.cursorBefore(SearchType.Type.ANY, all.get(2)), 2)),
+                equalTo(bookIds(all.subList(0, 2))));
+
+        // Every field gives at most a page of ids from the cursor
+        final List<Book> matches = sequential.findBooksBySearchType(SearchType.Type.ANY, "a", null, null);
+        for (BookRepositoryJpa r : Arrays.asList(sequential, parallel)) {
+            final List<Book> found = new ArrayList<>();
+            PageCursor cursor = null;
+            List<Book> page;
+            do {
+                page = r.findBooksBySearchType(SearchType.Type.ANY, "a", cursor, 2);
+                found.addAll(page);
+                if(!page.isEmpty()) {
+                    cursor = BookRepositoryJpa.cursorAfter(SearchType.Type.ANY, page.get(page.size() - 1));
+                }
+            } while (page.size() == 2);
+            assertThat(bookIds(found), equalTo(bookIds(matches)));
+            assertThat(bookIds(r.findBooksBySearchType(SearchType.Type.ANY, "a", 3, 2)),
+                    equalTo(bookIds(matches.subList(3, 5))));
+        }
+    }
+
+    private static List<String> bookIds(final List<Book> books) {
+        return books.stream().map(Book::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void searchResultsShouldBeCachedUntilABookIsWritten() {
+        final BookSearchCache cache = BookSearchCache.getInstance();
+        cache.invalidateAll();
+        final long misses = cache.stats().missCount();
+        final long hits = cache.stats().hitCount();
+
+        final List<Book> books = bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "loe*", null, null);
+        assertThat(bookIds(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "LOE*", null, null)), equalTo(bookIds(books)));
+        assertThat(cache.stats().missCount() - misses, equalTo(1L));
+        assertThat(cache.stats().hitCount() - hits, equalTo(1L));
+
+        // Updating a book invalidates the cache
+        final Book book = bookRepository.findBookByISBN(ISBN_TRAVELING_TO_INFINITY);
+        final String author = book.getAuthor();
+        bookRepository.updateBook(Book.with(book, true).author("Loe, Jane").build());
+        assertThat(cache.size(), equalTo(0L));
+        assertThat(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "loe*", null, null), hasSize(books.size() + 1));
+
+        bookRepository.updateBook(Book.with(book, true).author(author).build());
+    }
+
+    @Test
+    public void uncommittedWritesShouldNotBeCached() {
+        final BookSearchCache cache = BookSearchCache.getInstance();
+        final List<Book> books = bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "loe*", null, null);
+        final Book book = bookRepository.findBookByISBN(ISBN_TRAVELING_TO_INFINITY);
+
+        final EntityManager em = connection.provider().get();
+        em.getTransaction().begin();
+        bookRepository.updateBook(Book.with(book, true).author("Loe, Jane").build());
+        em.flush();
+        assertThat(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "loe*", null, null), hasSize(books.size() + 1));
+        assertThat(cache.size(), greaterThan(0L));
+        em.getTransaction().rollback();
+
+        assertThat(bookIds(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, "loe*", null, null)), equalTo(bookIds(books)));
+    }
+
+    @Test
+    public void bookSnapshotShouldBeCachedUntilTheBookIsWritten() {
+        final BookSnapshotCache cache = BookSnapshotCache.getInstance();
+        final BookSnapshot first = bookRepository.findBookSnapshotByISBN(ISBN_VREDENS_DRUER);
+        assertNotNull(first);
+        assertThat(bookRepository.findBookSnapshotByISBN(ISBN_VREDENS_DRUER), sameInstance(first));
+
+        final Book book = bookRepository.findBookByISBN(ISBN_VREDENS_DRUER);
+        final String title = book.getTitle();
+        bookRepository.updateBook(Book.with(book, true).title("Vredens druer, 2. utgave").build());
+        assertNull(cache.get(ISBN_VREDENS_DRUER));
+
+        final BookSnapshot updated = bookRepository.findBookSnapshotByISBN(ISBN_VREDENS_DRUER);
+        assertThat(updated.getVersion(), greaterThan(first.getVersion()));
+        assertThat(updated.toBook().getTitle(), equalTo("Vredens druer, 2. utgave"));
+        assertThat(updated.toPublisher(), equalTo(book.getPublisher()));
+
+        // An older version never replaces a newer one
+        cache.put(first);
+        assertThat(bookRepository.findBookSnapshotByISBN(ISBN_VREDENS_DRUER), sameInstance(updated));
+
+        bookRepository.updateBook(Book.with(book, true).title(title).build());
+    }
+
+    @Test
+    public void removedBookShouldNotBeServedFromSnapshotCache() {
+        final Book book = bookRepository.newBook(Book.with("9780000000002")
+                .title("Zyxwvu")
+                .author("Author, An")
+                .publisher(bookRepository.findPublisherByCode(DomainPopulator.PENGUIN))
+                .build());
+
+        final BookSnapshot snapshot = bookRepository.findBookSnapshotByISBN(book.getISBN());
+        assertThat(snapshot.getId(), equalTo(book.getId()));
+
+        bookRepository.deleteBook(book);
+        assertNull(bookRepository.findBookSnapshotByISBN(book.getISBN()));
+
+        // A snapshot read before the book was removed is not cached
+        BookSnapshotCache.getInstance().put(snapshot);
+        assertNull(bookRepository.findBookSnapshotByISBN(book.getISBN()));
+    }
+
+    @Test
+    public void unknownIsbnShouldNotBeLookedUp() {
+        final BookIsbnFilter filter = BookIsbnFilter.getInstance();
+        assertThat(filter.isReady(), equalTo(true));
+        assertThat(filter.mightContain(ISBN_VREDENS_DRUER), equalTo(true));
+        assertThat(filter.mightContain(ISBN_NOT_IN_DATABASE), equalTo(false));
+
+        // A definite miss does not use the EntityManager
+        final BookRepositoryJpa repository = new BookRepositoryJpa(
+                () -> { throw new IllegalStateException("EntityManager should not be used"); },
+                BookSearchIndex.getInstance(), BookAnySearch.getInstance(),
+                BookSearchCache.getInstance(), BookSnapshotCache.getInstance(), filter, PublisherCodeCache.getInstance());
+
+        assertNull(repository.findBookByISBN(ISBN_NOT_IN_DATABASE));
+        assertNull(repository.findBookSnapshotByISBN(ISBN_NOT_IN_DATABASE));
+
+        final Book book = bookRepository.newBook(Book.with(ISBN_NOT_IN_DATABASE)
+                .title("Zyxwvu")
+                .author("Author, An")
+                .publisher(bookRepository.findPublisherByCode(DomainPopulator.PENGUIN))
+                .build());
+
+        assertThat(filter.mightContain(ISBN_NOT_IN_DATABASE), equalTo(true));
+        assertThat(bookRepository.findBookByISBN(ISBN_NOT_IN_DATABASE), equalTo(book));
+        bookRepository.deleteBook(book);
+    }
+
+    @Test
+    public void isbnFilterShouldNotBeTrustedWithoutASingleWriter() {
+        final String isbn = "9780000000026";
+        final BookIsbnFilter filter = new BookIsbnFilter(false);
+        filter.rebuild(connection.provider().get().getEntityManagerFactory());
+        assertThat(filter.isReady(), equalTo(false));
+        assertThat(filter.mightContain(isbn), equalTo(true));
+
+        // A native statement is not seen by the filter, like a write by another JVM
+        final Book book = Book.with(isbn)
+                .title("Zyxwvu")
+                .author("Author, An")
+                .publisher(bookRepository.findPublisherByCode(DomainPopulator.PENGUIN))
+                .build();
+        new RepositoryJPA(connection).upsert(NativeUpsert.of(book, "isbnNumber"));
+        assertNull(bookRepository.findBookByISBN(isbn));
+
+        final BookRepositoryJpa repository = new BookRepositoryJpa(
+                connection, BookSearchIndex.getInstance(), BookAnySearch.getInstance(),
+                BookSearchCache.getInstance(), BookSnapshotCache.getInstance(), filter, PublisherCodeCache.getInstance());
+        assertThat(repository.findBookByISBN(isbn).getId(), equalTo(book.getId()));
+        repository.deleteBook(book.getId());
+    }
+
+    @Test
+    public void otherConnectionsShouldNotUseTheInMemoryIndexes() {
+        final String name = PU_NAME + "-replica";
+        final String isbn = "9780000000033";
+        Properties overriding = new Properties();
+        overriding.put("javax.persistence.jdbc.url", "jdbc:h2:mem:book-replica");
+        final JpaDatabaseConnectionManager.JpaDatabaseConnection replica = JpaDatabaseConnectionManager
+                .createConnection(name, PU_NAME, PersistenceProperties.createPropertiesForProvider(
+                        PersistenceProperties.HIBERNATE, overriding, Arrays.asList(Publisher.class, Book.class)))
+                .onStart("book-queries", BookQueries::registerNamedQueries);
+        replica.start();
+        replica.unitOfWork().begin();
+        try {
+            // A book only in the other database, written by a native statement, is not in the in-memory indexes
+            final Publisher publisher = new RepositoryJPA(replica).persist(new Publisher("90031", "Replica"));
+            final Book book = Book.with(isbn).title("Qwertyu").author("Author, An").publisher(publisher).build();
+            new RepositoryJPA(replica).upsert(NativeUpsert.of(book, "isbnNumber"));
+            assertNull(bookRepository.findBookByISBN(isbn));
+
+            final BookRepositoryJpa repository = new BookRepositoryJpa(replica);
+            assertThat(repository.findBookByISBN(isbn).getId(), equalTo(book.getId()));
+            assertThat(repository.findBookSnapshotByISBN(isbn).toBook().getTitle(), equalTo("Qwertyu"));
+            assertThat(repository.findBooksBySearchType(SearchType.Type.TITLE, "wert", 0, 10), hasSize(1));
+            assertThat(repository.findPublisherByCode("90031").getId(), equalTo(publisher.getId()));
+        }
+        finally {
+            replica.unitOfWork().end();
+            JpaDatabaseConnectionManager.removeConnection(name);
+        }
+    }
+
+    @Test
+    public void publisherLookupsShouldBeCachedUntilAPublisherIsWritten() {
+        final PublisherCodeCache cache = PublisherCodeCache.getInstance();
+        cache.invalidateAll();
+        final long hits = cache.stats().hitCount();
+
+        final Publisher publisher = bookRepository.findPublisherByCode(DomainPopulator.PENGUIN);
+        assertNotNull(publisher);
+        assertThat(bookRepository.findPublisherByCode(DomainPopulator.PENGUIN), sameInstance(publisher));
+        assertThat(cache.stats().hitCount() - hits, equalTo(1L));
+
+        // Unknown codes are not cached
+        assertNull(bookRepository.findPublisherByCode("90009"));
+        assertThat(cache.size(), equalTo(1L));
+
+        // Writing a publisher invalidates the cache
+        final Repository repository = new RepositoryJPA(connection);
+        final Publisher created = repository.persist(new Publisher("90009", "Forlaget 90009"));
+        assertThat(cache.size(), equalTo(0L));
+        assertThat(bookRepository.findPublisherByCode("90009"), equalTo(created));
+
+        repository.remove(created);
+        assertNull(bookRepository.findPublisherByCode("90009"));
+    }
+
+    @Test
+    public void searchCacheShouldEvictWhenFull() {
+        final BookSearchCache cache = new BookSearchCache(10);
+        final BookRepositoryJpa repository = new BookRepositoryJpa(
+                connection, BookSearchIndex.getInstance(), BookAnySearch.getInstance(),
+                cache, BookSnapshotCache.getInstance(), BookIsbnFilter.getInstance(), PublisherCodeCache.getInstance());
+
+        for (int i = 0; i < 20; i++) {
+            repository.findBooksBySearchType(SearchType.Type.TITLE, null, i, 1);
+        }
+        assertThat(cache.size(), lessThanOrEqualTo(10L));
+        assertThat(cache.stats().evictionCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void everySearchTypeShouldHaveRegisteredNamedQueries() {
+        for (SearchType.Type t : SearchType.Type.values()) {
+            assertThat(bookRepository.findBooksBySearchType(t, null, null, null), hasSize(greaterThan(1)));
+            bookRepository.findBooksBySearchType(t, "a", null, null);
+            bookRepository.findBooksBySearchType(t, "a*", null, null);
+
+            if(BookRepositoryJpa.supportsCursor(t)) {
+                final List<Book> page = bookRepository.findBooksBySearchType(t, null, (PageCursor) null, 2);
+                assertThat(page, hasSize(2));
+                bookRepository.findBooksBySearchType(t, "a", BookRepositoryJpa.cursorAfter(t, page.get(1)), 2);
+                bookRepository.findBooksBySearchType(t, "a*", BookRepositoryJpa.cursorBefore(t, page.get(1)), 2);
+            }
+        }
+    }
+
+    @Test
+    public void streamAllBooks() {
+        final long count = bookRepository.countBooks();
+        try (Stream<Book> books = bookRepository.streamBooks(3)) {
+            assertThat(books.filter(b -> b.getPublisher() != null).count(), equalTo(count));
+        }
+    }
+
+    @Test
+    public void streamInsideATransactionShouldKeepPendingChanges() {
+        final long count = bookRepository.countBooks();
+        final EntityManager em = connection.provider().get();
+        final Publisher publisher = new Publisher("90041", "Pending");
+        em.getTransaction().begin();
+        try {
+            em.persist(publisher);
+            try (Stream<Book> books = bookRepository.streamBooks(3)) {
+                assertThat(books.count(), equalTo(count));
+            }
+            assertTrue(em.contains(publisher));
+            em.getTransaction().commit();
+        }
+        finally {
+            if(em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+        }
+        assertNotNull(bookRepository.findPublisherByCode("90041"));
+    }
+
+    @Test
+    public void keysetPaginationShouldContinueAfterCursor() {
+        final List<Book> firstPage = bookRepository.findBooksBySearchType(
+                SearchType.Type.AUTHOR, null, (PageCursor) null, 3);
+        assertThat(firstPage, hasSize(3));
+
+        final PageCursor next = BookRepositoryJpa.cursorAfter(SearchType.Type.AUTHOR, firstPage.get(2));
+        final List<Book> secondPage = bookRepository.findBooksBySearchType(
+                SearchType.Type.AUTHOR, null, PageCursor.decode(next.encode()), 3);
+        assertThat(secondPage, hasSize(3));
+        assertEquals(bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, null, 3, 3), secondPage);
+
+        final PageCursor prev = BookRepositoryJpa.cursorBefore(SearchType.Type.AUTHOR, secondPage.get(0));
+        assertEquals(firstPage, bookRepository.findBooksBySearchType(SearchType.Type.AUTHOR, null, prev, 3));
+    }
+
+    @Test
+    public void keysetPaginationShouldOrderByTheNormalizedTitle() {
+        final Publisher publisher = bookRepository.findPublisherByCode(DomainPopulator.PENGUIN);
+        final Book upper = Book.with("9780140449136").title("CASE ORDER B").author("Case, B").publisher(publisher).build();
+        final Book lower = Book.with("9780141439600").title("case order a").author("Case, A").publisher(publisher).build();
+        final EntityManager em = connection.provider().get();
+        em.getTransaction().begin();
+        bookRepository.newBook(upper);
+        bookRepository.newBook(lower);
+        em.getTransaction().commit();
+        try {
+            // Prefix searches are answered by the database, contains searches by the search index
+            for (String searchValue : Arrays.asList("case order*", "case order")) {
+                final List<Book> firstPage = bookRepository.findBooksBySearchType(
+                        SearchType.Type.TITLE, searchValue, (PageCursor) null, 1);
+                assertThat(bookIds(firstPage), equalTo(Collections.singletonList(lower.getId())));
+
+                final PageCursor next = BookRepositoryJpa.cursorAfter(SearchType.Type.TITLE, firstPage.get(0));
+                assertThat(next.value(), equalTo("case order a"));
+                final List<Book> secondPage = bookRepository.findBooksBySearchType(
+                        SearchType.Type.TITLE, searchValue, next, 1);
+                assertThat(bookIds(secondPage), equalTo(Collections.singletonList(upper.getId())));
+                final PageCursor last = BookRepositoryJpa.cursorAfter(SearchType.Type.TITLE, secondPage.get(0));
+                assertThat(bookRepository.findBooksBySearchType(SearchType.Type.TITLE, searchValue, last, 1), hasSize(0));
+                assertThat(bookIds(bookRepository.findBooksBySearchType(SearchType.Type.TITLE, searchValue, 0, 2)),
+                        equalTo(Arrays.asList(lower.getId(), upper.getId())));
+            }
+        }
+        finally {
+            bookRepository.deleteBook(upper.getId());
+            bookRepository.deleteBook(lower.getId());
+        }
+    }
+
     @Test
     public void shouldFindFourBooks() {
         final List<Book> books = bookRepository.findBooks(2, 4);
         assertThat(books, hasSize(4));
     }
+
+    @Test
+    public void allNamedQueriesShouldExecuteWithPlaceholderParameters() {
+        assertThat(BookQueries.executeNamedQueries(connection.provider().get()), equalTo(BookQueries.jpql().size()));
+    }
 }
@@ -0,0 +1,156 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.DomainPopulator;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class BookSearchIndexTest {
+    private Map<String, Publisher> publishers;
+    private List<Book> books;
+    private BookSearchIndex index;
+
+    @Before
+    public void before() {
+        publishers = DomainPopulator.getPublishers();
+        books = DomainPopulator.getBooks(publishers);
+        index = new BookSearchIndex();
+        index.rebuild(books.stream());
+    }
+
+    @Test
+    public void shouldFindSameBooksAsScan() {
+        assertSameAsScan(SearchType.Type.TITLE, "the");
+        assertSameAsScan(SearchType.Type.AUTHOR, "Loe, Erlend");
+        assertSameAsScan(SearchType.Type.SUMMARY, "hawking");
+        assertSameAsScan(SearchType.Type.PUBLISHER_NAME, "vintage");
+        assertSameAsScan(SearchType.Type.ISBN, "978825");
+        assertSameAsScan(SearchType.Type.ANY, "hawking");
+        assertSameAsScan(SearchType.Type.ANY, "no such text");
+    }
+
+    @Test
+    public void shouldNotAnswerShortOrBlankSearchValues() {
+        assertNull(index.findBookIds(SearchType.Type.TITLE, "th", null, null));
+        assertNull(index.findBookIds(SearchType.Type.TITLE, "  ", null, null));
+        assertNull(new BookSearchIndex().findBookIds(SearchType.Type.TITLE, "the", null, null));
+    }
+
+    @Test
+    public void shouldIndexWrittenAndRemovedBooks() {
+        final Book book = Book.with("9780000000002")
+                .title("Zyxwvu")
+                .author("Author, An")
+                .publisher(publishers.get(DomainPopulator.PENGUIN))
+                .build();
+
+        index.index(book);
+        assertThat(index.findBookIds(SearchType.Type.TITLE, "xwv", null, null), contains(book.getId()));
+
+        index.index(Book.with(book, true).title("Qwerty").build());
+        assertThat(index.findBookIds(SearchType.Type.TITLE, "xwv", null, null), empty());
+        assertThat(index.findBookIds(SearchType.Type.TITLE, "qwerty", null, null), contains(book.getId()));
+
+        index.remove(book.getId());
+        assertThat(index.findBookIds(SearchType.Type.TITLE, "qwerty", null, null), empty());
+        assertThat(index.size(), equalTo(books.size()));
+    }
+
+    @Test
+    public void shouldFindBookIdByIsbn() {
+        final Book book = books.get(0);
+        assertThat(index.findBookIdByIsbn(book.getISBN()), equalTo(book.getId()));
+        assertNull(index.findBookIdByIsbn("9780000000002"));
+        assertNull(index.findBookIdByIsbn("not an isbn"));
+
+        final Book changed = Book.with(book, true).isbn("9780000000002").build();
+        index.index(changed);
+        assertNull(index.findBookIdByIsbn(book.getISBN()));
+        assertThat(index.findBookIdByIsbn(changed.getISBN()), equalTo(book.getId()));
+
+        index.remove(book.getId());
+        assertNull(index.findBookIdByIsbn(changed.getISBN()));
+    }
+
+    @Test
+    public void shouldReindexRenamedPublisher() {
+        final Publisher penguin = publishers.get(DomainPopulator.PENGUIN);
+        final int count = index.findBookIds(SearchType.Type.PUBLISHER_NAME, "penguin", null, null).size();
+        assertThat(count, not(equalTo(0)));
+
+        final Publisher renamed = new Publisher(penguin.getCode(), "Pingvin") {
+            @Override
+            public String getId() { return penguin.getId(); }
+        };
+        index.index(renamed);
+        assertThat(index.findBookIds(SearchType.Type.PUBLISHER_NAME, "penguin", null, null), empty());
+        assertThat(index.findBookIds(SearchType.Type.PUBLISHER_NAME, "pingvin", null, null), hasSize(count));
+    }
+
+    @Test
+    public void cursorPagesShouldCoverAllMatches() {
+        final SearchType.Type type = SearchType.Type.TITLE;
+        final List<String> all = index.findBookIds(type, "the", null, null);
+        final Map<String, Book> byId = books.stream().collect(Collectors.toMap(Book::getId, b -> b));
+
+        final List<String> paged = new ArrayList<>();
+        PageCursor cursor = null;
+        List<String> page;
+        do {
+            page = index.findBookIds(type, "the", cursor, 2);
+            paged.addAll(page);
+            if(!page.isEmpty()) {
+                cursor = BookRepositoryJpa.cursorAfter(type, byId.get(page.get(page.size() - 1)));
+            }
+        } while (!page.isEmpty());
+        assertThat(paged, equalTo(all));
+
+        // Read back from the last book
+        final List<String> before = index.findBookIds(type, "the", BookRepositoryJpa.cursorBefore(type, byId.get(all.get(all.size() - 1))), 2);
+        assertThat(before, equalTo(all.subList(all.size() - 3, all.size() - 1)));
+    }
+
+    private void assertSameAsScan(final SearchType.Type type, final String value) {
+        final String q = Book.normalizeSearchValue(value);
+        final Comparator<Book> order = SearchType.Type.ANY == type
+                ? Comparator.comparing(Book::getId)
+                : Comparator.comparing((Book b) -> Book.normalizeSearchValue(fields(type, b).get(0)),
+                        Comparator.nullsFirst(Comparator.<String>naturalOrder())).thenComparing(Book::getId);
+
+        final List<String> expected = books.stream()
+                .filter(b -> fields(type, b).stream().anyMatch(f -> f != null && f.toLowerCase().contains(q)))
+                .sorted(order)
+                .map(Book::getId)
+                .collect(Collectors.toList());
+
+        assertThat(type + " " + value, index.findBookIds(type, value, null, null), equalTo(expected));
+    }
+
+    private static List<String> fields(final SearchType.Type type, final Book b) {
+        final List<String> fields = new ArrayList<>();
+        if(type == SearchType.Type.ISBN || type == SearchType.Type.ANY) fields.add(b.getISBN());
+        if(type == SearchType.Type.TITLE || type == SearchType.Type.ANY) fields.add(b.getTitle());
+        if(type == SearchType.Type.AUTHOR || type == SearchType.Type.ANY) fields.add(b.getAuthor());
+        if(type == SearchType.Type.SUMMARY || type == SearchType.Type.ANY) fields.add(b.getSummary());
+        if(type == SearchType.Type.PUBLISHER_CODE || type == SearchType.Type.ANY) fields.add(b.getPublisher().getCode());
+        if(type == SearchType.Type.PUBLISHER_NAME || type == SearchType.Type.ANY) fields.add(b.getPublisher().getName());
+        return fields;
+    }
+}
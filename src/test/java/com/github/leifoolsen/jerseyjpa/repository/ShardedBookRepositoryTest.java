@@ -0,0 +1,258 @@
+package com.github.leifoolsen.jerseyjpa.repository;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.util.DomainPopulator;
+import com.github.leifoolsen.jerseyjpa.util.JpaDatabaseConnectionManager;
+import com.github.leifoolsen.jerseyjpa.util.PageCursor;
+import com.github.leifoolsen.jerseyjpa.util.PersistenceProperties;
+import com.github.leifoolsen.jerseyjpa.util.RepositoryJPA;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Three shards, each an in-memory H2 database
+ */
+public class ShardedBookRepositoryTest {
+
+    private static final String PU_NAME = "jpa-example-eclipselink";
+    private static final int SHARDS = 3;
+
+    // Publisher prefixes up to 10000 on shard 0, up to 82050 on shard 1, the rest on shard 2
+    private static final BookShardFunction SHARD_FUNCTION = BookShardFunction.prefixRanges("10000", "82050");
+
+    private static final List<JpaDatabaseConnectionManager.JpaDatabaseConnection> shards = new ArrayList<>();
+    private static ExecutorService executor;
+    private static ShardedBookRepository repository;
+    private static ShardedBookRepository parallelRepository;
+    private static List<Book> books;
+
+    @BeforeClass
+    public static void beforeClass() {
+        for (int i = 0; i < SHARDS; i++) {
+            Properties overriding = new Properties();
+            overriding.put("javax.persistence.jdbc.url", "jdbc:h2:mem:shard" + i);
+            Properties properties = PersistenceProperties.createPropertiesForProvider(
+                    PersistenceProperties.ECLIPSELINK, overriding, Arrays.asList(Publisher.class, Book.class));
+
+            final JpaDatabaseConnectionManager.JpaDatabaseConnection shard = JpaDatabaseConnectionManager
+                    .createConnection(shardName(i), PU_NAME, properties)
+                    .onStart(BookQueries::registerNamedQueries);
+            shard.start();
+            shards.add(shard);
+        }
+        executor = Executors.newFixedThreadPool(SHARDS);
+        repository = new ShardedBookRepository(shards, SHARD_FUNCTION);
+        parallelRepository = new ShardedBookRepository(shards, SHARD_FUNCTION, executor);
+
+        shards.forEach(s -> s.unitOfWork().begin());
+        try {
+            final Map<String, Publisher> publishers = DomainPopulator.getPublishers();
+            publishers.values().forEach(repository::newPublisher);
+            books = DomainPopulator.getBooks(publishers).stream()
+                    .map(repository::newBook)
+                    .collect(Collectors.toList());
+        }
+        finally {
+            shards.forEach(s -> s.unitOfWork().end());
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        executor.shutdownNow();
+        for (int i = 0; i < SHARDS; i++) {
+            JpaDatabaseConnectionManager.removeConnection(shardName(i));
+        }
+    }
+
+    @Before
+    public void before() {
+        shards.forEach(s -> s.unitOfWork().beginLazily(false));
+    }
+
+    @After
+    public void after() {
+        shards.forEach(s -> s.unitOfWork().end());
+    }
+
+    @Test
+    public void booksShouldBeStoredInTheShardOfTheirIsbn() {
+        for (Book book : books) {
+            final int shard = repository.shardOf(book.getISBN());
+            for (int i = 0; i < SHARDS; i++) {
+                final Book found = new RepositoryJPA(shards.get(i)).find(Book.class, book.getId());
+                if(i == shard) {
+                    assertNotNull(found);
+                    assertThat(found.getPublisher().getCode(), equalTo(book.getPublisher().getCode()));
+                }
+                else {
+                    assertNull(found);
+                }
+            }
+            assertThat(repository.findBookByISBN(book.getISBN()).getId(), equalTo(book.getId()));
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            assertThat("Books on shard " + i, new RepositoryJPA(shards.get(i)).count(Book.class), greaterThan(0L));
+        }
+        assertThat(repository.countBooks(), equalTo((long) books.size()));
+        assertThat(parallelRepository.countBooks(), equalTo((long) books.size()));
+    }
+
+    @Test
+    public void publishersShouldBeInEveryShard() {
+        final Publisher publisher = repository.findPublisherByCode(DomainPopulator.PAX);
+        for (JpaDatabaseConnectionManager.JpaDatabaseConnection shard : shards) {
+            assertNotNull(new RepositoryJPA(shard).find(Publisher.class, publisher.getId()));
+        }
+    }
+
+    @Test
+    public void newPublisherShouldCompleteTheShardsOfAFailedCall() {
+        final Publisher publisher = new Publisher("90051", "Half-way");
+        // As if the call failed after the first shard
+        new RepositoryJPA(shards.get(0)).persist(Publisher.copyOf(publisher.getId(), null, "90051", "Half-way"));
+
+        assertThat(repository.newPublisher(publisher).getId(), equalTo(publisher.getId()));
+        repository.newPublisher(Publisher.copyOf(publisher.getId(), null, "90051", "Renamed"));
+        for (JpaDatabaseConnectionManager.JpaDatabaseConnection shard : shards) {
+            assertThat(new RepositoryJPA(shard).find(Publisher.class, publisher.getId()).getName(), equalTo("Renamed"));
+        }
+    }
+
+    @Test
+    public void parallelSearchShouldNotNeedAUnitOfWork() {
+        shards.forEach(s -> s.unitOfWork().end());
+        assertThat(parallelRepository.findBooksBySearchType(SearchType.Type.TITLE, null, 0, books.size()), hasSize(books.size()));
+        for (JpaDatabaseConnectionManager.JpaDatabaseConnection shard : shards) {
+            assertFalse(shard.hasEntityManager());
+        }
+    }
+
+    @Test
+    public void offsetPagesShouldBeOrderedAcrossShards() {
+        final List<String> expected = books.stream()
+                .sorted(Comparator.comparing(Book::getTitle).thenComparing(Book::getId))
+                .map(Book::getId)
+                .collect(Collectors.toList());
+
+        for (ShardedBookRepository r : Arrays.asList(repository, parallelRepository)) {
+            final List<String> found = new ArrayList<>();
+            for (int offset = 0; offset < books.size(); offset += 4) {
+                r.findBooksBySearchType(SearchType.Type.TITLE, null, offset, 4).forEach(b -> found.add(b.getId()));
+            }
+            assertThat(found, equalTo(expected));
+        }
+
+        final List<Book> anyPage = repository.findBooksBySearchType(SearchType.Type.ANY, "82", 1, 3);
+        assertThat(ids(anyPage), equalTo(books.stream()
+                .filter(b -> Stream.of(b.getISBN(), b.getTitle(), b.getAuthor(), b.getSummary(),
+                        b.getPublisher().getCode(), b.getPublisher().getName()).anyMatch(v -> v != null && v.contains("82")))
+                .map(Book::getId)
+                .sorted()
+                .skip(1)
+                .limit(3)
+                .collect(Collectors.toList())));
+    }
+
+    @Test
+    public void cursorPagesShouldMatchOffsetPages() {
+        final List<Book> all = repository.findBooksBySearchType(SearchType.Type.ISBN, null, 0, books.size());
+        assertThat(all, hasSize(books.size()));
+
+        final List<Book> found = new ArrayList<>();
+        PageCursor cursor = null;
+        List<Book> page;
+        do {
+            page = parallelRepository.findBooksBySearchType(SearchType.Type.ISBN, null, cursor, 2);
+            found.addAll(page);
+            if(!page.isEmpty()) {
+                cursor = BookRepositoryJpa.cursorAfter(SearchType.Type.ISBN, page.get(page.size() - 1));
+            }
+        } while (page.size() == 2);
+        assertThat(ids(found), equalTo(ids(all)));
+
+        final Book last = all.get(all.size() - 1);
+        final List<Book> before = repository.findBooksBySearchType(
+                SearchType.Type.ISBN, null, BookRepositoryJpa.cursorBefore(SearchType.Type.ISBN, last), 3);
+        assertThat(ids(before), equalTo(ids(all.subList(all.size() - 4, all.size() - 1))));
+    }
+
+    @Test
+    public void updateShouldNotMoveBooksBetweenShards() {
+        final Book book = repository.findBookByISBN(books.get(0).getISBN());
+        final int shard = repository.shardOf(book.getISBN());
+        final String otherIsbn = books.stream()
+                .map(Book::getISBN)
+                .filter(isbn -> repository.shardOf(isbn) != shard)
+                .findFirst()
+                .get();
+        try {
+            repository.updateBook(Book.with(book, true).isbn(otherIsbn).build(book.getId(), book.getVersion()));
+            fail("Book moved between shards");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(repository.findBookByISBN(book.getISBN()).getId(), equalTo(book.getId()));
+        }
+    }
+
+    @Test
+    public void shardFunctionsShouldMapIsbnsToShards() {
+        assertThat(SHARD_FUNCTION.shardOf("9780752495620", SHARDS), equalTo(0));
+        assertThat(SHARD_FUNCTION.shardOf("9781118175392", SHARDS), equalTo(1));
+        assertThat(SHARD_FUNCTION.shardOf("9788204999999", SHARDS), equalTo(1));
+        assertThat(SHARD_FUNCTION.shardOf("9788205099999", SHARDS), equalTo(2));
+        assertThat(SHARD_FUNCTION.shardOf("9788205418820", SHARDS), equalTo(2));
+
+        final BookShardFunction hash = BookShardFunction.hash();
+        final Set<Integer> used = new HashSet<>();
+        for (Book book : books) {
+            final int shard = hash.shardOf(book.getISBN(), SHARDS);
+            assertThat(hash.shardOf(book.getISBN(), SHARDS), equalTo(shard));
+            used.add(shard);
+        }
+        assertThat(used.size(), greaterThan(1));
+
+        try {
+            BookShardFunction.prefixRanges("82050", "10000");
+            fail("Prefix bounds out of order");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static String shardName(final int i) {
+        return PU_NAME + "-shard-" + i;
+    }
+
+    private static List<String> ids(final List<Book> books) {
+        return books.stream().map(Book::getId).collect(Collectors.toList());
+    }
+}
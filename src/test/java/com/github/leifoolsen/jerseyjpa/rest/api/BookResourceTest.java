@@ -4,12 +4,15 @@ import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
 import com.github.leifoolsen.jerseyjpa.embeddedjetty.JettyFactory;
 import com.github.leifoolsen.jerseyjpa.rest.application.JerseyJpaApp;
+import com.github.leifoolsen.jerseyjpa.rest.application.Warmup;
 import com.github.leifoolsen.jerseyjpa.rest.exception.ErrorMessage;
+import com.github.leifoolsen.jerseyjpa.rest.filter.JpaFilter;
 import com.github.leifoolsen.jerseyjpa.rest.interceptor.GZIPReaderInterceptor;
 import com.github.leifoolsen.jerseyjpa.util.CollectionJson;
 import com.github.leifoolsen.jerseyjpa.util.DomainPopulator;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import org.eclipse.jetty.server.Server;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -36,9 +39,11 @@ import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 public class BookResourceTest {
@@ -60,7 +65,7 @@ public class BookResourceTest {
         server = new JettyFactory()
                 .build();
 
-        JettyFactory.start(server);
+        JettyFactory.start(server, Warmup::roundTrips);
 
         // Create the client
         Client c = ClientBuilder.newClient();
@@ -164,6 +169,7 @@ public class BookResourceTest {
                 .post(Entity.entity(book, MediaType.APPLICATION_JSON_TYPE));
 
         assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        assertNotNull(response.getCookies().get(JpaFilter.LAST_WRITE_COOKIE));
 
         CollectionJson collectionJson = response.readEntity(CollectionJson.class);
         assertThat(collectionJson.collection().items(), hasSize(1));
@@ -221,6 +227,7 @@ public class BookResourceTest {
                 .post(Entity.entity(book, MediaType.APPLICATION_JSON_TYPE));
 
         assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        assertNull(response.getCookies().get(JpaFilter.LAST_WRITE_COOKIE));
     }
 
     @Test
@@ -642,6 +649,120 @@ public class BookResourceTest {
     }
 
 
+    @Test
+    public void paginateTroughAllBooksWithCursor() {
+
+        Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("search/title")
+                .queryParam("limit", 4)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        CollectionJson collectionJson = response.readEntity(CollectionJson.class);
+        assertThat(collectionJson.collection().links("prev"), is(empty()));
+        assertThat(collectionJson.collection().links("next"), hasSize(1));
+        assertThat(collectionJson.collection().links("next").get(0).href(), containsString("cursor="));
+
+        List<String> titles = Lists.newArrayList();
+        for (CollectionJson.Item item : collectionJson.collection().items()) {
+            titles.add(item.data("title").value());
+        }
+
+        // Paginate forward
+        while(collectionJson.collection().links("next").size() > 0) {
+            collectionJson = followLink(collectionJson.collection().links("next").get(0).href());
+            for (CollectionJson.Item item : collectionJson.collection().items()) {
+                titles.add(item.data("title").value());
+            }
+        }
+
+        response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("count")
+                .request(MediaType.TEXT_PLAIN)
+                .accept(MediaType.TEXT_PLAIN_TYPE)
+                .get();
+
+        Long n = response.readEntity(Long.class);
+        assertThat(titles, hasSize(n.intValue()));
+        assertEquals(Ordering.natural().sortedCopy(titles), titles);
+
+        // Paginate back
+        int pageCount = 1;
+        while(collectionJson.collection().links("prev").size() > 0) {
+            collectionJson = followLink(collectionJson.collection().links("prev").get(0).href());
+            assertThat(collectionJson.collection().items(), hasSize(greaterThan(0)));
+            pageCount++;
+        }
+        assertThat(pageCount, equalTo((n.intValue() + 3) / 4));
+        assertEquals(titles.get(0), collectionJson.collection().item(0).data("title").value());
+    }
+
+    @Test
+    public void invalidCursorShouldReturn_BAD_REQUEST() {
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("search/title")
+                .queryParam("cursor", "not-a-cursor")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    @Test
+    public void fullTextSearchShouldReturnBooksWithPagingLinks() {
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("search/" + SearchResource.FULLTEXT)
+                .queryParam("q", "hawking")
+                .queryParam("limit", 1)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        CollectionJson collectionJson = response.readEntity(CollectionJson.class);
+        assertThat(collectionJson.collection().items(), hasSize(1));
+        assertThat(collectionJson.collection().links("prev"), is(empty()));
+        assertThat(collectionJson.collection().links("next"), hasSize(1));
+
+        collectionJson = followLink(collectionJson.collection().links("next").get(0).href());
+        assertThat(collectionJson.collection().items(), hasSize(1));
+        assertThat(collectionJson.collection().links("prev"), hasSize(1));
+    }
+
+    @Test
+    public void invalidFullTextQueryShouldReturn_BAD_REQUEST() {
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("search/" + SearchResource.FULLTEXT)
+                .queryParam("q", "title:(hawking")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    private CollectionJson followLink(final String href) {
+        String s1 = target.getUri().toString();
+        String s3 = Lists.newArrayList(Splitter.on(s1).omitEmptyStrings().trimResults().split(href)).get(0);
+
+        URI uri = URI.create(s3);
+        Map<String, String> map = Splitter.on('&').omitEmptyStrings().withKeyValueSeparator('=').split(uri.getRawQuery());
+
+        WebTarget t = target.path(uri.getPath());
+        for (String key: map.keySet()) {
+            t = t.queryParam(key, map.get(key));
+        }
+        Response response = t.request(MediaType.APPLICATION_JSON_TYPE).get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        return response.readEntity(CollectionJson.class);
+    }
+
     @Test
     public void headerShouldContainContentEncodingGzipAndContentTypeUtf8() {
         final Response response = target
@@ -678,4 +799,59 @@ public class BookResourceTest {
         assertEquals(ping, "Pong!");
     }
 
+    @Test
+    public void searchCacheShouldReportHitsAndMisses() {
+        for (int i = 0; i < 2; i++) {
+            final Response response = target
+                    .path(BookResource.RESOURCE_PATH)
+                    .path("search/author")
+                    .queryParam("q", "loe*")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("search/cache")
+                .request(MediaType.TEXT_PLAIN)
+                .get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        final String stats = response.readEntity(String.class);
+        assertThat(stats, containsString("hits="));
+        assertThat(stats, not(containsString("hits=0\n")));
+        assertThat(stats, containsString("evictions="));
+    }
+
+    @Test
+    public void sharedCacheStatsShouldReportHitRatioWhenCounted() {
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("cache")
+                .request(MediaType.TEXT_PLAIN)
+                .get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        // Counters are only collected in the cached persistence profile
+        final String stats = response.readEntity(String.class);
+        assertThat(stats.contains("cacheHits="), equalTo(stats.contains("hitRatio=")));
+    }
+
+    @Test
+    public void connectionPoolStatsShouldReportGauges() {
+        final Response response = target
+                .path(BookResource.RESOURCE_PATH)
+                .path("pool")
+                .request(MediaType.TEXT_PLAIN)
+                .get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        final String stats = response.readEntity(String.class);
+        assertThat(stats, containsString("active="));
+        assertThat(stats, containsString("idle="));
+        assertThat(stats, containsString("waiting=0"));
+    }
 }
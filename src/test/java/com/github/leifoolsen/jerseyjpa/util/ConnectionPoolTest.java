@@ -0,0 +1,84 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+
+    private ConnectionPool pool;
+
+    @Before
+    public void before() {
+        Properties overridingProperties = new Properties();
+        overridingProperties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:pooltest");
+        overridingProperties.put(ConnectionPool.MAX_SIZE, "1");
+        overridingProperties.put(ConnectionPool.ACQUIRE_TIMEOUT, "100");
+
+        pool = ConnectionPool.create(PersistenceProperties.createPropertiesForProvider(
+                PersistenceProperties.ECLIPSELINK, overridingProperties, null));
+    }
+
+    @After
+    public void after() {
+        pool.close();
+    }
+
+    @Test
+    public void exhaustedPoolShouldTimeOutInsteadOfGrowing() throws Exception {
+        try (Connection connection = pool.getConnection()) {
+            assertThat(pool.active(), equalTo(1));
+            try {
+                pool.getConnection();
+                fail("Expected the checkout to time out");
+            }
+            catch (SQLException expected) {
+                assertThat(pool.waiting(), equalTo(0));
+            }
+        }
+
+        // Connections are checked in asynchronously
+        final long timeout = System.currentTimeMillis() + 5000;
+        while (pool.active() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.active(), equalTo(0));
+        assertThat(pool.idle(), equalTo(1));
+    }
+
+    @Test
+    public void leakedConnectionShouldBeLoggedAndLeftOpen() throws Exception {
+        pool.close();
+        Properties overridingProperties = new Properties();
+        overridingProperties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:pooltest");
+        overridingProperties.put(ConnectionPool.LEAK_DETECTION_THRESHOLD, "1");
+        overridingProperties.put(ConnectionPool.LEAK_DETECTION_STACK_TRACES, "true");
+        pool = ConnectionPool.create(PersistenceProperties.createPropertiesForProvider(
+                PersistenceProperties.ECLIPSELINK, overridingProperties, null));
+
+        try (Connection connection = pool.getConnection()) {
+            assertThat(pool.logLeaks(), equalTo(0));
+
+            // Logged by the background check, without another checkout
+            final long timeout = System.currentTimeMillis() + 5000;
+            while (pool.leaked() == 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertThat(pool.leaked(), equalTo(1));
+            assertThat(pool.logLeaks(), equalTo(0));
+            assertFalse(connection.isClosed());
+        }
+        Thread.sleep(2100);
+        assertThat(pool.logLeaks(), equalTo(0));
+        assertThat(pool.leaked(), equalTo(1));
+    }
+}
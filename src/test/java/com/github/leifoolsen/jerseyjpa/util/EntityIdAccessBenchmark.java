@@ -0,0 +1,86 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the @Id value of an entity by reflection, toggling the accessible flag on every
+ * read (as RepositoryJPA used to do), with the compiled {@link IdAccessor}.
+ * Compile with <code>mvn -Pbenchmark clean test-compile</code> and run <code>main</code>; not a unit test.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityIdAccessBenchmark {
+
+    private Book book;
+    private Field idField;
+    private IdAccessor idAccessor;
+
+    @Setup
+    public void setup() {
+        book = Book.with("9780134685991").title("Effective Java").build();
+        idField = (Field) RepositoryJPA.getMemberAnnotadedWithId(Book.class);
+        idAccessor = RepositoryJPA.getIdAccessor(Book.class);
+    }
+
+    @Benchmark
+    public Object reflectionToggleAccessible() throws IllegalAccessException {
+        final boolean accessible = idField.isAccessible();
+        try {
+            idField.setAccessible(true);
+            return idField.get(book);
+        }
+        finally {
+            idField.setAccessible(accessible);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object reflectionToggleAccessibleContended() throws IllegalAccessException {
+        return reflectionToggleAccessible();
+    }
+
+    @Benchmark
+    public Object idAccessor() {
+        return idAccessor.get(book);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object idAccessorContended() {
+        return idAccessor.get(book);
+    }
+
+    @Benchmark
+    public Object getIdValue() {
+        return RepositoryJPA.getIdValue(book);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EntityIdAccessBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares random and time-ordered {@link IdGenerator}s: the cost of generating an id, and the cost of a bulk
+ * insert of 10000 rows keyed on the generated ids into an H2 table that already holds 100000 rows.
+ * Compile with <code>mvn -Pbenchmark clean test-compile</code> and run <code>main</code>; not a unit test.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdGeneratorBenchmark {
+    private static final int PRELOADED_ROWS = 100000;
+    private static final int BATCH_ROWS = 10000;
+
+    @Param({"random", "timeOrdered"})
+    public String strategy;
+
+    private IdGenerator generator;
+    private Connection connection;
+
+    @Setup
+    public void setup() throws SQLException {
+        generator = "random".equals(strategy) ? IdGenerator.randomUuid() : IdGenerator.timeOrderedUuid();
+        connection = DriverManager.getConnection("jdbc:h2:mem:idbench_" + strategy, "sa", "");
+        connection.setAutoCommit(false);
+    }
+
+    @Setup(Level.Iteration)
+    public void createTable() throws SQLException {
+        try (Statement s = connection.createStatement()) {
+            s.execute("DROP TABLE IF EXISTS T");
+            s.execute("CREATE TABLE T (ID VARCHAR(36) PRIMARY KEY, N INT)");
+        }
+        insert(PRELOADED_ROWS);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String newId() {
+        return generator.newId();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(4)
+    public String newIdContended() {
+        return generator.newId();
+    }
+
+    @Benchmark
+    public int bulkInsert() throws SQLException {
+        return insert(BATCH_ROWS);
+    }
+
+    private int insert(final int rows) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO T (ID, N) VALUES (?, ?)")) {
+            for (int i = 0; i < rows; i++) {
+                ps.setString(1, generator.newId());
+                ps.setInt(2, i);
+                ps.addBatch();
+            }
+            final int n = ps.executeBatch().length;
+            connection.commit();
+            return n;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdGeneratorBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
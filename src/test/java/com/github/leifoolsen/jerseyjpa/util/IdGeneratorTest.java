@@ -0,0 +1,64 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void timeOrderedIdsShouldBeIncreasingVersion7Uuids() {
+        final IdGenerator generator = IdGenerator.timeOrderedUuid();
+        final long before = System.currentTimeMillis();
+        final List<String> ids = IntStream.range(0, 20000)
+                .mapToObj(i -> generator.newId())
+                .collect(Collectors.toList());
+
+        for (int i = 1; i < ids.size(); i++) {
+            assertThat(ids.get(i - 1).compareTo(ids.get(i)), lessThan(0));
+        }
+        final UUID uuid = UUID.fromString(ids.get(0));
+        assertThat(uuid.toString(), equalTo(ids.get(0)));
+        assertThat(uuid.version(), equalTo(7));
+        assertThat(uuid.variant(), equalTo(2));
+        assertThat(uuid.getMostSignificantBits() >>> 16, both(greaterThanOrEqualTo(before))
+                .and(lessThanOrEqualTo(System.currentTimeMillis())));
+    }
+
+    @Test
+    public void timeOrderedIdsShouldBeUniqueAcrossThreads() throws InterruptedException {
+        final IdGenerator generator = IdGenerator.timeOrderedUuid();
+        final List<String> ids = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                final List<String> local = new ArrayList<>();
+                for (int i = 0; i < 10000; i++) {
+                    local.add(generator.newId());
+                }
+                synchronized (ids) {
+                    ids.addAll(local);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertThat(new HashSet<>(ids).size(), equalTo(40000));
+    }
+}
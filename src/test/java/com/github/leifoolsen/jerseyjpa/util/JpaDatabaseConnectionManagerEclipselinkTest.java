@@ -2,6 +2,8 @@ package com.github.leifoolsen.jerseyjpa.util;
 
 import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.eclipse.persistence.jpa.JpaHelper;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -9,11 +11,32 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Connection;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class JpaDatabaseConnectionManagerEclipselinkTest {
 
@@ -61,4 +84,199 @@ public class JpaDatabaseConnectionManagerEclipselinkTest {
         Publisher persistedPublisher = em.find(Publisher.class, publisher.getId());
         assertNotNull(persistedPublisher);
     }
+
+    @Test
+    public void readOnlyUnitOfWorkShouldUseReadOnlyQueries() throws Exception {
+        assertTrue(PersistenceProperties.readOnlyHints(connection.get()).isEmpty());
+        connection.unitOfWork().end();
+
+        final EntityManager em = connection.unitOfWork().beginLazily(true).get();
+        assertThat(PersistenceProperties.readOnlyHints(em), hasEntry("eclipselink.read-only", (Object) "true"));
+        try {
+            new RepositoryJPA(connection).persist(new Publisher("90012", "Read-only"));
+            fail("Wrote through a read-only EntityManager");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        connection.unitOfWork().end();
+
+        connection.unitOfWork().begin();
+    }
+
+    @Test
+    public void unitOfWorkShouldContinueOnAnotherThread() throws Exception {
+        final EntityManager em = connection.get();
+        final UnitOfWorkContext unitOfWork = connection.unitOfWork().context();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(executor.submit(unitOfWork.wrap(connection::get)).get(), sameInstance(em));
+            assertThat(CompletableFuture.supplyAsync(unitOfWork.wrapSupplier(connection::get), executor).get(),
+                    sameInstance(em));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertThat(connection.get(), sameInstance(em));
+    }
+
+    @Test
+    public void threadWithoutUnitOfWorkShouldNotGetAnEntityManager() throws Exception {
+        final EntityManager em = connection.get();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            try {
+                executor.submit(connection::get).get();
+                fail("EntityManager created without a unit of work");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            final ExecutorService unitOfWorkExecutor = new UnitOfWorkExecutor(() -> connection, executor);
+            assertThat(unitOfWorkExecutor.submit(connection::get).get(), sameInstance(em));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertThat(connection.get(), sameInstance(em));
+    }
+
+    @Test
+    public void entityManagerShouldNotBeUsedFromTwoThreadsAtOnce() throws Exception {
+        final UnitOfWorkContext unitOfWork = connection.unitOfWork().context();
+        final CountDownLatch inUse = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> task = executor.submit(unitOfWork.wrap(() -> {
+                connection.get();
+                inUse.countDown();
+                Uninterruptibles.awaitUninterruptibly(done);
+            }));
+            inUse.await();
+            try {
+                connection.get();
+                fail("EntityManager used from two threads");
+            }
+            catch (IllegalStateException e) {
+                // Expected
+            }
+            done.countDown();
+            task.get();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertTrue(connection.get().isOpen());
+    }
+
+    @Test
+    public void endedUnitOfWorkShouldBeClosedByTheThreadUsingIt() throws Exception {
+        final EntityManager em = connection.get();
+        final UnitOfWorkContext unitOfWork = connection.unitOfWork().detach();
+        assertNull(connection.unitOfWork().context());
+
+        final CountDownLatch inUse = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> task = executor.submit(unitOfWork.wrap(() -> {
+                connection.get();
+                inUse.countDown();
+                Uninterruptibles.awaitUninterruptibly(done);
+            }));
+            inUse.await();
+            unitOfWork.end();
+            assertTrue(em.isOpen());
+
+            done.countDown();
+            task.get();
+            assertFalse(em.isOpen());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        connection.unitOfWork().begin();
+    }
+
+    @Test
+    public void failingStartListenerShouldCloseTheEntityManagerFactory() throws Exception {
+        final String name = PU_NAME + "-listeners";
+        Properties overriding = new Properties();
+        overriding.put("javax.persistence.jdbc.url", "jdbc:h2:mem:listeners");
+        final JpaDatabaseConnectionManager.JpaDatabaseConnection c = JpaDatabaseConnectionManager.createConnection(
+                name, PU_NAME, PersistenceProperties.createPropertiesForProvider(
+                        PersistenceProperties.ECLIPSELINK, overriding, Arrays.asList(Publisher.class, Book.class)));
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<EntityManagerFactory> started = new AtomicReference<>();
+        c.onStart("counter", emf -> calls.incrementAndGet())
+         .onStart("counter", emf -> calls.addAndGet(10))
+         .onStart("failing", emf -> {
+             started.set(emf);
+             throw new IllegalStateException("Listener failed");
+         });
+        try {
+            c.start();
+            fail("Start listener failure not reported");
+        }
+        catch (IllegalStateException e) {
+            assertThat(calls.get(), equalTo(10));
+            assertFalse(started.get().isOpen());
+            assertNull(c.connectionPool());
+        }
+        finally {
+            JpaDatabaseConnectionManager.removeConnection(name);
+        }
+    }
+
+    @Test
+    public void commitListenersShouldOnlyGetCommittedWrites() throws Exception {
+        final List<String> committed = new CopyOnWriteArrayList<>();
+        CommitListeners.add(connection.provider().get().getEntityManagerFactory(),
+                (entity, change) -> committed.add(change + " " + ((Publisher) entity).getCode()), Publisher.class);
+        final List<String> flushed = new CopyOnWriteArrayList<>();
+        CommitListeners.addOnFlush(connection.provider().get().getEntityManagerFactory(),
+                (entity, change) -> flushed.add(change + " " + ((Publisher) entity).getCode()), Publisher.class);
+
+        EntityManager em = connection.provider().get();
+        em.getTransaction().begin();
+        em.persist(new Publisher("90001", "Rolled back"));
+        em.flush();
+        em.getTransaction().rollback();
+        assertThat(committed, hasSize(0));
+        assertThat(flushed, contains("WRITTEN 90001"));
+
+        final Publisher publisher = new Publisher("90002", "Committed");
+        em.getTransaction().begin();
+        em.persist(publisher);
+        em.flush();
+        assertThat(committed, hasSize(0));
+        em.getTransaction().commit();
+        assertThat(committed, contains("WRITTEN 90002"));
+
+        em.getTransaction().begin();
+        em.remove(em.find(Publisher.class, publisher.getId()));
+        em.getTransaction().commit();
+        assertThat(committed, contains("WRITTEN 90002", "REMOVED 90002"));
+        assertThat(flushed, contains("WRITTEN 90001", "WRITTEN 90002", "REMOVED 90002"));
+    }
+
+    @Test
+    public void transactionShouldUseAPooledConnection() throws Exception {
+        final ConnectionPool pool = connection.connectionPool();
+        assertNotNull(pool);
+
+        // EclipseLink must not keep connections in pools of its own
+        assertTrue(JpaHelper.getServerSession(connection.get().getEntityManagerFactory())
+                .getLogin().shouldUseExternalConnectionPooling());
+
+        final EntityManager em = connection.get();
+        em.getTransaction().begin();
+        assertNotNull(em.unwrap(Connection.class));
+        assertThat(pool.active(), equalTo(1));
+        em.getTransaction().commit();
+    }
 }
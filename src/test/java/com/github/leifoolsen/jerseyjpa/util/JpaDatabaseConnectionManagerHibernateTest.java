@@ -2,6 +2,8 @@ package com.github.leifoolsen.jerseyjpa.util;
 
 import com.github.leifoolsen.jerseyjpa.domain.Book;
 import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -9,10 +11,15 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+
 import java.util.Arrays;
 import java.util.Properties;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 public class JpaDatabaseConnectionManagerHibernateTest {
@@ -69,4 +76,49 @@ public class JpaDatabaseConnectionManagerHibernateTest {
         Publisher persistedPublisher = em.find(Publisher.class, publisher.getId());
         assertNotNull(persistedPublisher);
     }
+
+    @Test
+    public void lazyUnitOfWorkShouldOnlyCreateEntityManagerWhenUsed() throws Exception {
+        connection.unitOfWork().end();
+        assertFalse(connection.hasEntityManager());
+
+        connection.unitOfWork().beginLazily();
+        assertFalse(connection.hasEntityManager());
+        connection.unitOfWork().end();
+
+        final EntityManager em = connection.unitOfWork().beginLazily().get();
+        assertTrue(connection.hasEntityManager());
+        assertThat(connection.get(), sameInstance(em));
+        connection.unitOfWork().end();
+        assertFalse(em.isOpen());
+
+        connection.unitOfWork().begin();
+    }
+
+    @Test
+    public void readOnlyUnitOfWorkShouldLoadEntitiesReadOnly() throws Exception {
+        final Publisher publisher = new RepositoryJPA(connection).persist(new Publisher(DomainPopulator.GYLDENDAL, "Gyldendal"));
+        connection.unitOfWork().end();
+
+        final EntityManager em = connection.unitOfWork().beginLazily(true).get();
+        assertTrue(connection.isReadOnly());
+        assertThat(em.unwrap(Session.class).getFlushMode(), equalTo(FlushMode.MANUAL));
+        final Publisher found = new RepositoryJPA(connection).find(Publisher.class, publisher.getId());
+        assertTrue(em.unwrap(Session.class).isReadOnly(found));
+        connection.unitOfWork().end();
+        assertFalse(connection.isReadOnly());
+
+        connection.unitOfWork().begin();
+    }
+
+    @Test
+    public void sessionShouldUseAPooledConnection() throws Exception {
+        final ConnectionPool pool = connection.connectionPool();
+        assertNotNull(pool);
+
+        final EntityManager em = connection.get();
+        em.getTransaction().begin();
+        em.unwrap(Session.class).doWork(c -> assertThat(pool.active(), equalTo(1)));
+        em.getTransaction().commit();
+    }
 }
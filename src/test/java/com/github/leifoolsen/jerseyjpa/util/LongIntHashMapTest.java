@@ -0,0 +1,63 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void shouldPutGetAndRemove() {
+        final LongIntHashMap map = new LongIntHashMap();
+        assertThat(map.put(9788202148683L, 1, -1), equalTo(-1));
+        assertThat(map.put(9788202148683L, 2, -1), equalTo(1));
+        assertThat(map.put(0L, 3, -1), equalTo(-1));
+        assertThat(map.size(), equalTo(2));
+
+        assertThat(map.get(9788202148683L, -1), equalTo(2));
+        assertThat(map.get(0L, -1), equalTo(3));
+        assertThat(map.get(9780000000002L, -1), equalTo(-1));
+
+        assertThat(map.remove(9788202148683L, -1), equalTo(2));
+        assertThat(map.remove(9788202148683L, -1), equalTo(-1));
+        assertThat(map.remove(0L, -1), equalTo(3));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void shouldBehaveAsHashMapWhenGrowingAndRemoving() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        final Map<Long, Integer> expected = new HashMap<>();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            // Narrow key range gives both collisions and removals of existing keys
+            final long key = 9780000000000L + random.nextInt(5000);
+            if(random.nextInt(3) == 0) {
+                final Integer previous = expected.remove(key);
+                assertThat(map.remove(key, -1), equalTo(previous != null ? previous : -1));
+            }
+            else {
+                final Integer previous = expected.put(key, i);
+                assertThat(map.put(key, i, -1), equalTo(previous != null ? previous : -1));
+            }
+        }
+        assertThat(map.size(), equalTo(expected.size()));
+        for (long key = 9780000000000L; key < 9780000005000L; key++) {
+            final Integer value = expected.get(key);
+            assertThat(map.containsKey(key), equalTo(value != null));
+            assertThat(map.get(key, -1), equalTo(value != null ? value : -1));
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(9780000000000L));
+    }
+}
@@ -0,0 +1,323 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import org.h2.tools.Server;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Routes between two H2 instances in TCP server mode. Nothing is replicated; the tests write to the replica
+ * directly to tell the databases apart, and set the replication lag by hand.
+ */
+public class RoutingDatabaseConnectionTest {
+
+    private static final String PU_NAME = "jpa-example-eclipselink";
+    private static final String REPLICA_PU_NAME = "jpa-example-eclipselink-replica";
+    private static final long MAX_LAG = 1000;
+
+    private static Server primaryServer;
+    private static Server replicaServer;
+    private static final AtomicLong lag = new AtomicLong();
+    private static RoutingDatabaseConnection connection;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        primaryServer = Server.createTcpServer("-tcpPort", "0").start();
+        replicaServer = Server.createTcpServer("-tcpPort", "0").start();
+
+        Properties primaryOverriding = new Properties();
+        primaryOverriding.put("javax.persistence.jdbc.url",
+                "jdbc:h2:tcp://localhost:" + primaryServer.getPort() + "/mem:primary");
+        Properties primaryProperties = PersistenceProperties.createPropertiesForProvider(
+                PersistenceProperties.ECLIPSELINK, primaryOverriding, Arrays.asList(Publisher.class, Book.class));
+
+        // The replica has no schema to replicate
+        Properties replicaOverriding = new Properties();
+        replicaOverriding.put("javax.persistence.jdbc.url",
+                "jdbc:h2:tcp://localhost:" + replicaServer.getPort() + "/mem:replica");
+        replicaOverriding.put("eclipselink.ddl-generation", "drop-and-create-tables");
+        Properties replicaProperties = PersistenceProperties.createReplicaPropertiesForProvider(
+                PersistenceProperties.ECLIPSELINK, replicaOverriding, Arrays.asList(Publisher.class, Book.class));
+
+        connection = new RoutingDatabaseConnection(
+                JpaDatabaseConnectionManager.createConnection(PU_NAME, primaryProperties),
+                JpaDatabaseConnectionManager.createConnection(REPLICA_PU_NAME, replicaProperties),
+                lag::get, MAX_LAG);
+        connection.start();
+
+        persist(connection.replica(), new Publisher("90021", "Replica"));
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        JpaDatabaseConnectionManager.removeConnection(REPLICA_PU_NAME);
+        JpaDatabaseConnectionManager.removeConnection(PU_NAME);
+        replicaServer.stop();
+        primaryServer.stop();
+    }
+
+    @Before
+    public void before() {
+        lag.set(0);
+    }
+
+    @Test
+    public void writesShouldGoToThePrimary() {
+        final Publisher publisher = new Publisher("90022", "Primary");
+        connection.unitOfWork().beginLazily(false);
+        try {
+            assertThat(connection.current(), sameInstance(connection.primary()));
+            new RepositoryJPA(connection).persist(publisher);
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+        assertThat(find(connection.primary(), publisher.getId()), notNullValue());
+        assertThat(find(connection.replica(), publisher.getId()), nullValue());
+    }
+
+    @Test
+    public void readsShouldGoToAFreshReplica() throws Exception {
+        final Publisher replicated = findByCode("90021");
+        Thread.sleep(10);
+
+        connection.unitOfWork().beginLazily(true);
+        try {
+            assertThat(connection.current(), sameInstance(connection.replica()));
+            assertThat(new RepositoryJPA(connection).find(Publisher.class, replicated.getId()), notNullValue());
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+
+    @Test
+    public void replicaShouldSeeReplicatedChanges() throws Exception {
+        final Book book = Book.with("9780752495620")
+                .title("Before replication")
+                .author("Replica, A")
+                .publisher(findByCode("90021"))
+                .build();
+        persist(connection.replica(), book);
+        Thread.sleep(10);
+        assertThat(findOnReplica(book.getId()).getTitle(), equalTo("Before replication"));
+
+        execute(connection.replica(),
+                "update book set title = 'After replication' where id = '" + book.getId() + "'");
+        assertThat(findOnReplica(book.getId()).getTitle(), equalTo("After replication"));
+    }
+
+    @Test
+    public void readTheReplicaCanNotServeShouldMoveToThePrimary() throws Exception {
+        Thread.sleep(10);
+        connection.unitOfWork().beginLazily(true);
+        try {
+            assertThat(connection.current(), sameInstance(connection.replica()));
+            connection.readFromPrimary();
+            assertThat(connection.current(), sameInstance(connection.primary()));
+            assertTrue(connection.primary().isReadOnly());
+            assertThat(connection.replica().context(), nullValue());
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+        assertThat(connection.primary().context(), nullValue());
+
+        connection.unitOfWork().beginLazily(true);
+        try {
+            connection.get();
+            connection.readFromPrimary();
+            fail("Unit of work moved after reading from the replica");
+        }
+        catch (IllegalStateException e) {
+            assertThat(connection.current(), sameInstance(connection.replica()));
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+
+    @Test
+    public void routeShouldContinueWithTheUnitOfWorkOnAnotherThread() throws Exception {
+        Thread.sleep(10);
+        connection.unitOfWork().beginLazily(true);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(executor.submit(connection.unitOfWork().context().wrap(connection::current)).get(),
+                    sameInstance(connection.replica()));
+        }
+        finally {
+            executor.shutdownNow();
+            connection.unitOfWork().end();
+        }
+    }
+
+    @Test
+    public void readsShouldGoToThePrimaryUntilTheReplicaHasAppliedTheLastWriteOfTheClient() throws Exception {
+        final Publisher publisher = new Publisher("90023", "Read your writes");
+        connection.unitOfWork().begin();
+        try {
+            new RepositoryJPA(connection).persist(publisher);
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+        final long lastWrite = System.currentTimeMillis();
+
+        lag.set(MAX_LAG);
+        assertFalse(connection.isReplicaFresh(lastWrite));
+        connection.beginLazily(true, lastWrite);
+        try {
+            assertThat(connection.current(), sameInstance(connection.primary()));
+            assertThat(new RepositoryJPA(connection).find(Publisher.class, publisher.getId()), notNullValue());
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+
+        // Other clients do not wait for the write
+        assertTrue(connection.isReplicaFresh());
+
+        lag.set(0);
+        Thread.sleep(10);
+        assertTrue(connection.isReplicaFresh(lastWrite));
+    }
+
+    @Test
+    public void readsShouldGoToThePrimaryWhenTheReplicaLags() {
+        lag.set(MAX_LAG + 1);
+        assertFalse(connection.isReplicaFresh());
+
+        lag.set(-1);
+        assertFalse(connection.isReplicaFresh());
+    }
+
+    @Test
+    public void writesInProgressShouldNotHoldBackReadsOfOtherClients() throws Exception {
+        assertTrue(connection.isReplicaFresh());
+
+        connection.unitOfWork().beginLazily(false);
+        try {
+            assertTrue(connection.isReplicaFresh());
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+
+    @Test
+    public void heartbeatShouldMeasureTheReplicationLag() throws Exception {
+        final ReplicationHeartbeat heartbeat = new ReplicationHeartbeat(connection.primary(), connection.replica(), 60000);
+        final RoutingDatabaseConnection measured =
+                new RoutingDatabaseConnection(connection.primary(), connection.replica(), heartbeat, MAX_LAG);
+        heartbeat.start();
+        try {
+            // Nothing is replicated, so the replica has no heartbeat
+            assertThat(heartbeat.lagMillis(), equalTo(-1L));
+            assertFalse(measured.isReplicaFresh());
+            assertThat(beat(connection.primary()), notNullValue());
+
+            execute(connection.replica(), "create table if not exists " + ReplicationHeartbeat.TABLE +
+                    " (id integer not null primary key, beat_millis bigint not null)");
+            execute(connection.replica(), "merge into " + ReplicationHeartbeat.TABLE +
+                    " key (id) values (1, " + (System.currentTimeMillis() - MAX_LAG / 2) + ")");
+            heartbeat.beat();
+            assertThat(heartbeat.lagMillis(), greaterThanOrEqualTo(MAX_LAG / 2));
+            assertThat(heartbeat.lagMillis(), lessThan(MAX_LAG));
+            assertTrue(measured.isReplicaFresh());
+            assertFalse(measured.isReplicaFresh(System.currentTimeMillis()));
+        }
+        finally {
+            heartbeat.stop();
+            execute(connection.replica(), "drop table if exists " + ReplicationHeartbeat.TABLE);
+        }
+        assertThat(heartbeat.lagMillis(), equalTo(-1L));
+    }
+
+    private static Object beat(final JpaDatabaseConnectionManager.JpaDatabaseConnection db) {
+        db.unitOfWork().begin();
+        try {
+            return db.get().createNativeQuery("select beat_millis from " + ReplicationHeartbeat.TABLE).getSingleResult();
+        }
+        finally {
+            db.unitOfWork().end();
+        }
+    }
+
+    private static void execute(final JpaDatabaseConnectionManager.JpaDatabaseConnection db, final String sql) {
+        final EntityManager em = db.unitOfWork().begin();
+        try {
+            em.getTransaction().begin();
+            em.createNativeQuery(sql).executeUpdate();
+            em.getTransaction().commit();
+        }
+        finally {
+            db.unitOfWork().end();
+        }
+    }
+
+    private static Publisher findByCode(final String code) {
+        final JpaDatabaseConnectionManager.JpaDatabaseConnection replica = connection.replica();
+        replica.unitOfWork().begin();
+        try {
+            return replica.get().createQuery("select p from Publisher p where p.code = :code", Publisher.class)
+                    .setParameter("code", code)
+                    .getSingleResult();
+        }
+        finally {
+            replica.unitOfWork().end();
+        }
+    }
+
+    private static Publisher find(final JpaDatabaseConnectionManager.JpaDatabaseConnection db, final String id) {
+        db.unitOfWork().begin();
+        try {
+            return new RepositoryJPA(db).find(Publisher.class, id);
+        }
+        finally {
+            db.unitOfWork().end();
+        }
+    }
+
+    private static Book findOnReplica(final String id) {
+        connection.unitOfWork().beginLazily(true);
+        try {
+            assertThat(connection.current(), sameInstance(connection.replica()));
+            return new RepositoryJPA(connection).find(Book.class, id);
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+
+    private static void persist(final JpaDatabaseConnectionManager.JpaDatabaseConnection db, final Object entity) {
+        db.unitOfWork().begin();
+        try {
+            new RepositoryJPA(db).persist(entity);
+        }
+        finally {
+            db.unitOfWork().end();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.leifoolsen.jerseyjpa.util;
+
+import com.github.leifoolsen.jerseyjpa.constraint.SearchType;
+import com.github.leifoolsen.jerseyjpa.domain.Book;
+import com.github.leifoolsen.jerseyjpa.domain.Publisher;
+import com.github.leifoolsen.jerseyjpa.repository.BookQueries;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import javax.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+@RunWith(Parameterized.class)
+public class SharedCacheStatisticsTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> providers() {
+        return Arrays.asList(new Object[][] {
+                {PersistenceProperties.ECLIPSELINK, "jpa-example-eclipselink"},
+                {PersistenceProperties.HIBERNATE, "jpa-example-hibernate"},
+        });
+    }
+
+    private final String provider;
+    private final String puName;
+    private JpaDatabaseConnectionManager.JpaDatabaseConnection connection;
+
+    public SharedCacheStatisticsTest(final String provider, final String puName) {
+        this.provider = provider;
+        this.puName = puName;
+    }
+
+    @Before
+    public void before() {
+        Properties overriding = new Properties();
+        overriding.put(PersistenceProperties.PROFILE, PersistenceProperties.CACHED_PROFILE);
+        overriding.put("javax.persistence.jdbc.url", "jdbc:h2:mem:shared-cache-" + provider);
+        Properties properties = PersistenceProperties.createPropertiesForProvider(
+                provider, overriding, Arrays.asList(Publisher.class, Book.class));
+
+        connection = JpaDatabaseConnectionManager.createConnection(puName, properties)
+                .onStart(BookQueries::registerNamedQueries);
+        connection.start();
+        DatabasePopulator.pupulateDb(connection);
+    }
+
+    @After
+    public void after() {
+        JpaDatabaseConnectionManager.removeConnection(puName);
+    }
+
+    @Test
+    public void cachedProfileShouldCountSharedCacheHits() {
+        final Publisher publisher = inUnitOfWork(em -> RepositoryJPA.findFirstWithQuery(
+                em.createNamedQuery(BookQueries.PUBLISHER_BY_CODE, Publisher.class)
+                        .setParameter("code", DomainPopulator.PENGUIN)));
+
+        final long hits = inUnitOfWork(em -> SharedCacheStatistics.of(em)).get("cacheHits");
+        inUnitOfWork(em -> em.find(Publisher.class, publisher.getId()));
+
+        final Map<String, Long> stats = inUnitOfWork(SharedCacheStatistics::of);
+        assertThat(stats, hasKey("cacheMisses"));
+        assertThat(stats.get("cacheHits"), greaterThan(hits));
+    }
+
+    @Test
+    public void cachedQueriesShouldPageAndSeeWrites() {
+        final String search = BookQueries.searchByType(SearchType.Type.TITLE, null);
+        final List<String> page1 = inUnitOfWork(em -> ids(em.createNamedQuery(search, Book.class)
+                .setFirstResult(0).setMaxResults(2).getResultList()));
+        final List<String> page2 = inUnitOfWork(em -> ids(em.createNamedQuery(search, Book.class)
+                .setFirstResult(2).setMaxResults(2).getResultList()));
+        assertThat(page2, hasSize(2));
+        assertThat(Collections.disjoint(page1, page2), equalTo(true));
+
+        final Function<EntityManager, List<Publisher>> byName = em -> em
+                .createNamedQuery(BookQueries.PUBLISHERS_BY_NAME, Publisher.class)
+                .setParameter("name", "Pingvin%")
+                .getResultList();
+
+        assertThat(inUnitOfWork(byName), empty());
+        inUnitOfWork(em -> new RepositoryJPA(() -> em).persist(new Publisher("90011", "Pingvin")));
+        assertThat(inUnitOfWork(byName), not(empty()));
+    }
+
+    private static List<String> ids(final List<Book> books) {
+        return books.stream().map(Book::getId).collect(Collectors.toList());
+    }
+
+    private <T> T inUnitOfWork(final Function<EntityManager, T> work) {
+        final EntityManager em = connection.unitOfWork().begin();
+        try {
+            return work.apply(em);
+        }
+        finally {
+            connection.unitOfWork().end();
+        }
+    }
+}